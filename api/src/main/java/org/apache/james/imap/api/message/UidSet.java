@@ -0,0 +1,426 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.api.message;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.james.mailbox.model.MessageRange;
+
+/**
+ * Sorted set of uids which is stored as ranges of consecutive uids in a
+ * primitive <code>long[]</code>. Adding or removing a uid never boxes it, and
+ * large runs of uids, like those touched by a bulk flag change, take as much
+ * memory as a single one.
+ * 
+ * {@link #snapshot()} returns an immutable copy, which shares the ranges with
+ * the set until the set is modified the next time.
+ * 
+ * Instances are not thread safe, but snapshots may be read by any thread.
+ */
+public final class UidSet extends AbstractCollection<Long> {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private static final long[] EMPTY = new long[0];
+
+    /** low and high uid of each range, the ranges are sorted and never touch */
+    private long[] ranges;
+
+    private int rangeCount;
+
+    /** true if the ranges are used by a snapshot too */
+    private boolean shared;
+
+    private final boolean immutable;
+
+    public UidSet() {
+        this(EMPTY, 0, false);
+    }
+
+    private UidSet(long[] ranges, int rangeCount, boolean immutable) {
+        this.ranges = ranges;
+        this.rangeCount = rangeCount;
+        this.immutable = immutable;
+    }
+
+    /**
+     * Add the given uid
+     * 
+     * @param uid
+     * @return true if the uid was not part of the set before
+     */
+    public boolean add(long uid) {
+        checkMutable();
+        final int last = rangeCount - 1;
+        if (last >= 0 && uid > ranges[2 * last + 1]) {
+            // the common case, uids are added in ascending order
+            if (uid == ranges[2 * last + 1] + 1) {
+                ranges[2 * last + 1] = uid;
+            } else {
+                insertRange(rangeCount, uid, uid);
+            }
+            return true;
+        }
+        final int index = rangeOf(uid);
+        if (index < rangeCount && ranges[2 * index] <= uid) {
+            return false;
+        }
+        final boolean joinsPrevious = index > 0 && ranges[2 * index - 1] == uid - 1;
+        final boolean joinsNext = index < rangeCount && ranges[2 * index] == uid + 1;
+        if (joinsPrevious && joinsNext) {
+            ranges[2 * index - 1] = ranges[2 * index + 1];
+            removeRange(index);
+        } else if (joinsPrevious) {
+            ranges[2 * index - 1] = uid;
+        } else if (joinsNext) {
+            ranges[2 * index] = uid;
+        } else {
+            insertRange(index, uid, uid);
+        }
+        return true;
+    }
+
+    /**
+     * @see #add(long)
+     */
+    @Override
+    public boolean add(Long uid) {
+        return add(uid.longValue());
+    }
+
+    /**
+     * Add all uids from low to high, both included
+     * 
+     * @param low
+     * @param high
+     * @return true if the set changed
+     */
+    public boolean addRange(long low, long high) {
+        if (low > high) {
+            throw new IllegalArgumentException("Low must be <= High");
+        }
+        // the ranges which overlap or touch the new one
+        final int first = rangeOf(low == Long.MIN_VALUE ? low : low - 1);
+        int last = first;
+        while (last < rangeCount && (high == Long.MAX_VALUE || ranges[2 * last] <= high + 1)) {
+            last++;
+        }
+        if (last - first == 1 && ranges[2 * first] <= low && ranges[2 * first + 1] >= high) {
+            return false;
+        }
+        checkMutable();
+        if (first == last) {
+            insertRange(first, low, high);
+        } else {
+            ranges[2 * first] = Math.min(low, ranges[2 * first]);
+            ranges[2 * first + 1] = Math.max(high, ranges[2 * last - 1]);
+            System.arraycopy(ranges, 2 * last, ranges, 2 * first + 2, 2 * (rangeCount - last));
+            rangeCount -= last - first - 1;
+        }
+        return true;
+    }
+
+    /**
+     * Add all uids of the given set
+     * 
+     * @param uids
+     * @return true if the set changed
+     */
+    public boolean addAll(UidSet uids) {
+        boolean changed = false;
+        for (int i = 0; i < uids.rangeCount; i++) {
+            changed |= addRange(uids.ranges[2 * i], uids.ranges[2 * i + 1]);
+        }
+        return changed;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Long> uids) {
+        if (uids instanceof UidSet) {
+            return addAll((UidSet) uids);
+        }
+        return super.addAll(uids);
+    }
+
+    /**
+     * Remove the given uid
+     * 
+     * @param uid
+     * @return true if the uid was part of the set
+     */
+    public boolean remove(long uid) {
+        checkMutable();
+        final int index = rangeOf(uid);
+        if (index == rangeCount || ranges[2 * index] > uid) {
+            return false;
+        }
+        final long low = ranges[2 * index];
+        final long high = ranges[2 * index + 1];
+        if (low == high) {
+            removeRange(index);
+        } else if (low == uid) {
+            ranges[2 * index] = uid + 1;
+        } else if (high == uid) {
+            ranges[2 * index + 1] = uid - 1;
+        } else {
+            ranges[2 * index + 1] = uid - 1;
+            insertRange(index + 1, uid + 1, high);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return o instanceof Long && remove(((Long) o).longValue());
+    }
+
+    /**
+     * Return true if the given uid is part of the set
+     * 
+     * @param uid
+     * @return contains
+     */
+    public boolean contains(long uid) {
+        final int index = rangeOf(uid);
+        return index < rangeCount && ranges[2 * index] <= uid;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Long && contains(((Long) o).longValue());
+    }
+
+    /**
+     * Remove all uids
+     */
+    @Override
+    public void clear() {
+        checkMutable();
+        ranges = EMPTY;
+        rangeCount = 0;
+        shared = false;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return rangeCount == 0;
+    }
+
+    /**
+     * Return the count of uids in the set, or {@link Integer#MAX_VALUE} if it
+     * holds more than that
+     */
+    @Override
+    public int size() {
+        long size = 0;
+        for (int i = 0; i < rangeCount; i++) {
+            size += ranges[2 * i + 1] - ranges[2 * i] + 1;
+            if (size >= Integer.MAX_VALUE) {
+                return Integer.MAX_VALUE;
+            }
+        }
+        return (int) size;
+    }
+
+    /**
+     * Return the count of ranges of consecutive uids in the set
+     * 
+     * @return rangeCount
+     */
+    public int rangeCount() {
+        return rangeCount;
+    }
+
+    /**
+     * Return an immutable copy of this set. It is cheap, as the copy shares
+     * the ranges with this set until this set is modified the next time
+     * 
+     * @return snapshot
+     */
+    public UidSet snapshot() {
+        if (immutable) {
+            return this;
+        }
+        shared = true;
+        return new UidSet(ranges, rangeCount, true);
+    }
+
+    /**
+     * Return the uids of the set, sorted ascending
+     * 
+     * @return uids
+     */
+    public long[] toLongArray() {
+        final long[] uids = new long[size()];
+        int size = 0;
+        for (int i = 0; i < rangeCount && size < uids.length; i++) {
+            for (long uid = ranges[2 * i]; uid <= ranges[2 * i + 1] && size < uids.length; uid++) {
+                uids[size++] = uid;
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * Return the uids of the set as {@link IdRange}s, sorted ascending
+     * 
+     * @return ranges
+     */
+    public IdRange[] toIdRanges() {
+        final IdRange[] idRanges = new IdRange[rangeCount];
+        for (int i = 0; i < rangeCount; i++) {
+            idRanges[i] = new IdRange(ranges[2 * i], ranges[2 * i + 1]);
+        }
+        return idRanges;
+    }
+
+    /**
+     * Return the uids of the set as {@link MessageRange}s, sorted ascending
+     * 
+     * @return ranges
+     */
+    public List<MessageRange> toMessageRanges() {
+        final List<MessageRange> messageRanges = new ArrayList<MessageRange>(rangeCount);
+        for (int i = 0; i < rangeCount; i++) {
+            final long low = ranges[2 * i];
+            final long high = ranges[2 * i + 1];
+            if (low == high) {
+                messageRanges.add(MessageRange.one(low));
+            } else {
+                messageRanges.add(MessageRange.range(low, high));
+            }
+        }
+        return messageRanges;
+    }
+
+    /**
+     * Return an {@link Iterator} over all uids of the set in ascending order.
+     * The uids are only boxed while iterating
+     */
+    @Override
+    public Iterator<Long> iterator() {
+        final long[] ranges = this.ranges;
+        final int rangeCount = this.rangeCount;
+        if (!immutable) {
+            // keep the ranges of the iterator untouched by later changes
+            shared = true;
+        }
+        return new Iterator<Long>() {
+            private int range = 0;
+
+            private long next = rangeCount > 0 ? ranges[0] : 0;
+
+            @Override
+            public boolean hasNext() {
+                return range < rangeCount;
+            }
+
+            @Override
+            public Long next() {
+                if (range == rangeCount) {
+                    throw new NoSuchElementException();
+                }
+                final long uid = next;
+                if (uid == ranges[2 * range + 1]) {
+                    range++;
+                    if (range < rangeCount) {
+                        next = ranges[2 * range];
+                    }
+                } else {
+                    next = uid + 1;
+                }
+                return uid;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Read-only");
+            }
+        };
+    }
+
+    /**
+     * Return the uids in the same format as they are used in IMAP, for
+     * example <code>1:5,7,10:12</code>
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < rangeCount; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(ranges[2 * i]);
+            if (ranges[2 * i] != ranges[2 * i + 1]) {
+                builder.append(':').append(ranges[2 * i + 1]);
+            }
+        }
+        return builder.toString();
+    }
+
+    private void checkMutable() {
+        if (immutable) {
+            throw new UnsupportedOperationException("Read-only");
+        }
+        if (shared) {
+            ranges = Arrays.copyOf(ranges, Math.max(2 * rangeCount, INITIAL_CAPACITY));
+            shared = false;
+        }
+    }
+
+    /**
+     * Return the index of the first range whose high uid is not lower than
+     * the given uid, or the count of ranges if there is none
+     */
+    private int rangeOf(long uid) {
+        int low = 0;
+        int high = rangeCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (ranges[2 * mid + 1] < uid) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private void insertRange(int index, long low, long high) {
+        if (2 * rangeCount == ranges.length) {
+            ranges = Arrays.copyOf(ranges, Math.max(ranges.length * 2, INITIAL_CAPACITY));
+        }
+        System.arraycopy(ranges, 2 * index, ranges, 2 * index + 2, 2 * (rangeCount - index));
+        ranges[2 * index] = low;
+        ranges[2 * index + 1] = high;
+        rangeCount++;
+    }
+
+    private void removeRange(int index) {
+        rangeCount--;
+        System.arraycopy(ranges, 2 * index + 2, ranges, 2 * index, 2 * (rangeCount - index));
+    }
+}
@@ -23,6 +23,8 @@ import java.util.Collection;
 
 import javax.mail.Flags;
 
+import org.apache.james.imap.api.message.UidSet;
+
 import org.apache.james.mailbox.model.MailboxPath;
 
 /**
@@ -72,11 +74,11 @@ public interface SelectedMailbox {
     public boolean removeRecent(long uid);
 
     /**
-     * Return a Collection of all recent uids
+     * Return an immutable snapshot of all recent uids
      * 
      * @return recentUids
      */
-    public Collection<Long> getRecent();
+    public UidSet getRecent();
 
     /**
      * Return the count of all recent uids
@@ -141,11 +143,11 @@ public interface SelectedMailbox {
     public void resetEvents();
 
     /**
-     * Return a Collection which holds all uids which were expunged
+     * Return an immutable snapshot of all uids which were expunged
      * 
      * @return expungedUids
      */
-    public Collection<Long> expungedUids();
+    public UidSet expungedUids();
 
     
     public void resetExpungedUids();
@@ -162,12 +164,26 @@ public interface SelectedMailbox {
     public int remove(Long uid);
 
     /**
-     * Return a Collection which holds all uids reflecting the Messages which
+     * Removes all the given UIDs at once. This is much cheaper than removing
+     * them one by one, as the following message sequence numbers only need
+     * to be updated once.
+     * 
+     * @param uids
+     *            not null
+     * @return the message sequence numbers the found UIDs held before, in
+     *         ascending order. As every msn is the one from before the
+     *         removal, EXPUNGE responses must be sent for them in descending
+     *         order (see RFC 3501 7.4.1)
+     */
+    public int[] removeAll(Collection<Long> uids);
+
+    /**
+     * Return an immutable snapshot of all uids reflecting the Messages which
      * flags were updated
      * 
      * @return flagsUids
      */
-    public Collection<Long> flagUpdateUids();
+    public UidSet flagUpdateUids();
 
     /**
      * Return the uid of the first message in the mailbox or -1 if the mailbox
@@ -0,0 +1,142 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.api.message;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.james.mailbox.model.MessageRange;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UidSetTest {
+
+    private UidSet set;
+
+    @Before
+    public void setUp() throws Exception {
+        set = new UidSet();
+    }
+
+    @Test
+    public void testAddJoinsRanges() throws Exception {
+        assertTrue(set.add(1));
+        assertTrue(set.add(2));
+        assertTrue(set.add(5));
+        assertFalse(set.add(2));
+        assertEquals("1:2,5", set.toString());
+        assertTrue(set.add(4));
+        assertTrue(set.add(3));
+        assertEquals("1:5", set.toString());
+        assertEquals(1, set.rangeCount());
+        assertEquals(5, set.size());
+        assertTrue(set.contains(3));
+        assertFalse(set.contains(6));
+        assertFalse(set.contains(0));
+    }
+
+    @Test
+    public void testRemoveSplitsRanges() throws Exception {
+        set.addRange(1, 10);
+        assertTrue(set.remove(5));
+        assertFalse(set.remove(5));
+        assertTrue(set.remove(1));
+        assertTrue(set.remove(10));
+        assertEquals("2:4,6:9", set.toString());
+        assertEquals(7, set.size());
+    }
+
+    @Test
+    public void testAddRangeMergesOverlappingRanges() throws Exception {
+        set.add(1);
+        set.add(5);
+        set.addRange(10, 20);
+        set.add(30);
+        assertTrue(set.addRange(4, 21));
+        assertEquals("1,4:21,30", set.toString());
+        assertFalse(set.addRange(12, 15));
+        assertTrue(set.addRange(2, 3));
+        assertEquals("1:21,30", set.toString());
+    }
+
+    @Test
+    public void testLargeRangeIsCompact() throws Exception {
+        for (long uid = 1; uid <= 1000000; uid++) {
+            set.add(uid);
+        }
+        assertEquals(1, set.rangeCount());
+        assertEquals(1000000, set.size());
+    }
+
+    @Test
+    public void testSnapshotIsNotAffectedByChanges() throws Exception {
+        set.addRange(1, 3);
+        final UidSet snapshot = set.snapshot();
+        set.add(4);
+        set.remove(2);
+        assertEquals("1:3", snapshot.toString());
+        assertEquals("1,3:4", set.toString());
+        try {
+            snapshot.add(5);
+            fail("Snapshot must be immutable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertEquals(3, snapshot.size());
+    }
+
+    @Test
+    public void testIteratorIsNotAffectedByChanges() throws Exception {
+        set.addRange(1, 2);
+        set.add(4);
+        final Iterator<Long> it = set.iterator();
+        set.add(3);
+        assertEquals(Arrays.asList(1L, 2L, 4L), toList(it));
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L), toList(set.iterator()));
+    }
+
+    @Test
+    public void testConversions() throws Exception {
+        set.addRange(1, 3);
+        set.add(7);
+        assertArrayEquals(new IdRange[] { new IdRange(1, 3), new IdRange(7) }, set.toIdRanges());
+        final List<MessageRange> ranges = set.toMessageRanges();
+        assertEquals(2, ranges.size());
+        assertEquals(1, ranges.get(0).getUidFrom());
+        assertEquals(3, ranges.get(0).getUidTo());
+        assertEquals(MessageRange.Type.ONE, ranges.get(1).getType());
+        assertEquals(7, ranges.get(1).getUidFrom());
+        assertArrayEquals(new long[] { 1, 2, 3, 7 }, set.toLongArray());
+    }
+
+    private static List<Long> toList(Iterator<Long> it) {
+        final List<Long> list = new ArrayList<Long>();
+        while (it.hasNext()) {
+            list.add(it.next());
+        }
+        return list;
+    }
+}
@@ -27,6 +27,10 @@ import org.apache.james.imap.api.process.ImapSession;
  * Parses IMAP request into a command message.
  * </p>
  * <p>
+ * Instances are shared between all sessions, so implementations must not keep
+ * any state of the request they parse.
+ * </p>
+ * <p>
  * <strong>Note:</strong> this is a transitional API and is liable to change.
  * </p>
  */
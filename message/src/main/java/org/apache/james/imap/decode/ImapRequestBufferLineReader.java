@@ -0,0 +1,123 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.decode;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.apache.james.imap.api.display.HumanReadableText;
+import org.apache.james.imap.decode.base.EolInputStream;
+
+/**
+ * {@link ImapRequestLineReader} which reads from a fully received command held
+ * in memory. All literals of the command must be part of the given bytes, or
+ * already be spooled, so no continuation request will get send by this
+ * reader.
+ */
+public class ImapRequestBufferLineReader extends ImapRequestLineReader {
+
+    private final byte[] buffer;
+
+    private int position;
+
+    private final int limit;
+
+    /** spooled literals by the position they were received at */
+    private final Map<Integer, InputStream> spooledLiterals;
+
+    public ImapRequestBufferLineReader(byte[] buffer, int offset, int length) {
+        this(buffer, offset, length, null);
+    }
+
+    /**
+     * @param buffer
+     *            bytes of the command, not null
+     * @param offset
+     *            start of the command in the buffer
+     * @param length
+     *            length of the command
+     * @param spooledLiterals
+     *            literals which were not added to the buffer but spooled, by
+     *            their position in the buffer. May be null
+     */
+    public ImapRequestBufferLineReader(byte[] buffer, int offset, int length, Map<Integer, InputStream> spooledLiterals) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = offset + length;
+        this.spooledLiterals = spooledLiterals;
+    }
+
+    /**
+     * Reads the next character in the current line. This method will continue
+     * to return the same character until the {@link #consume()} method is
+     * called.
+     * 
+     * @return The next character
+     * @throws DecodingException
+     *             If the end of the buffered command is reached.
+     */
+    public char nextChar() throws DecodingException {
+        if (!nextSeen) {
+            if (position >= limit) {
+                throw new DecodingException(HumanReadableText.ILLEGAL_ARGUMENTS, "Unexpected end of stream.");
+            }
+            nextSeen = true;
+            nextChar = (char) (buffer[position++] & 0xff);
+        }
+        return nextChar;
+    }
+
+    /**
+     * @see ImapRequestLineReader#read(int, boolean)
+     */
+    public InputStream read(int size, boolean extraCRLF) throws DecodingException {
+        // Unset the next char.
+        nextSeen = false;
+        nextChar = 0;
+
+        final InputStream spooled = spooledLiterals == null ? null : spooledLiterals.remove(position);
+        if (spooled != null) {
+            if (extraCRLF) {
+                return new EolInputStream(this, spooled);
+            } else {
+                return spooled;
+            }
+        }
+        if (size < 0 || size > limit - position) {
+            throw new DecodingException(HumanReadableText.ILLEGAL_ARGUMENTS, "Literal exceeds the received command.");
+        }
+        final InputStream in = new ByteArrayInputStream(buffer, position, size);
+        position += size;
+        if (extraCRLF) {
+            return new EolInputStream(this, in);
+        } else {
+            return in;
+        }
+    }
+
+    /**
+     * Nothing to do as the literals were already requested while the command
+     * was received
+     */
+    protected void commandContinuationRequest() throws DecodingException {
+    }
+
+}
@@ -43,7 +43,7 @@ import org.apache.james.imap.api.message.IdRange;
 import org.apache.james.imap.api.message.request.DayMonthYear;
 import org.apache.james.imap.api.process.ImapSession;
 import org.apache.james.imap.api.process.SearchResUtil;
-import org.apache.james.imap.utils.io.FastByteArrayOutputStream;
+import org.apache.james.imap.utils.io.LiteralSpool;
 
 /**
  * Wraps the client input reader with a bunch of convenience methods, allowing
@@ -59,6 +59,29 @@ public abstract class ImapRequestLineReader {
 
     protected char nextChar; // unknown
 
+    private LiteralSpool literalSpool;
+
+    private static final CharacterValidator ATOM_VALIDATOR = new ATOM_CHARValidator();
+
+    private static final CharacterValidator TAG_VALIDATOR = new TagCharValidator();
+
+    private static final CharacterValidator NOOP_VALIDATOR = new NoopCharValidator();
+
+    private static final CharacterValidator MESSAGE_SET_VALIDATOR = new MessageSetCharValidator();
+
+    /** initial size of the scratch buffer for words */
+    private static final int WORD_SIZE = 32;
+
+    /**
+     * size above which the scratch buffer is not kept once the word is
+     * consumed, so a single oversized word does not stay on the heap of the
+     * connection
+     */
+    private static final int MAX_WORD_SIZE = 1024;
+
+    /** scratch buffer for the word which is currently consumed */
+    private char[] word = new char[WORD_SIZE];
+
 
 
     public static int cap(char next) {
@@ -188,15 +211,14 @@ public abstract class ImapRequestLineReader {
      * Reads an argument of type "atom" from the request.
      */
     public String atom() throws DecodingException {
-        return consumeWord(new ATOM_CHARValidator(), true);
+        return consumeWord(ATOM_VALIDATOR, true);
     }
 
     /**
      * Reads a command "tag" from the request.
      */
     public String tag() throws DecodingException {
-        CharacterValidator validator = new TagCharValidator();
-        return consumeWord(validator);
+        return consumeWord(TAG_VALIDATOR);
     }
 
     /**
@@ -340,21 +362,79 @@ public abstract class ImapRequestLineReader {
     }
 
     private String consumeWord(CharacterValidator validator, boolean stripParen) throws DecodingException {
-        StringBuffer atom = new StringBuffer();
-
-        char next = nextWordChar();
-        while (!isWhitespace(next) && (stripParen == false || next != ')')) {
-            if (validator.isValid(next)) {
-                if (stripParen == false || next != '(') {
-                    atom.append(next);
+        int length = 0;
+        try {
+            char next = nextWordChar();
+            while (!isWhitespace(next) && (stripParen == false || next != ')')) {
+                if (validator.isValid(next)) {
+                    if (stripParen == false || next != '(') {
+                        length = append(length, next);
+                    }
+                    consume();
+                } else {
+                    throw new DecodingException(HumanReadableText.ILLEGAL_ARGUMENTS, "Invalid character: '" + next + "'");
                 }
+                next = nextChar();
+            }
+            return word(length);
+        } finally {
+            shrinkWord();
+        }
+    }
+
+    /**
+     * Reads all characters up to one of the given terminators, which is not
+     * consumed.
+     * 
+     * @param terminators
+     *            characters which end the word
+     * @return word, may be empty
+     * @throws DecodingException
+     */
+    public String consumeUntil(String terminators) throws DecodingException {
+        int length = 0;
+        try {
+            char next = nextChar();
+            while (terminators.indexOf(next) == -1) {
+                length = append(length, next);
                 consume();
-            } else {
-                throw new DecodingException(HumanReadableText.ILLEGAL_ARGUMENTS, "Invalid character: '" + next + "'");
+                next = nextChar();
             }
-            next = nextChar();
+            return word(length);
+        } finally {
+            shrinkWord();
+        }
+    }
+
+    private int append(int length, char next) {
+        if (length == word.length) {
+            final char[] bigger = new char[length * 2];
+            System.arraycopy(word, 0, bigger, 0, length);
+            word = bigger;
         }
-        return atom.toString();
+        word[length] = next;
+        return length + 1;
+    }
+
+    /**
+     * Drop the scratch buffer if it grew above {@link #MAX_WORD_SIZE}
+     */
+    private void shrinkWord() {
+        if (word.length > MAX_WORD_SIZE) {
+            word = new char[WORD_SIZE];
+        }
+    }
+
+    /**
+     * Return the word in the scratch buffer. Well known words are returned
+     * as shared instance, so the common commands need no new strings.
+     */
+    private String word(int length) {
+        final String known = KnownWords.lookup(word, length);
+        if (known == null) {
+            return new String(word, 0, length);
+        }
+        return known;
     }
     private static boolean isWhitespace(char next) {
         return (next == ' ' || next == '\n' || next == '\r' || next == '\t');
@@ -373,22 +453,27 @@ public abstract class ImapRequestLineReader {
         if (charset == null) {
             return consumeLiteral(US_ASCII);
         } else {
-            FastByteArrayOutputStream out = new FastByteArrayOutputStream();
+            final int size = consumeLiteralHeader();
             InputStream in = null;
+            // The literal is read into memory anyway, so don't spool it
+            final LiteralSpool spool = literalSpool;
+            literalSpool = null;
             try {
-            	in = consumeLiteral(false);
-            	byte[] buf = new byte[ 0xFFFF ]; 
-                
-            	for (int len; (len = in.read(buf)) != -1; ) 
-                    out.write( buf, 0, len ); 
-                
-                final byte[] bytes = out.toByteArray();
-                final ByteBuffer buffer = ByteBuffer.wrap(bytes);
-                return decode(charset, buffer);
-                
+                in = read(size, false);
+                final byte[] bytes = new byte[size];
+                for (int pos = 0; pos < size;) {
+                    final int len = in.read(bytes, pos, size - pos);
+                    if (len == -1) {
+                        throw new DecodingException(HumanReadableText.ILLEGAL_ARGUMENTS, "Unexpected end of literal.");
+                    }
+                    pos += len;
+                }
+                return decode(charset, ByteBuffer.wrap(bytes));
+
             } catch (IOException e) {
                 throw new DecodingException(HumanReadableText.BAD_IO_ENCODING, "Bad character encoding", e);
             } finally {
+                literalSpool = spool;
             	if (in != null) {
             		try {
             			in.close();
@@ -402,6 +487,17 @@ public abstract class ImapRequestLineReader {
     }
 
     public InputStream consumeLiteral(boolean extraCRLF) throws DecodingException {
+        final int size = consumeLiteralHeader();
+        return read(size, extraCRLF);
+    }
+
+    /**
+     * Consumes the "{" number ["+"] "}" CRLF in front of a literal and sends
+     * a continuation request for synchronized literals.
+     * 
+     * @return size of the literal
+     */
+    private int consumeLiteralHeader() throws DecodingException {
         // The 1st character must be '{'
         consumeChar('{');
 
@@ -432,8 +528,39 @@ public abstract class ImapRequestLineReader {
             commandContinuationRequest();
         }
 
-        final int size = Integer.parseInt(digits.toString());
-        return read(size, extraCRLF);
+        return Integer.parseInt(digits.toString());
+    }
+
+    /**
+     * Set the spool which is used for large literals
+     * 
+     * @param literalSpool
+     *            spool, or null to keep all literals in memory
+     */
+    public void setLiteralSpool(LiteralSpool literalSpool) {
+        this.literalSpool = literalSpool;
+    }
+
+    /**
+     * Copies the literal to the {@link LiteralSpool}, if one is set and the
+     * literal is large enough. Otherwise the given stream is returned.
+     * 
+     * @param in
+     *            content of the literal, not null
+     * @param size
+     *            size of the literal
+     * @return stream over the literal
+     * @throws DecodingException
+     */
+    protected InputStream spool(InputStream in, int size) throws DecodingException {
+        if (literalSpool == null || !literalSpool.isSpooled(size)) {
+            return in;
+        }
+        try {
+            return literalSpool.spool(in, size);
+        } catch (IOException e) {
+            throw new DecodingException(HumanReadableText.SOCKET_IO_FAILURE, "Unable to spool literal", e);
+        }
     }
 
     private String decode(final Charset charset, final ByteBuffer buffer) throws DecodingException {
@@ -508,7 +635,7 @@ public abstract class ImapRequestLineReader {
         Flags flags = new Flags();
         nextWordChar();
         consumeChar('(');
-        CharacterValidator validator = new NoopCharValidator();
+        CharacterValidator validator = NOOP_VALIDATOR;
         String nextWord = consumeWord(validator);
         while (!nextWord.endsWith(")")) {
             DecoderUtils.setFlag(nextWord, flags);
@@ -533,8 +660,7 @@ public abstract class ImapRequestLineReader {
         Flags flags = new Flags();
         nextWordChar();
 
-        CharacterValidator validator = new NoopCharValidator();
-        String nextFlag = consumeWord(validator);
+        String nextFlag = consumeWord(NOOP_VALIDATOR);
         DecoderUtils.setFlag(nextFlag, flags);
         return flags;
     }
@@ -556,54 +682,31 @@ public abstract class ImapRequestLineReader {
      * @return number
      */
     public long number(boolean stopOnParen) throws DecodingException {
-        return readDigits(0, 0, true, stopOnParen);
-    }
-    
-    private long readDigits(int add, final long total, final boolean first, boolean stopOnParen
-            ) throws DecodingException {
-        final char next;
-        if (first) {
-            next = nextWordChar();
-        } else {
+        long total = 0;
+        char next = nextWordChar();
+        while (true) {
+            if (next >= '0' && next <= '9') {
+                total = (10 * total) + (next - '0');
+            } else {
+                switch (next) {
+                case '.':
+                case ' ':
+                case '>':
+                case '\r':
+                case '\n':
+                case '\t':
+                    return total;
+                case ')':
+                    if (stopOnParen) {
+                        return total;
+                    }
+                default:
+                    throw new DecodingException(HumanReadableText.ILLEGAL_ARGUMENTS, "Expected a digit but was " + next);
+                }
+            }
             consume();
             next = nextChar();
         }
-        final long currentTotal = (10 * total) + add;
-        switch (next) {
-        case '0':
-            return readDigits(0, currentTotal, false, stopOnParen);
-        case '1':
-            return readDigits(1, currentTotal, false, stopOnParen);
-        case '2':
-            return readDigits(2, currentTotal, false, stopOnParen);
-        case '3':
-            return readDigits(3, currentTotal, false, stopOnParen);
-        case '4':
-            return readDigits(4, currentTotal, false, stopOnParen);
-        case '5':
-            return readDigits(5, currentTotal, false, stopOnParen);
-        case '6':
-            return readDigits(6, currentTotal, false, stopOnParen);
-        case '7':
-            return readDigits(7, currentTotal, false, stopOnParen);
-        case '8':
-            return readDigits(8, currentTotal, false, stopOnParen);
-        case '9':
-            return readDigits(9, currentTotal, false, stopOnParen);
-        case '.':
-        case ' ':
-        case '>':
-        case '\r':
-        case '\n':
-        case '\t':
-            return currentTotal;
-        case ')':
-            if (stopOnParen) {
-                return currentTotal;
-            }
-        default:
-            throw new DecodingException(HumanReadableText.ILLEGAL_ARGUMENTS, "Expected a digit but was " + next);
-        }
     }
 
     /**
@@ -652,28 +755,23 @@ public abstract class ImapRequestLineReader {
             }
         }
         
-        CharacterValidator validator = new MessageSetCharValidator();
-        // Don't fail to parse id ranges which are enclosed by "(..)"
+        nextWordChar();
+        // Ranges are parsed while they are read, so no string needs to be
+        // created. Don't fail to parse id ranges which are enclosed by "(..)"
         // See IMAP-283
-        String nextWord = consumeWord(validator, true);
-
-        int commaPos = nextWord.indexOf(',');
-        if (commaPos == -1) {
-            return new IdRange[] { parseRange(nextWord) };
+        final IdRange first = parseRange();
+        if (nextChar() != ',') {
+            endOfIdRange();
+            return new IdRange[] { first };
         }
 
-        ArrayList<IdRange> rangeList = new ArrayList<IdRange>();
-        int pos = 0;
-        while (commaPos != -1) {
-            String range = nextWord.substring(pos, commaPos);
-            IdRange set = parseRange(range);
-            rangeList.add(set);
-
-            pos = commaPos + 1;
-            commaPos = nextWord.indexOf(',', pos);
+        final List<IdRange> rangeList = new ArrayList<IdRange>();
+        rangeList.add(first);
+        while (nextChar() == ',') {
+            consume();
+            rangeList.add(parseRange());
         }
-        String range = nextWord.substring(pos);
-        rangeList.add(parseRange(range));
+        endOfIdRange();
 
         // merge the ranges to minimize the needed queries.
         // See IMAP-211
@@ -681,60 +779,85 @@ public abstract class ImapRequestLineReader {
         return (IdRange[]) merged.toArray(new IdRange[merged.size()]);
     }
 
-    
+    /**
+     * Check that the message set ends with whitespace or ")"
+     */
+    private void endOfIdRange() throws DecodingException {
+        final char next = nextChar();
+        if (!isWhitespace(next) && next != ')') {
+            throw invalidMessageSet(next);
+        }
+    }
+
     /**
      * Parse a range which use a ":" as delimiter
      * 
-     * @param range
      * @return idRange
      * @throws DecodingException
      */
-    private IdRange parseRange(String range) throws DecodingException {
-        int pos = range.indexOf(':');
-        try {
-            if (pos == -1) {
+    private IdRange parseRange() throws DecodingException {
+        final long val1 = parseUnsignedInteger();
+        if (nextChar() != ':') {
+            // A single "*" returns the last message in mailbox.
+            // See IMAP-289
+            return new IdRange(val1, val1);
+        }
+        consume();
 
-                // Check if its a single "*" and so should return last message
-                // in mailbox. See IMAP-289
-                if (range.length() == 1 && range.charAt(0) == '*') {
-                    return new IdRange(Long.MAX_VALUE, Long.MAX_VALUE);
-                } else {
-                    long value = parseUnsignedInteger(range);
-                    return new IdRange(value);
-                }
-            } else {
-                // Make sure we detect the low and high value
-                // See https://issues.apache.org/jira/browse/IMAP-212
-                long val1 = parseUnsignedInteger(range.substring(0, pos));
-                long val2 = parseUnsignedInteger(range.substring(pos + 1));
-
-                // handle "*:*" ranges. See IMAP-289
-                if (val1 == Long.MAX_VALUE && val2 == Long.MAX_VALUE) {
-                    return new IdRange(Long.MAX_VALUE, Long.MAX_VALUE);
-                } else if (val1 <= val2) {
-                    return new IdRange(val1, val2);
-                } else if (val1 == Long.MAX_VALUE) {
-                    // *:<num> message range must be converted to <num>:*
-                    // See IMAP-290
-                    return new IdRange(val2, Long.MAX_VALUE);
-                } else {
-                    return new IdRange(val2, val1);
-                }
-            }
-        } catch (NumberFormatException e) {
-            throw new DecodingException(HumanReadableText.INVALID_MESSAGESET, "Invalid message set.", e);
+        // Make sure we detect the low and high value
+        // See https://issues.apache.org/jira/browse/IMAP-212
+        final long val2 = parseUnsignedInteger();
+
+        // handle "*:*" ranges. See IMAP-289
+        if (val1 == Long.MAX_VALUE && val2 == Long.MAX_VALUE) {
+            return new IdRange(Long.MAX_VALUE, Long.MAX_VALUE);
+        } else if (val1 <= val2) {
+            return new IdRange(val1, val2);
+        } else if (val1 == Long.MAX_VALUE) {
+            // *:<num> message range must be converted to <num>:*
+            // See IMAP-290
+            return new IdRange(val2, Long.MAX_VALUE);
+        } else {
+            return new IdRange(val2, val1);
         }
     }
 
-    private long parseUnsignedInteger(String value) throws DecodingException {
-        if (value.length() == 1 && value.charAt(0) == '*') {
+    private long parseUnsignedInteger() throws DecodingException {
+        char next = nextChar();
+        if (next == '*') {
+            consume();
+            next = nextChar();
+            if (next == '*' || (next >= '0' && next <= '9')) {
+                throw invalidMessageSet(next);
+            }
             return Long.MAX_VALUE;
-        } else {
-            long number = Long.parseLong(value);
-            if (number < ImapConstants.MIN_NZ_NUMBER || number > ImapConstants.MAX_NZ_NUMBER)
+        }
+        if (next < '0' || next > '9') {
+            throw invalidMessageSet(next);
+        }
+        long number = 0;
+        while (next >= '0' && next <= '9') {
+            number = (10 * number) + (next - '0');
+            if (number > ImapConstants.MAX_NZ_NUMBER) {
                 throw new DecodingException(HumanReadableText.INVALID_MESSAGESET, "Invalid message set. Numbers must be unsigned 32-bit Integers");
-            return number;
+            }
+            consume();
+            next = nextChar();
+        }
+        if (next == '*') {
+            throw invalidMessageSet(next);
+        }
+        if (number < ImapConstants.MIN_NZ_NUMBER) {
+            throw new DecodingException(HumanReadableText.INVALID_MESSAGESET, "Invalid message set. Numbers must be unsigned 32-bit Integers");
+        }
+        return number;
+    }
 
+    private DecodingException invalidMessageSet(char next) {
+        if (isWhitespace(next) || MESSAGE_SET_VALIDATOR.isValid(next) || next == ')') {
+            return new DecodingException(HumanReadableText.INVALID_MESSAGESET, "Invalid message set.");
+        } else {
+            return new DecodingException(HumanReadableText.ILLEGAL_ARGUMENTS, "Invalid character: '" + next + "'");
         }
     }
 
@@ -759,11 +882,21 @@ public abstract class ImapRequestLineReader {
     }
 
     public static class ATOM_CHARValidator implements CharacterValidator {
+
+        /** lookup table of the valid ASCII characters */
+        private static final boolean[] ATOM_CHARS = new boolean[128];
+
+        static {
+            for (char chr = 0x01; chr <= 0x7f; chr++) {
+                ATOM_CHARS[chr] = !isAtomSpecial(chr) && !isListWildcard(chr) && !isQuotedSpecial(chr);
+            }
+        }
+
         public boolean isValid(char chr) {
-            return (isCHAR(chr) && !isAtomSpecial(chr) && !isListWildcard(chr) && !isQuotedSpecial(chr));
+            return chr < 128 && ATOM_CHARS[chr];
         }
 
-        private boolean isAtomSpecial(char chr) {
+        private static boolean isAtomSpecial(char chr) {
             return (chr == '(' || chr == ')' || chr == '{' || chr == ' ' || chr == Character.CONTROL);
         }
     }
@@ -786,6 +919,69 @@ public abstract class ImapRequestLineReader {
         }
     }
 
+    /**
+     * Table of well known words, like command names and fetch items, which
+     * can be looked up from a char array without creating a string. Words are
+     * compared case sensitive, as they are returned as typed by the client.
+     */
+    private static final class KnownWords {
+
+        private static final String[] WORDS = { ImapConstants.APPEND_COMMAND_NAME, ImapConstants.AUTHENTICATE_COMMAND_NAME, ImapConstants.CAPABILITY_COMMAND_NAME, ImapConstants.CHECK_COMMAND_NAME, ImapConstants.CLOSE_COMMAND_NAME, ImapConstants.COMPRESS_COMMAND_NAME, ImapConstants.COPY_COMMAND_NAME, ImapConstants.CREATE_COMMAND_NAME, ImapConstants.DELETE_COMMAND_NAME, ImapConstants.ENABLE_COMMAND_NAME, ImapConstants.EXAMINE_COMMAND_NAME,
+                ImapConstants.EXPUNGE_COMMAND_NAME, ImapConstants.FETCH_COMMAND_NAME, ImapConstants.IDLE_COMMAND_NAME, ImapConstants.LIST_COMMAND_NAME, ImapConstants.LOGIN_COMMAND_NAME, ImapConstants.LOGOUT_COMMAND_NAME, ImapConstants.LSUB_COMMAND_NAME, ImapConstants.NAMESPACE_COMMAND_NAME, ImapConstants.NOOP_COMMAND_NAME, ImapConstants.RENAME_COMMAND_NAME, ImapConstants.SEARCH_COMMAND_NAME,
+                ImapConstants.SELECT_COMMAND_NAME, ImapConstants.STATUS_COMMAND_NAME, ImapConstants.STORE_COMMAND_NAME, ImapConstants.SUBSCRIBE_COMMAND_NAME, ImapConstants.UID_COMMAND_NAME, ImapConstants.UNSELECT_COMMAND_NAME, ImapConstants.UNSUBSCRIBE_COMMAND_NAME, ImapConstants.XLIST_COMMAND_NAME, "INBOX", "FLAGS", "FLAGS.SILENT", "BODY", "BODY.PEEK", "BODYSTRUCTURE", "ENVELOPE", "INTERNALDATE",
+                "RFC822", "RFC822.SIZE", "RFC822.HEADER", "RFC822.TEXT", "MODSEQ", "FAST", "ALL", "FULL", "HEADER", "TEXT", "MESSAGES", "RECENT", "UIDNEXT", "UIDVALIDITY", "UNSEEN", "HIGHESTMODSEQ", "\\Seen", "\\Answered", "\\Flagged", "\\Deleted", "\\Draft", "\\Recent" };
+
+        private static final String[] TABLE = new String[256];
+
+        static {
+            for (int i = 0; i < WORDS.length; i++) {
+                final String word = WORDS[i];
+                int slot = hash(word.toCharArray(), word.length()) & (TABLE.length - 1);
+                while (TABLE[slot] != null) {
+                    slot = (slot + 1) & (TABLE.length - 1);
+                }
+                TABLE[slot] = word;
+            }
+        }
+
+        private static int hash(char[] chars, int length) {
+            int hash = length;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + chars[i];
+            }
+            return hash ^ (hash >>> 16);
+        }
+
+        /**
+         * Return the known word with the given characters
+         * 
+         * @return word, or null if it is not known
+         */
+        public static String lookup(char[] chars, int length) {
+            for (int slot = hash(chars, length) & (TABLE.length - 1);; slot = (slot + 1) & (TABLE.length - 1)) {
+                final String word = TABLE[slot];
+                if (word == null) {
+                    return null;
+                }
+                if (matches(word, chars, length)) {
+                    return word;
+                }
+            }
+        }
+
+        private static boolean matches(String word, char[] chars, int length) {
+            if (word.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (word.charAt(i) != chars[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
     /**
      * Decodes contents of a quoted string. Charset aware. One shot, not thread
      * safe.
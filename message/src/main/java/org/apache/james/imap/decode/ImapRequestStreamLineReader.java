@@ -28,16 +28,53 @@ import org.apache.james.imap.decode.base.EolInputStream;
 import org.apache.james.imap.decode.base.FixedLengthInputStream;
 
 /**
- * {@link ImapRequestLineReader} which use normal IO Streaming
+ * {@link ImapRequestLineReader} which use normal IO Streaming.
+ * 
+ * Bytes are pulled from the underlying {@link InputStream} in bulk and kept in
+ * an internal buffer. Bytes which were read ahead of the current command stay
+ * in this buffer, so an instance should be used for the whole lifetime of a
+ * connection rather than per request.
  */
 public class ImapRequestStreamLineReader extends ImapRequestLineReader {
+
+    /**
+     * Default size of the internal read buffer
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+
     private InputStream input;
 
     private OutputStream output;
 
+    private final byte[] buffer;
+
+    private int position = 0;
+
+    private int limit = 0;
+
     public ImapRequestStreamLineReader(InputStream input, OutputStream output) {
+        this(input, output, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ImapRequestStreamLineReader(InputStream input, OutputStream output, int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive");
+        }
         this.input = input;
         this.output = output;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Return true if this reader reads from the given {@link InputStream} and
+     * writes to the given {@link OutputStream}
+     * 
+     * @param input
+     * @param output
+     * @return isBoundTo
+     */
+    public boolean isBoundTo(InputStream input, OutputStream output) {
+        return this.input == input && this.output == output;
     }
 
     /**
@@ -53,23 +90,44 @@ public class ImapRequestStreamLineReader extends ImapRequestLineReader {
      */
     public char nextChar() throws DecodingException {
         if (!nextSeen) {
-            int next = -1;
-
-            try {
-                next = input.read();
-            } catch (IOException e) {
-                throw new DecodingException(HumanReadableText.SOCKET_IO_FAILURE, "Error reading from stream.", e);
-            }
-            if (next == -1) {
-                throw new DecodingException(HumanReadableText.ILLEGAL_ARGUMENTS, "Unexpected end of stream.");
+            if (position >= limit) {
+                final int read;
+                try {
+                    read = fill();
+                } catch (IOException e) {
+                    throw new DecodingException(HumanReadableText.SOCKET_IO_FAILURE, "Error reading from stream.", e);
+                }
+                if (read == -1) {
+                    throw new DecodingException(HumanReadableText.ILLEGAL_ARGUMENTS, "Unexpected end of stream.");
+                }
             }
 
             nextSeen = true;
-            nextChar = (char) next;
+            nextChar = (char) (buffer[position++] & 0xff);
         }
         return nextChar;
     }
 
+    /**
+     * Refill the internal buffer with as many bytes as the underlying stream
+     * is able to deliver without blocking, but at least one.
+     * 
+     * @return read count of bytes read or -1 if the end of the stream was
+     *         reached
+     * @throws IOException
+     */
+    private int fill() throws IOException {
+        int read;
+        do {
+            read = input.read(buffer, 0, buffer.length);
+        } while (read == 0);
+        if (read > 0) {
+            position = 0;
+            limit = read;
+        }
+        return read;
+    }
+
     /**
      * @see ImapRequestLineReader#read(int, boolean)
      */
@@ -78,7 +136,7 @@ public class ImapRequestStreamLineReader extends ImapRequestLineReader {
         // Unset the next char.
         nextSeen = false;
         nextChar = 0;
-        FixedLengthInputStream in = new FixedLengthInputStream(input, size);
+        final InputStream in = spool(new FixedLengthInputStream(new BufferedInput(), size), size);
         if (extraCRLF) {
             return new EolInputStream(this, in);
         } else {
@@ -101,4 +159,44 @@ public class ImapRequestStreamLineReader extends ImapRequestLineReader {
         }
     }
 
+    /**
+     * {@link InputStream} which first drains the bytes left in the internal
+     * buffer and then reads directly from the underlying stream. Literals are
+     * consumed through it, so no byte gets lost or copied twice.
+     */
+    private final class BufferedInput extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            if (position < limit) {
+                return buffer[position++] & 0xff;
+            }
+            return input.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            final int buffered = limit - position;
+            if (buffered > 0) {
+                final int count = Math.min(buffered, len);
+                System.arraycopy(buffer, position, b, off, count);
+                position += count;
+                return count;
+            }
+            return input.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (limit - position) + input.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Don't do anything to the underlying stream.
+        }
+    }
 }
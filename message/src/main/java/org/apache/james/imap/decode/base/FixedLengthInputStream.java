@@ -59,15 +59,13 @@ public class FixedLengthInputStream extends FilterInputStream {
             return -1;
         }
 
-        if (pos + len >= length) {
-            int readLimit = (int) length - (int) pos;
-            pos = length;
-
-            return super.read(b, off, readLimit);
+        // The underlying stream may return less bytes then requested, so only
+        // count what was really read
+        int readLimit = (int) Math.min(len, length - pos);
+        int i = super.read(b, off, readLimit);
+        if (i > 0) {
+            pos += i;
         }
-
-        int i = super.read(b, off, len);
-        pos += i;
         return i;
 
     }
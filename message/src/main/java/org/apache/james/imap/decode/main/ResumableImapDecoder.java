@@ -0,0 +1,482 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.decode.main;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.james.imap.api.ImapMessage;
+import org.apache.james.imap.api.display.HumanReadableText;
+import org.apache.james.imap.api.process.ImapSession;
+import org.apache.james.imap.decode.DecodingException;
+import org.apache.james.imap.decode.ImapDecoder;
+import org.apache.james.imap.decode.ImapRequestBufferLineReader;
+import org.apache.james.imap.utils.io.LiteralSpool;
+
+/**
+ * Decodes IMAP commands from {@link ByteBuffer} fragments as they arrive from a
+ * non-blocking transport.
+ * 
+ * The received bytes are collected until a complete command, including all
+ * its literals, is available. The partial state (the bytes of the command so
+ * far and the count of literal bytes still missing) is kept between calls, so
+ * no thread needs to block while waiting for more data. The complete command
+ * is then handed to the wrapped {@link ImapDecoder}.
+ * 
+ * Literals which are larger than the threshold of the {@link LiteralSpool}, if
+ * one is given, are written to the spool while they arrive instead of being
+ * kept in memory.
+ * 
+ * A command which exceeds the maximal size is rejected with a
+ * {@link DecodingException}. The bytes of it which are still to come, the
+ * rest of its line and all bytes of non-synchronizing literals it announces,
+ * are skipped by the following calls, so they are never decoded as commands
+ * of their own.
+ * 
+ * Instances hold per connection state and are not thread safe. The wrapped
+ * {@link ImapDecoder} may be shared.
+ */
+public class ResumableImapDecoder {
+
+    /**
+     * Default maximal size of one command, including its literals
+     */
+    public final static int DEFAULT_MAX_COMMAND_SIZE = 64 * 1024 * 1024;
+
+    private final static int INITIAL_FRAME_SIZE = 256;
+
+    /** enough bytes to hold "{" number "+}" CRLF */
+    private final static int TAIL_SIZE = 32;
+
+    private final ImapDecoder decoder;
+
+    private final ContinuationRequester requester;
+
+    private final int maxCommandSize;
+
+    /** bytes of the not yet complete command */
+    private byte[] frame;
+
+    private int frameLength = 0;
+
+    /** start of the current line in the frame */
+    private int lineStart = 0;
+
+    /** count of literal bytes which are still missing */
+    private int literalRemaining = 0;
+
+    private final LiteralSpool literalSpool;
+
+    /** spool of the current literal, null if it is kept in the frame */
+    private LiteralSpool.Spool spool;
+
+    /** literals of the command which were spooled, by their frame position */
+    private Map<Integer, InputStream> spooledLiterals;
+
+    /** total size of the literals of the command which were spooled */
+    private long spooledSize = 0;
+
+    /** count of literal bytes of a rejected command which are still skipped */
+    private long discardLiteral = 0;
+
+    /** true while the rest of the line of a rejected command is skipped */
+    private boolean discardLine = false;
+
+    /** last bytes of the skipped line, to find a literal it announces */
+    private final byte[] discardTail = new byte[TAIL_SIZE];
+
+    private int discardTailLength = 0;
+
+    public ResumableImapDecoder(final ImapDecoder decoder, final ContinuationRequester requester) {
+        this(decoder, requester, DEFAULT_MAX_COMMAND_SIZE);
+    }
+
+    public ResumableImapDecoder(final ImapDecoder decoder, final ContinuationRequester requester, final int maxCommandSize) {
+        this(decoder, requester, maxCommandSize, null);
+    }
+
+    /**
+     * @param decoder
+     *            not null
+     * @param requester
+     *            not null
+     * @param maxCommandSize
+     *            maximal size of one command, including its literals
+     * @param literalSpool
+     *            spool for large literals, or null to keep all literals in
+     *            memory
+     */
+    public ResumableImapDecoder(final ImapDecoder decoder, final ContinuationRequester requester, final int maxCommandSize, final LiteralSpool literalSpool) {
+        this.decoder = decoder;
+        this.requester = requester;
+        this.maxCommandSize = maxCommandSize;
+        this.literalSpool = literalSpool;
+    }
+
+    /**
+     * Consumes bytes from the given fragment until one command is complete. The
+     * position of the fragment is moved behind the consumed bytes, so any bytes
+     * of pipelined commands are left in it. Callers should therefore call this
+     * method until it returns <code>null</code>. This also applies after a
+     * {@link DecodingException}, the remaining bytes of the rejected command
+     * are skipped then.
+     * 
+     * @param fragment
+     *            received bytes, not null
+     * @param session
+     *            not null
+     * @return the decoded message or <code>null</code> if all bytes of the
+     *         fragment were consumed without completing a command
+     * @throws DecodingException
+     *             if the command exceeds the maximal size. The partial command
+     *             is discarded
+     */
+    public ImapMessage decode(ByteBuffer fragment, ImapSession session) throws DecodingException {
+        while (fragment.hasRemaining()) {
+            if (discardLiteral > 0 || discardLine) {
+                discard(fragment);
+            } else if (literalRemaining > 0) {
+                final int count = Math.min(fragment.remaining(), literalRemaining);
+                if (spool == null) {
+                    append(fragment, count);
+                } else {
+                    spool(fragment, count);
+                }
+                literalRemaining -= count;
+                if (literalRemaining == 0) {
+                    lineStart = frameLength;
+                    if (spool != null) {
+                        finishSpool();
+                    }
+                }
+            } else {
+                final int eol = indexOfLineFeed(fragment);
+                if (eol == -1) {
+                    append(fragment, fragment.remaining());
+                } else {
+                    append(fragment, eol - fragment.position() + 1);
+                    if (!lineEndsWithLiteral()) {
+                        return complete(session);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return true if bytes of a not yet complete command were received
+     * 
+     * @return decoding
+     */
+    public boolean isDecoding() {
+        return frameLength > 0 || discardLiteral > 0 || discardLine;
+    }
+
+    /**
+     * Discards all bytes of the not yet complete command. Bytes of a rejected
+     * command are still skipped
+     */
+    public void reset() {
+        if (spool != null) {
+            spool.discard();
+            spool = null;
+        }
+        closeSpooledLiterals();
+        frame = null;
+        frameLength = 0;
+        lineStart = 0;
+        literalRemaining = 0;
+        spooledSize = 0;
+    }
+
+    /**
+     * Skips bytes of a rejected command. Once its line ends, the literal the
+     * line announces is skipped too, unless it is synchronized: the client
+     * does not send it without a continuation request.
+     */
+    private void discard(ByteBuffer fragment) {
+        if (discardLiteral > 0) {
+            final int count = (int) Math.min(fragment.remaining(), discardLiteral);
+            fragment.position(fragment.position() + count);
+            discardLiteral -= count;
+            if (discardLiteral == 0) {
+                // the command goes on after the literal
+                discardLine = true;
+                discardTailLength = 0;
+            }
+        } else {
+            final int eol = indexOfLineFeed(fragment);
+            final int end = eol == -1 ? fragment.limit() : eol + 1;
+            final int count = Math.min(end - fragment.position(), TAIL_SIZE);
+            fragment.position(end - count);
+            final int kept = Math.min(discardTailLength, TAIL_SIZE - count);
+            System.arraycopy(discardTail, discardTailLength - kept, discardTail, 0, kept);
+            fragment.get(discardTail, kept, count);
+            discardTailLength = kept + count;
+            if (eol != -1) {
+                discardLine = false;
+                final int open = indexOfLiteral(discardTail, 0, discardTailLength);
+                if (open != -1 && !isSynchronized(discardTail, open)) {
+                    discardLiteral = literalSize(discardTail, open);
+                    discardLine = discardLiteral == 0;
+                }
+                discardTailLength = 0;
+            }
+        }
+    }
+
+    /**
+     * Rejects the command while its line is received. The rest of the line is
+     * skipped
+     */
+    private void rejectLine() {
+        discardTailLength = Math.min(frameLength - lineStart, TAIL_SIZE);
+        if (discardTailLength > 0) {
+            System.arraycopy(frame, frameLength - discardTailLength, discardTail, 0, discardTailLength);
+        }
+        reset();
+        discardLine = true;
+    }
+
+    /**
+     * Rejects the command while one of its literals is received. The missing
+     * bytes of the literal and the rest of the command are skipped
+     * 
+     * @param remaining
+     *            count of literal bytes which are still to come
+     */
+    private void rejectLiteral(long remaining) {
+        reset();
+        discardLiteral = remaining;
+        discardTailLength = 0;
+        discardLine = remaining == 0;
+    }
+
+    private ImapMessage complete(ImapSession session) {
+        final Map<Integer, InputStream> literals = spooledLiterals;
+        final ImapRequestBufferLineReader reader = new ImapRequestBufferLineReader(frame, 0, frameLength, literals);
+
+        // The frame and the spooled literals are handed over to the reader, as
+        // literal streams of the message may still reference them
+        spooledLiterals = null;
+        reset();
+        final ImapMessage message = decoder.decode(reader, session);
+        if (literals != null) {
+            // delete the spooled literals which were not used by the message
+            spooledLiterals = literals;
+            closeSpooledLiterals();
+        }
+        return message;
+    }
+
+    private void spool(ByteBuffer fragment, int count) throws DecodingException {
+        final int limit = fragment.limit();
+        final int start = fragment.position();
+        fragment.limit(start + count);
+        try {
+            spool.write(fragment);
+        } catch (IOException e) {
+            rejectLiteral(literalRemaining - (fragment.position() - start));
+            throw new DecodingException(HumanReadableText.SOCKET_IO_FAILURE, "Unable to spool literal", e);
+        } finally {
+            fragment.limit(limit);
+        }
+    }
+
+    private void finishSpool() throws DecodingException {
+        final LiteralSpool.Spool finished = spool;
+        spool = null;
+        try {
+            if (spooledLiterals == null) {
+                spooledLiterals = new HashMap<Integer, InputStream>();
+            }
+            spooledLiterals.put(frameLength, finished.getInputStream());
+        } catch (IOException e) {
+            finished.discard();
+            rejectLiteral(0);
+            throw new DecodingException(HumanReadableText.SOCKET_IO_FAILURE, "Unable to spool literal", e);
+        }
+    }
+
+    private void closeSpooledLiterals() {
+        if (spooledLiterals != null) {
+            for (final InputStream in : spooledLiterals.values()) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+            spooledLiterals = null;
+        }
+    }
+
+    private int indexOfLineFeed(ByteBuffer fragment) {
+        final int limit = fragment.limit();
+        for (int i = fragment.position(); i < limit; i++) {
+            if (fragment.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks if the line just completed announces a literal, in the format
+     * "{" number ["+"] "}" CRLF. If so the count of literal bytes is remembered
+     * and a continuation is requested for synchronized literals.
+     */
+    private boolean lineEndsWithLiteral() throws DecodingException {
+        final int open = indexOfLiteral(frame, lineStart, frameLength);
+        if (open == -1) {
+            lineStart = frameLength;
+            return false;
+        }
+        final long size = literalSize(frame, open);
+        final boolean synchronizedLiteral = isSynchronized(frame, open);
+        if (frameLength + spooledSize + size > maxCommandSize) {
+            // a synchronized literal is not sent without continuation request
+            if (synchronizedLiteral) {
+                reset();
+            } else {
+                rejectLiteral(size);
+            }
+            throw new DecodingException(HumanReadableText.ILLEGAL_ARGUMENTS, "Literal exceeds the maximal command size.");
+        }
+
+        literalRemaining = (int) size;
+        lineStart = frameLength;
+        if (literalSpool != null && literalSpool.isSpooled(size)) {
+            try {
+                spool = literalSpool.open();
+            } catch (IOException e) {
+                if (synchronizedLiteral) {
+                    reset();
+                } else {
+                    rejectLiteral(size);
+                }
+                throw new DecodingException(HumanReadableText.SOCKET_IO_FAILURE, "Unable to spool literal", e);
+            }
+            spooledSize += size;
+        }
+        if (synchronizedLiteral) {
+            requester.requestContinuation();
+        }
+        return true;
+    }
+
+    /**
+     * Return the position of the "{" of the literal announced at the end of
+     * the given line, or -1 if the line announces none
+     * 
+     * @param bytes
+     *            not null
+     * @param start
+     *            start of the line
+     * @param end
+     *            end of the line, behind its line feed
+     * @return position
+     */
+    private static int indexOfLiteral(byte[] bytes, int start, int end) {
+        int i = end - 2;
+        if (i >= start && bytes[i] == '\r') {
+            i--;
+        }
+        if (i < start || bytes[i] != '}') {
+            return -1;
+        }
+        i--;
+        if (i >= start && bytes[i] == '+') {
+            i--;
+        }
+        final int lastDigit = i;
+        while (i >= start && bytes[i] >= '0' && bytes[i] <= '9') {
+            i--;
+        }
+        if (i == lastDigit || i < start || bytes[i] != '{') {
+            return -1;
+        }
+        return i;
+    }
+
+    /**
+     * Return the size of the literal announced at the given position. Sizes
+     * which do not fit into a long are returned as {@link Long#MAX_VALUE}
+     */
+    private static long literalSize(byte[] bytes, int open) {
+        long size = 0;
+        for (int i = open + 1; bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+            if (size > (Long.MAX_VALUE - 9) / 10) {
+                size = Long.MAX_VALUE;
+            } else {
+                size = size * 10 + (bytes[i] - '0');
+            }
+        }
+        return size;
+    }
+
+    private static boolean isSynchronized(byte[] bytes, int open) {
+        int i = open + 1;
+        while (bytes[i] >= '0' && bytes[i] <= '9') {
+            i++;
+        }
+        return bytes[i] != '+';
+    }
+
+    private void append(ByteBuffer fragment, int count) throws DecodingException {
+        final int required = frameLength + count;
+        if (required > maxCommandSize) {
+            if (literalRemaining > 0) {
+                rejectLiteral(literalRemaining);
+            } else {
+                rejectLine();
+            }
+            throw new DecodingException(HumanReadableText.ILLEGAL_ARGUMENTS, "Command exceeds the maximal command size.");
+        }
+        if (frame == null) {
+            frame = new byte[Math.max(INITIAL_FRAME_SIZE, required)];
+        } else if (required > frame.length) {
+            final long expanded = Math.max(required + literalRemaining, 2L * frame.length);
+            final byte[] bigger = new byte[(int) Math.min(expanded, maxCommandSize)];
+            System.arraycopy(frame, 0, bigger, 0, frameLength);
+            frame = bigger;
+        }
+        fragment.get(frame, frameLength, count);
+        frameLength = required;
+    }
+
+    /**
+     * Sends a command continuation request to the client. Implementations
+     * must not block.
+     */
+    public interface ContinuationRequester {
+
+        /**
+         * Requests the client to send the announced synchronized literal
+         * 
+         * @throws DecodingException
+         */
+        void requestContinuation() throws DecodingException;
+    }
+}
@@ -250,14 +250,7 @@ public class FetchCommandParser extends AbstractUidCommandParser {
     }
 
     private String readWord(ImapRequestLineReader request, String terminator) throws DecodingException {
-        StringBuffer buf = new StringBuffer();
-        char next = request.nextChar();
-        while (terminator.indexOf(next) == -1) {
-            buf.append(next);
-            request.consume();
-            next = request.nextChar();
-        }
-        return buf.toString();
+        return request.consumeUntil(terminator);
     }
 
     private char nextNonSpaceChar(ImapRequestLineReader request) throws DecodingException {
@@ -19,9 +19,6 @@
 
 package org.apache.james.imap.decode.parser;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import org.apache.james.imap.api.ImapConstants;
 import org.apache.james.imap.api.message.response.StatusResponseFactory;
 import org.apache.james.imap.decode.DelegatingImapCommandParser;
@@ -31,101 +28,90 @@ import org.apache.james.imap.decode.MessagingImapCommandParser;
 
 /**
  * A factory for ImapCommand instances, provided based on the command name.
- * Command instances are created on demand, when first accessed.
+ * The parsers are stateless, so one instance of each is created up front and
+ * shared by all sessions. Lookup is case-insensitive and works on the
+ * characters of the command name, without creating an upper case copy.
  */
 public class ImapParserFactory implements ImapCommandParserFactory {
-    private Map<String, Class<?>> _imapCommands;
+    private final ParserTable _imapCommands;
 
     private final StatusResponseFactory statusResponseFactory;
 
     public ImapParserFactory(final StatusResponseFactory statusResponseFactory) {
         this.statusResponseFactory = statusResponseFactory;
-        _imapCommands = new HashMap<String, Class<?>>();
+        _imapCommands = new ParserTable();
 
         // Commands valid in any state
         // CAPABILITY, NOOP, and LOGOUT
-        _imapCommands.put(ImapConstants.CAPABILITY_COMMAND_NAME, CapabilityCommandParser.class);
-        _imapCommands.put(ImapConstants.NOOP_COMMAND_NAME, NoopCommandParser.class);
-        _imapCommands.put(ImapConstants.LOGOUT_COMMAND_NAME, LogoutCommandParser.class);
+        register(ImapConstants.CAPABILITY_COMMAND_NAME, new CapabilityCommandParser());
+        register(ImapConstants.NOOP_COMMAND_NAME, new NoopCommandParser());
+        register(ImapConstants.LOGOUT_COMMAND_NAME, new LogoutCommandParser());
 
         // Commands valid in NON_AUTHENTICATED state.
         // AUTHENTICATE and LOGIN
-        _imapCommands.put(ImapConstants.AUTHENTICATE_COMMAND_NAME, AuthenticateCommandParser.class);
-        _imapCommands.put(ImapConstants.LOGIN_COMMAND_NAME, LoginCommandParser.class);
+        register(ImapConstants.AUTHENTICATE_COMMAND_NAME, new AuthenticateCommandParser());
+        register(ImapConstants.LOGIN_COMMAND_NAME, new LoginCommandParser());
 
         // Commands valid in AUTHENTICATED or SELECTED state.
         // RFC2060: SELECT, EXAMINE, CREATE, DELETE, RENAME, SUBSCRIBE,
         // UNSUBSCRIBE, LIST, LSUB, STATUS, and APPEND
-        _imapCommands.put(ImapConstants.SELECT_COMMAND_NAME, SelectCommandParser.class);
-        _imapCommands.put(ImapConstants.EXAMINE_COMMAND_NAME, ExamineCommandParser.class);
-        _imapCommands.put(ImapConstants.CREATE_COMMAND_NAME, CreateCommandParser.class);
-        _imapCommands.put(ImapConstants.DELETE_COMMAND_NAME, DeleteCommandParser.class);
-        _imapCommands.put(ImapConstants.RENAME_COMMAND_NAME, RenameCommandParser.class);
-        _imapCommands.put(ImapConstants.SUBSCRIBE_COMMAND_NAME, SubscribeCommandParser.class);
-        _imapCommands.put(ImapConstants.UNSUBSCRIBE_COMMAND_NAME, UnsubscribeCommandParser.class);
-        _imapCommands.put(ImapConstants.LIST_COMMAND_NAME, ListCommandParser.class);
-        _imapCommands.put(ImapConstants.XLIST_COMMAND_NAME, XListCommandParser.class);
-        _imapCommands.put(ImapConstants.LSUB_COMMAND_NAME, LsubCommandParser.class);
-        _imapCommands.put(ImapConstants.STATUS_COMMAND_NAME, StatusCommandParser.class);
-        _imapCommands.put(ImapConstants.APPEND_COMMAND_NAME, AppendCommandParser.class);
+        register(ImapConstants.SELECT_COMMAND_NAME, new SelectCommandParser());
+        register(ImapConstants.EXAMINE_COMMAND_NAME, new ExamineCommandParser());
+        register(ImapConstants.CREATE_COMMAND_NAME, new CreateCommandParser());
+        register(ImapConstants.DELETE_COMMAND_NAME, new DeleteCommandParser());
+        register(ImapConstants.RENAME_COMMAND_NAME, new RenameCommandParser());
+        register(ImapConstants.SUBSCRIBE_COMMAND_NAME, new SubscribeCommandParser());
+        register(ImapConstants.UNSUBSCRIBE_COMMAND_NAME, new UnsubscribeCommandParser());
+        register(ImapConstants.LIST_COMMAND_NAME, new ListCommandParser());
+        register(ImapConstants.XLIST_COMMAND_NAME, new XListCommandParser());
+        register(ImapConstants.LSUB_COMMAND_NAME, new LsubCommandParser());
+        register(ImapConstants.STATUS_COMMAND_NAME, new StatusCommandParser());
+        register(ImapConstants.APPEND_COMMAND_NAME, new AppendCommandParser());
 
         // RFC2342 NAMESPACE
-        _imapCommands.put(ImapConstants.NAMESPACE_COMMAND_NAME, NamespaceCommandParser.class);
+        register(ImapConstants.NAMESPACE_COMMAND_NAME, new NamespaceCommandParser());
 
         // RFC4314 GETACL, SETACL, DELETEACL, LISTRIGHTS, MYRIGHTS
-        _imapCommands.put(ImapConstants.GETACL_COMMAND_NAME, GetACLCommandParser.class );
-        _imapCommands.put(ImapConstants.SETACL_COMMAND_NAME, SetACLCommandParser.class );
-        _imapCommands.put(ImapConstants.DELETEACL_COMMAND_NAME, DeleteACLCommandParser.class );
-        _imapCommands.put(ImapConstants.LISTRIGHTS_COMMAND_NAME, ListRightsCommandParser.class );
-        _imapCommands.put(ImapConstants.MYRIGHTS_COMMAND_NAME, MyRightsCommandParser.class );
+        register(ImapConstants.GETACL_COMMAND_NAME, new GetACLCommandParser());
+        register(ImapConstants.SETACL_COMMAND_NAME, new SetACLCommandParser());
+        register(ImapConstants.DELETEACL_COMMAND_NAME, new DeleteACLCommandParser());
+        register(ImapConstants.LISTRIGHTS_COMMAND_NAME, new ListRightsCommandParser());
+        register(ImapConstants.MYRIGHTS_COMMAND_NAME, new MyRightsCommandParser());
 
         // Commands only valid in SELECTED state.
         // CHECK, CLOSE, EXPUNGE, SEARCH, FETCH, STORE, COPY, UID and IDLE
-        _imapCommands.put(ImapConstants.CHECK_COMMAND_NAME, CheckCommandParser.class);
-        _imapCommands.put(ImapConstants.CLOSE_COMMAND_NAME, CloseCommandParser.class);
-        _imapCommands.put(ImapConstants.EXPUNGE_COMMAND_NAME, ExpungeCommandParser.class);
-        _imapCommands.put(ImapConstants.COPY_COMMAND_NAME, CopyCommandParser.class);
-        _imapCommands.put(ImapConstants.SEARCH_COMMAND_NAME, SearchCommandParser.class);
-        _imapCommands.put(ImapConstants.FETCH_COMMAND_NAME, FetchCommandParser.class);
-        _imapCommands.put(ImapConstants.STORE_COMMAND_NAME, StoreCommandParser.class);
-        _imapCommands.put(ImapConstants.UID_COMMAND_NAME, UidCommandParser.class);
-        _imapCommands.put(ImapConstants.IDLE_COMMAND_NAME, IdleCommandParser.class);
-        _imapCommands.put(ImapConstants.STARTTLS, StartTLSCommandParser.class);
+        register(ImapConstants.CHECK_COMMAND_NAME, new CheckCommandParser());
+        register(ImapConstants.CLOSE_COMMAND_NAME, new CloseCommandParser());
+        register(ImapConstants.EXPUNGE_COMMAND_NAME, new ExpungeCommandParser());
+        register(ImapConstants.COPY_COMMAND_NAME, new CopyCommandParser());
+        register(ImapConstants.SEARCH_COMMAND_NAME, new SearchCommandParser());
+        register(ImapConstants.FETCH_COMMAND_NAME, new FetchCommandParser());
+        register(ImapConstants.STORE_COMMAND_NAME, new StoreCommandParser());
+        register(ImapConstants.UID_COMMAND_NAME, new UidCommandParser());
+        register(ImapConstants.IDLE_COMMAND_NAME, new IdleCommandParser());
+        register(ImapConstants.STARTTLS, new StartTLSCommandParser());
 
         // RFC3691
-        _imapCommands.put(ImapConstants.UNSELECT_COMMAND_NAME, UnselectCommandParser.class);
+        register(ImapConstants.UNSELECT_COMMAND_NAME, new UnselectCommandParser());
 
         // RFC4978
-        _imapCommands.put(ImapConstants.COMPRESS_COMMAND_NAME, CompressCommandParser.class);
+        register(ImapConstants.COMPRESS_COMMAND_NAME, new CompressCommandParser());
         
-        _imapCommands.put(ImapConstants.ENABLE_COMMAND_NAME, EnableCommandParser.class);
+        register(ImapConstants.ENABLE_COMMAND_NAME, new EnableCommandParser());
+
 
+    }
 
+    private void register(String commandName, ImapCommandParser parser) {
+        initialiseParser(parser);
+        _imapCommands.put(commandName, parser);
     }
 
     /**
      * @see org.apache.james.imap.decode.ImapCommandParserFactory#getParser(java.lang.String)
      */
     public ImapCommandParser getParser(String commandName) {
-        Class<?> cmdClass = (Class<?>) _imapCommands.get(commandName.toUpperCase());
-
-        if (cmdClass == null) {
-            return null;
-        } else {
-            return createCommand(cmdClass);
-        }
-    }
-
-    private ImapCommandParser createCommand(Class<?> commandClass) {
-        try {
-            ImapCommandParser cmd = (ImapCommandParser) commandClass.newInstance();
-            initialiseParser(cmd);
-            return cmd;
-        } catch (Exception e) {
-            // TODO: would probably be better to manage this in protocol
-            // TODO: this runtime will produce a nasty disconnect for the client
-            throw new RuntimeException("Could not create command instance: " + commandClass.getName(), e);
-        }
+        return _imapCommands.get(commandName);
     }
 
     protected void initialiseParser(ImapCommandParser cmd) {
@@ -140,4 +126,86 @@ public class ImapParserFactory implements ImapCommandParserFactory {
         }
     }
 
+    /**
+     * Open addressing hash table which maps upper case command names to
+     * parsers. Hashing and comparison fold ASCII lower case letters, so the
+     * looked up name can be used as received.
+     */
+    private static final class ParserTable {
+        private String[] names = new String[64];
+
+        private ImapCommandParser[] parsers = new ImapCommandParser[64];
+
+        private int size = 0;
+
+        public void put(String name, ImapCommandParser parser) {
+            if ((size + 1) * 2 > names.length) {
+                resize();
+            }
+            int index = indexOf(name);
+            if (names[index] == null) {
+                size++;
+            }
+            names[index] = name;
+            parsers[index] = parser;
+        }
+
+        public ImapCommandParser get(CharSequence name) {
+            final int index = indexOf(name);
+            if (names[index] == null) {
+                return null;
+            }
+            return parsers[index];
+        }
+
+        private int indexOf(CharSequence name) {
+            final int mask = names.length - 1;
+            int index = hashIgnoreCase(name) & mask;
+            while (names[index] != null && !equalsIgnoreCase(names[index], name)) {
+                index = (index + 1) & mask;
+            }
+            return index;
+        }
+
+        private void resize() {
+            final String[] oldNames = names;
+            final ImapCommandParser[] oldParsers = parsers;
+            names = new String[oldNames.length * 2];
+            parsers = new ImapCommandParser[oldNames.length * 2];
+            size = 0;
+            for (int i = 0; i < oldNames.length; i++) {
+                if (oldNames[i] != null) {
+                    put(oldNames[i], oldParsers[i]);
+                }
+            }
+        }
+
+        private static int hashIgnoreCase(CharSequence name) {
+            int hash = 0;
+            for (int i = 0; i < name.length(); i++) {
+                hash = 31 * hash + upperCase(name.charAt(i));
+            }
+            return hash ^ (hash >>> 16);
+        }
+
+        private static boolean equalsIgnoreCase(String upperCaseName, CharSequence name) {
+            final int length = upperCaseName.length();
+            if (length != name.length()) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (upperCaseName.charAt(i) != upperCase(name.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static char upperCase(char c) {
+            if (c >= 'a' && c <= 'z') {
+                return (char) (c - ('a' - 'A'));
+            }
+            return c;
+        }
+    }
 }
@@ -25,6 +25,7 @@ import org.apache.james.imap.api.process.ImapSession;
 import org.apache.james.imap.decode.ImapRequestLineReader;
 import org.apache.james.imap.decode.DecodingException;
 import org.apache.james.imap.decode.ImapRequestLineReader.ATOM_CHARValidator;
+import org.apache.james.imap.decode.ImapRequestLineReader.CharacterValidator;
 import org.apache.james.imap.message.request.ListRequest;
 
 /**
@@ -55,11 +56,13 @@ public class ListCommandParser extends AbstractUidCommandParser {
         case '{':
             return request.consumeLiteral(null);
         default:
-            return request.consumeWord(new ListCharValidator());
+            return request.consumeWord(LIST_CHAR_VALIDATOR);
         }
     }
 
-    private class ListCharValidator extends ATOM_CHARValidator {
+    private static final CharacterValidator LIST_CHAR_VALIDATOR = new ListCharValidator();
+
+    private static class ListCharValidator extends ATOM_CHARValidator {
         public boolean isValid(char chr) {
             if (ImapRequestLineReader.isListWildcard(chr)) {
                 return true;
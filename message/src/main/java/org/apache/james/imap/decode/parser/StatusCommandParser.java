@@ -34,6 +34,9 @@ import org.apache.james.imap.message.request.StatusRequest;
  * Parse STATUS commands
  */
 public class StatusCommandParser extends AbstractImapCommandParser {
+
+    private static final CharacterValidator NOOP_VALIDATOR = new ImapRequestLineReader.NoopCharValidator();
+
     public StatusCommandParser() {
         super(ImapCommand.authenticatedStateCommand(ImapConstants.STATUS_COMMAND_NAME));
     }
@@ -43,7 +46,7 @@ public class StatusCommandParser extends AbstractImapCommandParser {
 
         request.nextWordChar();
         request.consumeChar('(');
-        CharacterValidator validator = new ImapRequestLineReader.NoopCharValidator();
+        CharacterValidator validator = NOOP_VALIDATOR;
         String nextWord = request.consumeWord(validator);
 
         while (!nextWord.endsWith(")")) {
@@ -37,6 +37,8 @@ import org.apache.james.imap.message.request.StoreRequest;
 public class StoreCommandParser extends AbstractUidCommandParser {
 
     private final static byte[] UNCHANGEDSINCE = "UNCHANGEDSINCE".getBytes();
+
+    private final static CharacterValidator NOOP_VALIDATOR = new ImapRequestLineReader.NoopCharValidator();
     
     public StoreCommandParser() {
         super(ImapCommand.selectedStateCommand(ImapConstants.STORE_COMMAND_NAME));
@@ -84,7 +86,7 @@ public class StoreCommandParser extends AbstractUidCommandParser {
             sign = null;
         }
 
-        String directive = request.consumeWord(new ImapRequestLineReader.NoopCharValidator());
+        String directive = request.consumeWord(NOOP_VALIDATOR);
         if ("FLAGS".equalsIgnoreCase(directive)) {
             silent = false;
         } else if ("FLAGS.SILENT".equalsIgnoreCase(directive)) {
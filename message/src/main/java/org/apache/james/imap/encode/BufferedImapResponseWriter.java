@@ -0,0 +1,62 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.encode;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ * {@link ImapResponseWriter} which can write a part of an array and holds
+ * back bytes until it is flushed.
+ * </p>
+ * <p>
+ * The {@link ImapResponseComposer} hands its buffer to such writers without
+ * copying it and flushes them before waiting on the client. Plain
+ * {@link ImapResponseWriter}'s get a copy of every response line and are
+ * expected to write it through.
+ * </p>
+ */
+public interface BufferedImapResponseWriter extends ImapResponseWriter {
+
+    /**
+     * Write a part of a byte[] to the client. The content of the array may
+     * get changed once this method returns, so implementations must not keep
+     * a reference to it.
+     * 
+     * @param buffer
+     *            <code>byte array</code>, not null
+     * @param offset
+     *            offset of the first byte to write
+     * @param length
+     *            count of bytes to write
+     * @throws IOException
+     */
+    void write(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Make sure everything written so far is sent to the client. Writers
+     * are free to hold back bytes until then, so this must be called before
+     * waiting on the client, for example after a continuation request.
+     * 
+     * @throws IOException
+     */
+    void flush() throws IOException;
+
+}
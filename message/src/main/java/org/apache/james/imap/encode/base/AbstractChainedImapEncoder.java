@@ -67,7 +67,18 @@ abstract public class AbstractChainedImapEncoder implements ImapEncoder {
     }
 
     /**
-     * Is the given message acceptable?
+     * Return the next {@link ImapEncoder} in the chain
+     * 
+     * @return next, not null
+     */
+    protected final ImapEncoder getNext() {
+        return next;
+    }
+
+    /**
+     * Is the given message acceptable? The decision must only depend on the
+     * class of the message, as {@link DispatchingImapEncoder} caches it per
+     * class.
      * 
      * @param message
      *            <code>ImapMessage</code>, not null
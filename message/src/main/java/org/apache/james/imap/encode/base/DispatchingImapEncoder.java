@@ -0,0 +1,94 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.encode.base;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.james.imap.api.ImapMessage;
+import org.apache.james.imap.api.process.ImapSession;
+import org.apache.james.imap.encode.ImapEncoder;
+import org.apache.james.imap.encode.ImapResponseComposer;
+
+/**
+ * {@link ImapEncoder} which routes each response straight to the
+ * {@link AbstractChainedImapEncoder} of a chain which accepts it, instead of
+ * letting the response walk down the chain.
+ * 
+ * The chain is walked once when this encoder is created. The encoder
+ * accepting a response class is looked up on first use and cached, so every
+ * later response of this class costs one lookup. Walking stops at the first
+ * encoder which is no {@link AbstractChainedImapEncoder}; responses not
+ * accepted before are handed to it, so custom encoders can still be placed
+ * anywhere in the chain.
+ */
+public class DispatchingImapEncoder implements ImapEncoder {
+
+    private final AbstractChainedImapEncoder[] encoders;
+
+    private final ImapEncoder chainEnd;
+
+    private final ConcurrentMap<Class<?>, ImapEncoder> encodersByClass = new ConcurrentHashMap<Class<?>, ImapEncoder>();
+
+    /**
+     * Constructs a dispatching <code>ImapEncoder</code>.
+     * 
+     * @param chain
+     *            first <code>ImapEncoder</code> of the chain, not null
+     */
+    public DispatchingImapEncoder(final ImapEncoder chain) {
+        final List<AbstractChainedImapEncoder> chained = new ArrayList<AbstractChainedImapEncoder>();
+        ImapEncoder encoder = chain;
+        while (encoder instanceof AbstractChainedImapEncoder) {
+            final AbstractChainedImapEncoder chainedEncoder = (AbstractChainedImapEncoder) encoder;
+            chained.add(chainedEncoder);
+            encoder = chainedEncoder.getNext();
+        }
+        this.encoders = chained.toArray(new AbstractChainedImapEncoder[chained.size()]);
+        this.chainEnd = encoder;
+    }
+
+    /**
+     * @see
+     * org.apache.james.imap.encode.ImapEncoder#encode(org.apache.james.imap.api.ImapMessage, org.apache.james.imap.encode.ImapResponseComposer,
+     * org.apache.james.imap.api.process.ImapSession)
+     */
+    public void encode(ImapMessage message, ImapResponseComposer composer, ImapSession session) throws IOException {
+        ImapEncoder encoder = encodersByClass.get(message.getClass());
+        if (encoder == null) {
+            encoder = lookup(message);
+            encodersByClass.putIfAbsent(message.getClass(), encoder);
+        }
+        encoder.encode(message, composer, session);
+    }
+
+    private ImapEncoder lookup(ImapMessage message) {
+        for (int i = 0; i < encoders.length; i++) {
+            final AbstractChainedImapEncoder encoder = encoders[i];
+            if (encoder.isAcceptable(message)) {
+                return encoder;
+            }
+        }
+        return chainEnd;
+    }
+}
@@ -20,7 +20,6 @@
 package org.apache.james.imap.encode.base;
 
 import java.io.IOException;
-import java.nio.charset.Charset;
 
 import javax.mail.Flags;
 
@@ -28,6 +27,7 @@ import org.apache.james.imap.api.ImapCommand;
 import org.apache.james.imap.api.ImapConstants;
 import org.apache.james.imap.api.display.CharsetUtil;
 import org.apache.james.imap.api.message.IdRange;
+import org.apache.james.imap.encode.BufferedImapResponseWriter;
 import org.apache.james.imap.encode.ImapResponseComposer;
 import org.apache.james.imap.encode.ImapResponseWriter;
 import org.apache.james.imap.message.response.Literal;
@@ -44,21 +44,27 @@ public class ImapResponseComposerImpl implements ImapConstants, ImapResponseComp
     public static final String FAILED = "failed.";
     private static final int LOWER_CASE_OFFSET = 'a' - 'A';
     public final static int DEFAULT_BUFFER_SIZE = 2048;
-    
-    
+
+    private static final byte[] LINE_END_BYTES = { '\r', '\n' };
+
     private final ImapResponseWriter writer;
 
-    private final FastByteArrayOutputStream buffer;
+    private final ResponseBuffer buffer;
 
-    private final Charset usAscii;
+    /** scratch space for formatting numbers */
+    private final byte[] digits = new byte[20];
 
     private boolean skipNextSpace;
 
+    /**
+     * Creates a composer which writes every completed response line to the
+     * given writer. The internal buffer is reused for every line, so an
+     * instance can be kept for the whole connection.
+     */
     public ImapResponseComposerImpl(final ImapResponseWriter writer, int bufferSize) {
         skipNextSpace = false;
-        usAscii = Charset.forName("US-ASCII");
         this.writer = writer;
-        this.buffer = new FastByteArrayOutputStream(bufferSize);
+        this.buffer = new ResponseBuffer(bufferSize);
     }
     
     public ImapResponseComposerImpl(final ImapResponseWriter writer) {
@@ -87,6 +93,10 @@ public class ImapResponseComposerImpl implements ImapConstants, ImapResponseComp
     public ImapResponseComposer continuationResponse(String message) throws IOException {
         writeASCII(CONTINUATION + SP + message);
         end();
+        // the client waits for this before sending more
+        if (writer instanceof BufferedImapResponseWriter) {
+            ((BufferedImapResponseWriter) writer).flush();
+        }
         return this;
     }
 
@@ -164,9 +174,12 @@ public class ImapResponseComposerImpl implements ImapConstants, ImapResponseComp
      * @see org.apache.james.imap.encode.ImapResponseComposer#end()
      */
     public ImapResponseComposer end() throws IOException {
-        buffer.write(LINE_END.getBytes());
-        writer.write(buffer.toByteArray());
-        buffer.reset();
+        buffer.write(LINE_END_BYTES, 0, LINE_END_BYTES.length);
+        try {
+            buffer.writeTo(writer);
+        } finally {
+            buffer.reset();
+        }
         return this;
     }
 
@@ -268,7 +281,34 @@ public class ImapResponseComposerImpl implements ImapConstants, ImapResponseComp
 
 
     private void writeASCII(final String string) throws IOException {
-        buffer.write(string.getBytes(usAscii));
+        final int length = string.length();
+        for (int i = 0; i < length; i++) {
+            final char next = string.charAt(i);
+            // Same replacement as String.getBytes(US-ASCII)
+            if (next > 127) {
+                buffer.write(BYTE_QUESTION);
+            } else {
+                buffer.write((byte) next);
+            }
+        }
+    }
+
+    /**
+     * Writes the decimal representation of the number without creating a
+     * {@link String}
+     */
+    private void writeNumber(long number) throws IOException {
+        if (number < 0) {
+            // Long.MIN_VALUE can't be negated
+            writeASCII(Long.toString(number));
+        } else {
+            int position = digits.length;
+            do {
+                digits[--position] = (byte) ('0' + (number % 10));
+                number /= 10;
+            } while (number > 0);
+            buffer.write(digits, position, digits.length - position);
+        }
     }
 
     /**
@@ -276,7 +316,7 @@ public class ImapResponseComposerImpl implements ImapConstants, ImapResponseComp
      */
     public ImapResponseComposer message(long number) throws IOException {
         space();
-        writeASCII(Long.toString(number));
+        writeNumber(number);
         return this;
     }
     
@@ -351,7 +391,7 @@ public class ImapResponseComposerImpl implements ImapConstants, ImapResponseComp
         if (skipNextSpace) {
             skipNextSpace = false;
         } else {
-            buffer.write(SP.getBytes());
+            buffer.write(BYTE_SP);
         }
     }
 
@@ -363,7 +403,7 @@ public class ImapResponseComposerImpl implements ImapConstants, ImapResponseComp
         space();
         buffer.write(BYTE_OPEN_BRACE);
         final long size = literal.size();
-        writeASCII(Long.toString(size));
+        writeNumber(size);
         buffer.write(BYTE_CLOSE_BRACE);
         end();
         if (size > 0) {
@@ -416,5 +456,22 @@ public class ImapResponseComposerImpl implements ImapConstants, ImapResponseComp
         return message(sb.toString());
     }
 
+    /**
+     * Buffer which hands its content to a {@link BufferedImapResponseWriter}
+     * without copying it. Other writers get a copy, as they may keep the array
+     */
+    private static final class ResponseBuffer extends FastByteArrayOutputStream {
 
+        public ResponseBuffer(int size) {
+            super(size);
+        }
+
+        public void writeTo(ImapResponseWriter writer) throws IOException {
+            if (writer instanceof BufferedImapResponseWriter) {
+                ((BufferedImapResponseWriter) writer).write(buf, 0, count);
+            } else {
+                writer.write(toByteArray());
+            }
+        }
+    }
 }
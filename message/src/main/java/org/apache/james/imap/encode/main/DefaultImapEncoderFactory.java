@@ -43,6 +43,7 @@ import org.apache.james.imap.encode.SearchResponseEncoder;
 import org.apache.james.imap.encode.StatusResponseEncoder;
 import org.apache.james.imap.encode.VanishedResponseEncoder;
 import org.apache.james.imap.encode.XListResponseEncoder;
+import org.apache.james.imap.encode.base.DispatchingImapEncoder;
 import org.apache.james.imap.encode.base.EndImapEncoder;
 
 /**
@@ -61,6 +62,22 @@ public class DefaultImapEncoderFactory implements ImapEncoderFactory {
      * @return not null
      */
     public static final ImapEncoder createDefaultEncoder(final Localizer localizer, final boolean neverAddBodyStructureExtensions) {
+        return new DispatchingImapEncoder(createDefaultEncoderChain(localizer, neverAddBodyStructureExtensions));
+    }
+
+    /**
+     * Builds the chain of the default encoders without the
+     * {@link DispatchingImapEncoder} in front of it. Use this to put custom
+     * encoders in front of the default ones.
+     * 
+     * @param localizer
+     *            not null
+     * @param neverAddBodyStructureExtensions
+     *            true to activate a workaround for broken clients who cannot
+     *            parse BODYSTRUCTURE extensions, false to fully support RFC3501
+     * @return first encoder of the chain, not null
+     */
+    public static final ImapEncoder createDefaultEncoderChain(final Localizer localizer, final boolean neverAddBodyStructureExtensions) {
         final EndImapEncoder endImapEncoder = new EndImapEncoder();
         
         final MyRightsResponseEncoder myRightsResponseEncoder = new MyRightsResponseEncoder(endImapEncoder); 
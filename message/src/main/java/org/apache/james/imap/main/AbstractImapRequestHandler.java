@@ -50,7 +50,30 @@ public abstract class AbstractImapRequestHandler {
     }
 
     protected boolean doProcessRequest(ImapRequestLineReader request, ImapResponseComposer response, ImapSession session) {
-        ImapMessage message = decoder.decode(request, session);
+        ImapMessage message = decode(request, session);
+        return doProcessRequest(message, response, session);
+    }
+
+    /**
+     * Decode the next request
+     * 
+     * @param request
+     * @param session
+     * @return message
+     */
+    protected ImapMessage decode(ImapRequestLineReader request, ImapSession session) {
+        return decoder.decode(request, session);
+    }
+
+    /**
+     * Process the decoded request and write its responses
+     * 
+     * @param message
+     * @param response
+     * @param session
+     * @return true if all responses were written, false otherwise
+     */
+    protected boolean doProcessRequest(ImapMessage message, ImapResponseComposer response, ImapSession session) {
         final ResponseEncoder responseEncoder = new ResponseEncoder(encoder, response, session);
         processor.process(message, responseEncoder, session);
 
@@ -22,7 +22,9 @@ package org.apache.james.imap.main;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 
+import org.apache.james.imap.api.ImapMessage;
 import org.apache.james.imap.api.ImapSessionState;
 import org.apache.james.imap.api.process.ImapProcessor;
 import org.apache.james.imap.api.process.ImapSession;
@@ -32,7 +34,11 @@ import org.apache.james.imap.decode.ImapRequestLineReader;
 import org.apache.james.imap.decode.ImapRequestStreamLineReader;
 import org.apache.james.imap.encode.ImapEncoder;
 import org.apache.james.imap.encode.base.ImapResponseComposerImpl;
+import org.apache.james.imap.message.request.CompressRequest;
+import org.apache.james.imap.message.request.StartTLSRequest;
 import org.apache.james.imap.message.request.SystemMessage;
+import org.apache.james.imap.utils.io.ByteArrayPool;
+import org.apache.james.imap.utils.io.LiteralSpool;
 import org.slf4j.Logger;
 
 /**
@@ -40,8 +46,37 @@ import org.slf4j.Logger;
  */
 public final class ImapRequestStreamHandler extends AbstractImapRequestHandler {
 
+    /**
+     * Session attribute which holds the {@link StreamContext} of the
+     * connection. The reader buffers input so it must survive between
+     * requests, and the composer buffers are reused for every request
+     */
+    private static final String STREAM_CONTEXT = ImapRequestStreamHandler.class.getName() + ".STREAM_CONTEXT";
+
+    /**
+     * Buffers used to collect the responses of a command, shared by all
+     * connections
+     */
+    private final ByteArrayPool responseBuffers;
+
+    /**
+     * Spool for large literals, may be null
+     */
+    private final LiteralSpool literalSpool;
+
     public ImapRequestStreamHandler(final ImapDecoder decoder, final ImapProcessor processor, final ImapEncoder encoder) {
+        this(decoder, processor, encoder, new LiteralSpool());
+    }
+
+    /**
+     * @param literalSpool
+     *            spool for large literals like APPEND messages, or null to
+     *            read all literals straight from the input
+     */
+    public ImapRequestStreamHandler(final ImapDecoder decoder, final ImapProcessor processor, final ImapEncoder encoder, final LiteralSpool literalSpool) {
         super(decoder, processor, encoder);
+        this.responseBuffers = new ByteArrayPool(OutputStreamImapResponseWriter.DEFAULT_CORK_BUFFER_SIZE, 64);
+        this.literalSpool = literalSpool;
     }
 
     /**
@@ -56,12 +91,27 @@ public final class ImapRequestStreamHandler extends AbstractImapRequestHandler {
      * @return whether additional commands are expected.
      */
     public boolean handleRequest(InputStream input, OutputStream output, ImapSession session) {
+        return handleRequest(input, output, null, session);
+    }
+
+    /**
+     * Like {@link #handleRequest(InputStream, OutputStream, ImapSession)}, but
+     * message contents are transfered straight to the channel of the
+     * transport where possible.
+     * 
+     * @param channel
+     *            channel which output writes to, for example the channel of
+     *            the socket, or null if there is none
+     * @return whether additional commands are expected.
+     */
+    public boolean handleRequest(InputStream input, OutputStream output, WritableByteChannel channel, ImapSession session) {
         final boolean result;
         if (isSelectedMailboxDeleted(session)) {
             writeSignoff(output, session);
             result = false;
         } else {
-            ImapRequestLineReader request = new ImapRequestStreamLineReader(input, output);
+            final StreamContext context = streamContext(input, output, channel, session);
+            final ImapRequestLineReader request = context.reader;
 
             final Logger logger = session.getLog();
             try {
@@ -72,9 +122,31 @@ public final class ImapRequestStreamHandler extends AbstractImapRequestHandler {
                 return false;
             }
 
-            ImapResponseComposerImpl response = new ImapResponseComposerImpl(new OutputStreamImapResponseWriter(output));
+            final ImapMessage message = decode(request, session);
 
-            if (doProcessRequest(request, response, session)) {
+            // Collect all responses of the command and send them at once.
+            //
+            // STARTTLS and COMPRESS switch the transport after their tagged
+            // OK, which must reach the client before the switch, so they
+            // are written through
+            final boolean cork = !(message instanceof StartTLSRequest || message instanceof CompressRequest);
+            if (cork) {
+                context.writer.cork();
+            }
+            final boolean processed;
+            try {
+                processed = doProcessRequest(message, context.composer, session);
+            } finally {
+                if (cork) {
+                    try {
+                        context.writer.uncork();
+                    } catch (IOException e) {
+                        logger.debug("Failed to write responses", e);
+                    }
+                }
+            }
+
+            if (processed) {
 
                 try {
                     // Consume the rest of the line, throwing away any extras.
@@ -101,6 +173,25 @@ public final class ImapRequestStreamHandler extends AbstractImapRequestHandler {
         return result;
     }
 
+    /**
+     * Return the {@link StreamContext} which is bound to the given streams. A
+     * new one is created if the streams have changed, for example after
+     * STARTTLS or COMPRESS
+     */
+    private StreamContext streamContext(InputStream input, OutputStream output, WritableByteChannel channel, ImapSession session) {
+        final Object attribute = session.getAttribute(STREAM_CONTEXT);
+        if (attribute instanceof StreamContext) {
+            final StreamContext context = (StreamContext) attribute;
+            if (context.reader.isBoundTo(input, output) && context.channel == channel) {
+                return context;
+            }
+        }
+        final StreamContext context = new StreamContext(input, output, channel, responseBuffers);
+        context.reader.setLiteralSpool(literalSpool);
+        session.setAttribute(STREAM_CONTEXT, context);
+        return context;
+    }
+
     private void writeSignoff(OutputStream output, ImapSession session) {
         try {
             output.write(MAILBOX_DELETED_SIGNOFF);
@@ -126,4 +217,23 @@ public final class ImapRequestStreamHandler extends AbstractImapRequestHandler {
         processor.process(SystemMessage.FORCE_LOGOUT, new SilentResponder(), session);
     }
 
+    /**
+     * Reader, writer and composer of one connection
+     */
+    private static final class StreamContext {
+        private final ImapRequestStreamLineReader reader;
+
+        private final OutputStreamImapResponseWriter writer;
+
+        private final ImapResponseComposerImpl composer;
+
+        private final WritableByteChannel channel;
+
+        public StreamContext(InputStream input, OutputStream output, WritableByteChannel channel, ByteArrayPool responseBuffers) {
+            this.reader = new ImapRequestStreamLineReader(input, output);
+            this.writer = new OutputStreamImapResponseWriter(output, channel, responseBuffers);
+            this.channel = channel;
+            this.composer = new ImapResponseComposerImpl(writer);
+        }
+    }
 }
@@ -22,51 +22,195 @@ package org.apache.james.imap.main;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import org.apache.james.imap.encode.ImapResponseWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.james.imap.encode.BufferedImapResponseWriter;
+import org.apache.james.imap.message.response.ChannelLiteral;
 import org.apache.james.imap.message.response.Literal;
+import org.apache.james.imap.utils.io.ByteArrayPool;
 
 /**
  * Class providing methods to send response messages from the server to the
  * client.
+ * 
+ * While corked, responses are collected in a buffer taken from a
+ * {@link ByteArrayPool} instead of being written one by one. The buffer is
+ * written out when it is full, on {@link #flush()} and on {@link #uncork()}, so
+ * all responses of a command leave in as few writes as possible. Responses
+ * which are sent from other threads, for example while IDLE, are written
+ * through as soon as the writer is uncorked.
+ * 
+ * If the channel of the transport is known, {@link ChannelLiteral}'s are
+ * handed to it, so file backed content does not need to be copied through the
+ * heap.
  */
-public class OutputStreamImapResponseWriter implements ImapResponseWriter {
+public class OutputStreamImapResponseWriter implements BufferedImapResponseWriter {
+
+    /**
+     * Default size of the buffer used while corked and to copy literals
+     */
+    public static final int DEFAULT_CORK_BUFFER_SIZE = 16384;
 
     private final OutputStream output;
 
+    /** channel of the transport which is written by output, may be null */
+    private final WritableByteChannel channel;
+
+    private final ByteArrayPool pool;
+
+    /** buffer used while corked, null otherwise */
+    private byte[] cork;
+
+    private int corked = 0;
+
     public OutputStreamImapResponseWriter(OutputStream output) {
+        this(output, new ByteArrayPool(DEFAULT_CORK_BUFFER_SIZE, 1));
+    }
+
+    /**
+     * @param output
+     *            not null
+     * @param pool
+     *            pool to take the buffer from while corked, not null
+     */
+    public OutputStreamImapResponseWriter(OutputStream output, ByteArrayPool pool) {
+        this(output, null, pool);
+    }
+
+    /**
+     * @param output
+     *            not null
+     * @param channel
+     *            channel which output writes to, used to transfer
+     *            {@link ChannelLiteral}'s without copying them. May be null
+     * @param pool
+     *            pool to take the buffer from while corked, not null
+     */
+    public OutputStreamImapResponseWriter(OutputStream output, WritableByteChannel channel, ByteArrayPool pool) {
         this.output = output;
+        this.channel = channel;
+        this.pool = pool;
     }
 
-    public void flush() throws IOException {
-        output.flush();
+    /**
+     * Start collecting written bytes instead of writing them through
+     */
+    public synchronized void cork() {
+        if (cork == null) {
+            cork = pool.acquire();
+            corked = 0;
+        }
     }
 
+    /**
+     * Write out and flush all collected bytes and go back to writing through.
+     * The buffer is given back to the pool, so idle connections don't hold
+     * any.
+     * 
+     * @throws IOException
+     */
+    public synchronized void uncork() throws IOException {
+        if (cork != null) {
+            try {
+                flush();
+            } finally {
+                pool.release(cork);
+                cork = null;
+                corked = 0;
+            }
+        }
+    }
+
+    /**
+     * Write out all collected bytes and flush the underlying stream
+     * 
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        drain();
+        output.flush();
+    }
 
+    private void drain() throws IOException {
+        if (corked > 0) {
+            final int count = corked;
+            corked = 0;
+            output.write(cork, 0, count);
+        }
+    }
 
     /**
      * @see
      * org.apache.james.imap.encode.ImapResponseWriter#write(org.apache.james.imap.message.response.Literal)
      */
-    public void write(Literal literal) throws IOException {
-        InputStream in = null;
-        try {
-            in = literal.getInputStream();
-
-            byte[] buffer = new byte[1024];
-            for (int len; (len = in.read(buffer)) != -1;) {
-                output.write(buffer, 0, len);
+    public synchronized void write(Literal literal) throws IOException {
+        if (channel != null && literal instanceof ChannelLiteral) {
+            // everything written before must reach the channel first
+            drain();
+            output.flush();
+            final byte[] buffer = cork == null ? pool.acquire() : cork;
+            try {
+                ((ChannelLiteral) literal).transferTo(channel, ByteBuffer.wrap(buffer));
+            } finally {
+                if (cork == null) {
+                    pool.release(buffer);
+                }
             }
-        } finally {
-            if (in != null) {
-                in.close();
+        } else {
+            InputStream in = null;
+            try {
+                in = literal.getInputStream();
+                if (cork == null) {
+                    final byte[] buffer = pool.acquire();
+                    try {
+                        for (int len; (len = in.read(buffer)) != -1;) {
+                            output.write(buffer, 0, len);
+                        }
+                    } finally {
+                        pool.release(buffer);
+                    }
+                } else {
+                    // Read straight into the cork buffer
+                    for (int len; (len = in.read(cork, corked, cork.length - corked)) != -1;) {
+                        corked += len;
+                        if (corked == cork.length) {
+                            drain();
+                        }
+                    }
+                }
+            } finally {
+                if (in != null) {
+                    in.close();
+                }
             }
         }
+    }
 
+    /**
+     * @see org.apache.james.imap.encode.ImapResponseWriter#write(byte[])
+     */
+    public synchronized void write(byte[] buffer) throws IOException {
+        write(buffer, 0, buffer.length);
     }
 
-    @Override
-    public void write(byte[] buffer) throws IOException {
-        output.write(buffer);
+    /**
+     * @see org.apache.james.imap.encode.BufferedImapResponseWriter#write(byte[], int, int)
+     */
+    public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+        if (cork == null) {
+            output.write(buffer, offset, length);
+        } else {
+            if (length > cork.length - corked) {
+                drain();
+            }
+            if (length >= cork.length) {
+                output.write(buffer, offset, length);
+            } else {
+                System.arraycopy(buffer, offset, cork, corked, length);
+                corked += length;
+            }
+        }
     }
 
 }
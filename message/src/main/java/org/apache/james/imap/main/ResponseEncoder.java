@@ -27,12 +27,20 @@ import org.apache.james.imap.api.process.ImapProcessor.Responder;
 import org.apache.james.imap.encode.ImapEncoder;
 import org.apache.james.imap.encode.ImapResponseComposer;
 
+/**
+ * Encodes responses with the composer of the connection.
+ * 
+ * The composer is shared by all commands of a connection, and responses may
+ * also be sent from other threads, for example by IDLE when a mailbox event
+ * arrives or a heartbeat is due. Every response is therefore encoded while
+ * holding the monitor of the composer, so responses never interleave.
+ */
 public class ResponseEncoder implements Responder {
     private final ImapEncoder encoder;
     private final ImapSession session;
     private final ImapResponseComposer composer;
 
-    private IOException failure;
+    private volatile IOException failure;
 
     public ResponseEncoder(final ImapEncoder encoder, final ImapResponseComposer composer, final ImapSession session) {
         super();
@@ -43,7 +51,9 @@ public class ResponseEncoder implements Responder {
 
     public void respond(final ImapResponseMessage message) {
         try {
-            encoder.encode(message, composer, session);
+            synchronized (composer) {
+                encoder.encode(message, composer, session);
+            }
         } catch (IOException failure) {
             this.failure = failure;
         }
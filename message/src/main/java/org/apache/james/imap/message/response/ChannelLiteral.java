@@ -0,0 +1,46 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.message.response;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link Literal} which can write its content straight to a channel, for
+ * example by {@link java.nio.channels.FileChannel#transferTo(long, long, WritableByteChannel)}
+ * when the content is stored in a file. Writers which have access to the
+ * channel of the transport use this instead of {@link #getInputStream()}.
+ */
+public interface ChannelLiteral extends Literal {
+
+    /**
+     * Write the whole content to the given channel
+     * 
+     * @param target
+     *            channel to write to, not null
+     * @param buffer
+     *            buffer which may be used to copy content which is not backed
+     *            by a channel, not null
+     * @return count of bytes written
+     * @throws IOException
+     */
+    public long transferTo(WritableByteChannel target, ByteBuffer buffer) throws IOException;
+}
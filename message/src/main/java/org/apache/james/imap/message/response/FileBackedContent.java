@@ -0,0 +1,53 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.message.response;
+
+import java.io.File;
+
+import org.apache.james.mailbox.model.Content;
+
+/**
+ * {@link Content} which is stored unchanged in a file. The content of such
+ * messages is transfered straight from the file to the channel of the
+ * transport, see {@link ChannelLiteral}.
+ * 
+ * Implementations must make sure the file is not changed or removed while
+ * the content is in use.
+ * 
+ * Mailbox stores opt in by returning such content from their message
+ * results. Any other content is copied through a buffer.
+ */
+public interface FileBackedContent extends Content {
+
+    /**
+     * Return the file which holds the content
+     * 
+     * @return file, not null
+     */
+    public File getFile();
+
+    /**
+     * Return the position in the file at which the content starts. The
+     * content ends after {@link #size()} bytes.
+     * 
+     * @return position
+     */
+    public long getPosition();
+}
@@ -0,0 +1,84 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.utils.io;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded pool of equally sized byte arrays. Arrays which are given back while
+ * the pool is full are left to the garbage collector, so the pool never holds
+ * more than the configured count of arrays.
+ */
+public class ByteArrayPool {
+
+    private final int arraySize;
+
+    private final BlockingQueue<byte[]> arrays;
+
+    /**
+     * @param arraySize
+     *            size of the pooled arrays
+     * @param maxPooled
+     *            maximal count of arrays kept in the pool
+     */
+    public ByteArrayPool(int arraySize, int maxPooled) {
+        if (arraySize < 1 || maxPooled < 1) {
+            throw new IllegalArgumentException("Array size and pool size must be positive");
+        }
+        this.arraySize = arraySize;
+        this.arrays = new ArrayBlockingQueue<byte[]>(maxPooled);
+    }
+
+    /**
+     * Return the size of the arrays handed out by this pool
+     * 
+     * @return arraySize
+     */
+    public int getArraySize() {
+        return arraySize;
+    }
+
+    /**
+     * Take an array out of the pool, or create a new one if the pool is empty
+     * 
+     * @return array, not null
+     */
+    public byte[] acquire() {
+        final byte[] array = arrays.poll();
+        if (array == null) {
+            return new byte[arraySize];
+        }
+        return array;
+    }
+
+    /**
+     * Give an array back to the pool. It must not be used by the caller
+     * afterwards.
+     * 
+     * @param array
+     *            array which was taken from this pool, not null
+     */
+    public void release(byte[] array) {
+        if (array.length == arraySize) {
+            arrays.offer(array);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.utils.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Spools large literals, like the message of an APPEND, to temporary files
+ * so they don't need to be held on the heap. Literals up to the threshold are
+ * not spooled.
+ * 
+ * The streams returned by the spool support {@link InputStream#mark(int)} and
+ * {@link InputStream#reset()}, so the content can be read more than once. The
+ * temporary file is deleted when the stream is closed.
+ */
+public class LiteralSpool {
+
+    /**
+     * Default size above which literals are spooled
+     */
+    public static final int DEFAULT_THRESHOLD = 1024 * 1024;
+
+    private static final String PREFIX = "imap-literal";
+
+    private static final String SUFFIX = ".spool";
+
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private final int threshold;
+
+    private final File directory;
+
+    public LiteralSpool() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param threshold
+     *            literals larger than this count of bytes are spooled
+     */
+    public LiteralSpool(int threshold) {
+        this(threshold, null);
+    }
+
+    /**
+     * @param threshold
+     *            literals larger than this count of bytes are spooled
+     * @param directory
+     *            directory for the temporary files, or null for the default
+     *            temporary directory
+     */
+    public LiteralSpool(int threshold, File directory) {
+        this.threshold = threshold;
+        this.directory = directory;
+    }
+
+    /**
+     * Return the count of bytes above which literals are spooled
+     * 
+     * @return threshold
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Return true if a literal of the given size should be spooled
+     * 
+     * @param size
+     * @return spool
+     */
+    public boolean isSpooled(long size) {
+        return size > threshold;
+    }
+
+    /**
+     * Copy the given count of bytes to a temporary file
+     * 
+     * @param in
+     *            stream to read from, not null. It is not closed
+     * @param size
+     *            count of bytes to copy
+     * @return stream over the copied bytes
+     * @throws IOException
+     */
+    public InputStream spool(InputStream in, long size) throws IOException {
+        final Spool spool = open();
+        try {
+            final byte[] buffer = new byte[(int) Math.min(COPY_BUFFER_SIZE, Math.max(size, 1))];
+            final ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+            for (long remaining = size; remaining > 0;) {
+                final int len = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (len == -1) {
+                    throw new IOException("Unexpected end of literal");
+                }
+                wrapper.clear();
+                wrapper.limit(len);
+                spool.write(wrapper);
+                remaining -= len;
+            }
+            return spool.getInputStream();
+        } catch (IOException e) {
+            spool.discard();
+            throw e;
+        }
+    }
+
+    /**
+     * Create a new temporary file to write a literal to
+     * 
+     * @return spool, not null
+     * @throws IOException
+     */
+    public Spool open() throws IOException {
+        return new Spool(File.createTempFile(PREFIX, SUFFIX, directory));
+    }
+
+    /**
+     * Temporary file a literal is written to. Once all bytes are written the
+     * content is read with {@link #getInputStream()}.
+     */
+    public static final class Spool {
+
+        private final File file;
+
+        private final FileOutputStream out;
+
+        private final FileChannel channel;
+
+        private Spool(File file) throws IOException {
+            this.file = file;
+            this.out = new FileOutputStream(file);
+            this.channel = out.getChannel();
+        }
+
+        /**
+         * Write all remaining bytes of the buffer
+         * 
+         * @param buffer
+         *            not null
+         * @throws IOException
+         */
+        public void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        /**
+         * Finish writing and return a stream over the written bytes. The file
+         * is deleted when the stream is closed.
+         * 
+         * @return stream, not null
+         * @throws IOException
+         */
+        public InputStream getInputStream() throws IOException {
+            out.close();
+            return new SpoolInputStream(file);
+        }
+
+        /**
+         * Finish writing and delete the file
+         */
+        public void discard() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // ignore on close
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * {@link FileInputStream} which supports mark and deletes its file on
+     * close
+     */
+    private static final class SpoolInputStream extends FileInputStream {
+
+        private final File file;
+
+        private long mark = 0;
+
+        public SpoolInputStream(File file) throws IOException {
+            super(file);
+            this.file = file;
+        }
+
+        public boolean markSupported() {
+            return true;
+        }
+
+        public synchronized void mark(int readlimit) {
+            try {
+                mark = getChannel().position();
+            } catch (IOException e) {
+                mark = -1;
+            }
+        }
+
+        public synchronized void reset() throws IOException {
+            if (mark < 0) {
+                throw new IOException("Unable to reset");
+            }
+            getChannel().position(mark);
+        }
+
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.decode;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+
+import org.apache.james.imap.api.ImapConstants;
+import org.apache.james.imap.utils.io.LiteralSpool;
+import org.junit.Test;
+
+public class ImapRequestStreamLineReaderTest {
+
+    @Test
+    public void testShouldReadWordsAcrossBufferBoundaries() throws Exception {
+        ImapRequestLineReader reader = reader("A01 UID FETCH 1:100 FLAGS\r\n", 3, 2);
+        assertEquals("A01", reader.tag());
+        assertEquals("UID", reader.atom());
+        assertEquals("FETCH", reader.atom());
+        assertEquals("1:100", reader.atom());
+        assertEquals("FLAGS", reader.atom());
+        reader.eol();
+    }
+
+    @Test
+    public void testShouldKeepReadAheadBytesForNextCommand() throws Exception {
+        ImapRequestLineReader reader = reader("A01 NOOP\r\nA02 CHECK\r\n", 1024, 1024);
+        assertEquals("A01", reader.tag());
+        assertEquals("NOOP", reader.atom());
+        reader.consumeLine();
+        assertEquals("A02", reader.tag());
+        assertEquals("CHECK", reader.atom());
+        reader.eol();
+    }
+
+    @Test
+    public void testShouldReadLiteralFromBufferAndStream() throws Exception {
+        ImapRequestLineReader reader = reader("{10+}\r\n0123456789 NEXT\r\n", 16, 16);
+        InputStream literal = reader.consumeLiteral(false);
+        assertEquals("0123456789", read(literal));
+        assertEquals("NEXT", reader.atom());
+        reader.eol();
+    }
+
+    @Test
+    public void testShouldReadLiteralLargerThenBuffer() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            content.append((char) ('a' + i % 26));
+        }
+        ImapRequestLineReader reader = reader("{1000+}\r\n" + content + "\r\n", 64, 50);
+        InputStream literal = reader.consumeLiteral(false);
+        assertEquals(content.toString(), read(literal));
+        reader.eol();
+    }
+
+    @Test
+    public void testShouldShareKnownWords() throws Exception {
+        ImapRequestLineReader reader = reader("A01 FETCH 1 (FLAGS)\r\n", 16, 16);
+        assertEquals("A01", reader.tag());
+        assertSame(ImapConstants.FETCH_COMMAND_NAME, reader.atom());
+        assertEquals(1, reader.number());
+        reader.nextWordChar();
+        reader.consumeChar('(');
+        assertSame("FLAGS", reader.consumeUntil(")"));
+        reader.consumeChar(')');
+        reader.eol();
+    }
+
+    @Test
+    public void testShouldSpoolLargeLiteral() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            content.append((char) ('a' + i % 26));
+        }
+        ImapRequestLineReader reader = reader("{1000+}\r\n" + content + " NEXT\r\n", 64, 50);
+        reader.setLiteralSpool(new LiteralSpool(100));
+        InputStream literal = reader.consumeLiteral(false);
+        // the literal was consumed from the input already
+        assertEquals("NEXT", reader.atom());
+        reader.eol();
+        assertTrue(literal.markSupported());
+        literal.mark(0);
+        assertEquals(content.toString(), read(literal));
+        literal.reset();
+        assertEquals(content.toString(), read(literal));
+        literal.close();
+    }
+
+    @Test
+    public void testShouldNotSpoolLiteralReadIntoMemory() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            content.append((char) ('a' + i % 26));
+        }
+        final int[] spooled = new int[1];
+        ImapRequestLineReader reader = reader("{1000+}\r\n" + content + " NEXT\r\n", 64, 50);
+        reader.setLiteralSpool(new LiteralSpool(100) {
+
+            @Override
+            public InputStream spool(InputStream in, long size) throws IOException {
+                spooled[0]++;
+                return super.spool(in, size);
+            }
+        });
+        assertEquals(content.toString(), reader.consumeLiteral(Charset.forName("UTF-8")));
+        assertEquals(0, spooled[0]);
+        assertEquals("NEXT", reader.atom());
+        reader.eol();
+    }
+
+    @Test
+    public void testShouldNotKeepBufferOfOversizedWord() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            content.append((char) ('a' + i % 26));
+        }
+        ImapRequestLineReader reader = reader(content + " NEXT\r\n", 64, 50);
+        assertEquals(content.toString(), reader.atom());
+        assertEquals("NEXT", reader.atom());
+        reader.eol();
+        Field word = ImapRequestLineReader.class.getDeclaredField("word");
+        word.setAccessible(true);
+        assertTrue(((char[]) word.get(reader)).length < content.length());
+    }
+
+    @Test
+    public void testShouldSendContinuationForSynchronizedLiteral() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImapRequestLineReader reader = new ImapRequestStreamLineReader(new ByteArrayInputStream("{3}\r\nabc\r\n".getBytes("US-ASCII")), out, 8);
+        assertEquals("abc", reader.consumeLiteral(null));
+        assertEquals("+\r\n", out.toString("US-ASCII"));
+    }
+
+    @Test(expected = DecodingException.class)
+    public void testShouldFailOnEndOfStream() throws Exception {
+        ImapRequestLineReader reader = reader("A01", 16, 16);
+        reader.tag();
+    }
+
+    private ImapRequestLineReader reader(String input, int bufferSize, int chunkSize) throws Exception {
+        return new ImapRequestStreamLineReader(new ChunkedInputStream(input.getBytes("US-ASCII"), chunkSize), new ByteArrayOutputStream(), bufferSize);
+    }
+
+    private String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[7];
+        for (int len; (len = in.read(buf)) != -1;) {
+            out.write(buf, 0, len);
+        }
+        return out.toString("US-ASCII");
+    }
+
+    /**
+     * Delivers at most the given count of bytes per read, like a socket does
+     */
+    private static final class ChunkedInputStream extends ByteArrayInputStream {
+        private final int chunkSize;
+
+        public ChunkedInputStream(byte[] buf, int chunkSize) {
+            super(buf);
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, chunkSize));
+        }
+    }
+}
@@ -81,6 +81,40 @@ public class IdRangeParseTest  {
 		
 	}
 	
+	@Test
+	public void testMultipleRangesAreMerged() throws DecodingException {
+		IdRange[] ranges = ranges("1:3,5,4,10:*");
+		assertEquals(2, ranges.length);
+		assertEquals(1, ranges[0].getLowVal());
+		assertEquals(5, ranges[0].getHighVal());
+		assertEquals(10, ranges[1].getLowVal());
+		assertEquals(Long.MAX_VALUE, ranges[1].getHighVal());
+	}
+
+	@Test
+	public void testStarRanges() throws DecodingException {
+		IdRange[] ranges = ranges("*");
+		assertEquals(Long.MAX_VALUE, ranges[0].getLowVal());
+		assertEquals(Long.MAX_VALUE, ranges[0].getHighVal());
+
+		ranges = ranges("*:7");
+		assertEquals(7, ranges[0].getLowVal());
+		assertEquals(Long.MAX_VALUE, ranges[0].getHighVal());
+	}
+
+	@Test
+	public void testMalformedRanges() {
+		String[] malformed = { "1,,2", ":5", "1:", "**", "1*", "1:2:3", "1a", "99999999999999999999" };
+		for (int i = 0; i < malformed.length; i++) {
+			try {
+				ranges(malformed[i]);
+				Assert.fail(malformed[i]);
+			} catch (DecodingException e) {
+				// expected
+			}
+		}
+	}
+
 	private String rangeAsString(long val1, long val2) {
 		return val1 + ":" + val2;
 	}
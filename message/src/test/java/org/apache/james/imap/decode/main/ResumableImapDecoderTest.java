@@ -0,0 +1,200 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.decode.main;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.apache.james.imap.api.ImapMessage;
+import org.apache.james.imap.api.process.ImapSession;
+import org.apache.james.imap.decode.DecodingException;
+import org.apache.james.imap.decode.ImapDecoder;
+import org.apache.james.imap.decode.ImapRequestLineReader;
+import org.apache.james.imap.encode.FakeImapSession;
+import org.apache.james.imap.utils.io.LiteralSpool;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResumableImapDecoderTest {
+
+    private int continuations;
+
+    private ResumableImapDecoder decoder;
+
+    private ImapSession session;
+
+    @Before
+    public void setUp() throws Exception {
+        continuations = 0;
+        session = new FakeImapSession();
+        decoder = new ResumableImapDecoder(new LineDecoder(), new ResumableImapDecoder.ContinuationRequester() {
+            public void requestContinuation() throws DecodingException {
+                continuations++;
+            }
+        }, 1024);
+    }
+
+    @Test
+    public void testShouldKeepStateBetweenFragments() throws Exception {
+        assertNull(decoder.decode(buffer("A0"), session));
+        assertNull(decoder.decode(buffer("1 NO"), session));
+        assertNull(decoder.decode(buffer("OP\r"), session));
+        assertTrue(decoder.isDecoding());
+        assertEquals("A01 NOOP", decoded(decoder.decode(buffer("\n"), session)));
+        assertFalse(decoder.isDecoding());
+    }
+
+    @Test
+    public void testShouldLeavePipelinedCommandsInFragment() throws Exception {
+        ByteBuffer fragment = buffer("A01 NOOP\r\nA02 CHECK\r\nA03");
+        assertEquals("A01 NOOP", decoded(decoder.decode(fragment, session)));
+        assertEquals("A02 CHECK", decoded(decoder.decode(fragment, session)));
+        assertNull(decoder.decode(fragment, session));
+        assertFalse(fragment.hasRemaining());
+        assertEquals("A03 LOGOUT", decoded(decoder.decode(buffer(" LOGOUT\r\n"), session)));
+    }
+
+    @Test
+    public void testShouldWaitForSynchronizedLiteral() throws Exception {
+        assertNull(decoder.decode(buffer("A01 LOGIN {4}\r\n"), session));
+        assertEquals(1, continuations);
+        assertNull(decoder.decode(buffer("us\r\n"), session));
+        assertEquals("A01 LOGIN us\r\n", decoded(decoder.decode(buffer("\r\n"), session)));
+    }
+
+    @Test
+    public void testShouldNotRequestContinuationForNonSynchronizingLiteral() throws Exception {
+        assertEquals("A01 LOGIN user", decoded(decoder.decode(buffer("A01 LOGIN {4+}\r\nuser\r\n"), session)));
+        assertEquals(0, continuations);
+    }
+
+    @Test
+    public void testShouldSpoolLargeLiteral() throws Exception {
+        decoder = new ResumableImapDecoder(new LineDecoder(), new ResumableImapDecoder.ContinuationRequester() {
+            public void requestContinuation() throws DecodingException {
+                continuations++;
+            }
+        }, 1024, new LiteralSpool(4));
+        assertNull(decoder.decode(buffer("A01 LOGIN {10}\r\n01234"), session));
+        assertEquals(1, continuations);
+        assertEquals("A01 LOGIN 0123456789", decoded(decoder.decode(buffer("56789\r\n"), session)));
+    }
+
+    @Test
+    public void testShouldRejectTooLargeLiteral() throws Exception {
+        try {
+            decoder.decode(buffer("A01 APPEND INBOX {2048}\r\n"), session);
+            fail();
+        } catch (DecodingException e) {
+            // expected
+        }
+        assertFalse(decoder.isDecoding());
+        assertEquals(0, continuations);
+    }
+
+    @Test
+    public void testShouldSkipNonSynchronizingLiteralOfRejectedCommand() throws Exception {
+        StringBuilder literal = new StringBuilder();
+        while (literal.length() < 2048) {
+            literal.append("A02 DELETE INBOX\r\n");
+        }
+        literal.setLength(2048);
+        ByteBuffer fragment = buffer("A01 APPEND INBOX {2048+}\r\n" + literal.substring(0, 1000));
+        try {
+            decoder.decode(fragment, session);
+            fail();
+        } catch (DecodingException e) {
+            // expected
+        }
+        assertNull(decoder.decode(fragment, session));
+        assertTrue(decoder.isDecoding());
+        fragment = buffer(literal.substring(1000) + " {3+}\r\nabc\r\nA03 NOOP\r\n");
+        assertEquals("A03 NOOP", decoded(decoder.decode(fragment, session)));
+        assertFalse(fragment.hasRemaining());
+        assertEquals(0, continuations);
+    }
+
+    @Test
+    public void testShouldSkipRestOfTooLongLine() throws Exception {
+        StringBuilder line = new StringBuilder("A01 LOGIN ");
+        while (line.length() < 2048) {
+            line.append("x");
+        }
+        ByteBuffer fragment = buffer(line.toString());
+        try {
+            decoder.decode(fragment, session);
+            fail();
+        } catch (DecodingException e) {
+            // expected
+        }
+        assertNull(decoder.decode(fragment, session));
+        assertEquals("A02 NOOP", decoded(decoder.decode(buffer("xx\r\nA02 NOOP\r\n"), session)));
+    }
+
+    @Test
+    public void testShouldNotRequestContinuationForLiteralExceedingCommand() throws Exception {
+        try {
+            decoder.decode(buffer("A01 APPEND INBOX {1000}\r\n"), session);
+            fail();
+        } catch (DecodingException e) {
+            // expected
+        }
+        assertEquals(0, continuations);
+        // the client does not send the literal, but the next command
+        assertEquals("A02 NOOP", decoded(decoder.decode(buffer("A02 NOOP\r\n"), session)));
+    }
+
+    private ByteBuffer buffer(String fragment) throws Exception {
+        return ByteBuffer.wrap(fragment.getBytes("US-ASCII"));
+    }
+
+    private String decoded(ImapMessage message) {
+        assertNotNull(message);
+        return ((DecodedLine) message).line;
+    }
+
+    private static final class DecodedLine implements ImapMessage {
+        private final String line;
+
+        public DecodedLine(String line) {
+            this.line = line;
+        }
+    }
+
+    /**
+     * Decodes the tag, the command name and an optional astring
+     */
+    private static final class LineDecoder implements ImapDecoder {
+
+        public ImapMessage decode(ImapRequestLineReader request, ImapSession session) {
+            try {
+                String line = request.tag() + " " + request.atom();
+                if (request.nextChar() == ' ') {
+                    line += " " + request.astring();
+                }
+                request.eol();
+                return new DecodedLine(line);
+            } catch (DecodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
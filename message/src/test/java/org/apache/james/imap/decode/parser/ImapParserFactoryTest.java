@@ -0,0 +1,61 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.decode.parser;
+
+import static org.junit.Assert.*;
+
+import org.apache.james.imap.api.ImapConstants;
+import org.apache.james.imap.decode.ImapCommandParser;
+import org.apache.james.imap.message.response.UnpooledStatusResponseFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ImapParserFactoryTest {
+
+    ImapParserFactory factory;
+
+    @Before
+    public void setUp() throws Exception {
+        factory = new ImapParserFactory(new UnpooledStatusResponseFactory());
+    }
+
+    @Test
+    public void testShouldLookupCaseInsensitive() throws Exception {
+        ImapCommandParser parser = factory.getParser(ImapConstants.FETCH_COMMAND_NAME);
+        assertTrue(parser instanceof FetchCommandParser);
+        assertSame(parser, factory.getParser("fetch"));
+        assertSame(parser, factory.getParser("FeTcH"));
+    }
+
+    @Test
+    public void testShouldReturnNullForUnknownCommand() throws Exception {
+        assertNull(factory.getParser("FETCHX"));
+        assertNull(factory.getParser("FETC"));
+        assertNull(factory.getParser(""));
+    }
+
+    @Test
+    public void testShouldInitialiseParsers() throws Exception {
+        UidCommandParser uid = (UidCommandParser) factory.getParser("uid");
+        assertSame(factory, uid.getParserFactory());
+        assertNotNull(uid.getStatusResponseFactory());
+        assertTrue(factory.getParser("starttls") instanceof StartTLSCommandParser);
+    }
+}
@@ -0,0 +1,90 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.encode.base;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import org.apache.james.imap.encode.FakeImapSession;
+import org.apache.james.imap.encode.ImapEncoder;
+import org.apache.james.imap.encode.ImapResponseComposer;
+import org.apache.james.imap.encode.BufferedImapResponseWriter;
+import org.apache.james.imap.encode.main.DefaultImapEncoderFactory;
+import org.apache.james.imap.encode.main.DefaultLocalizer;
+import org.apache.james.imap.message.response.FetchResponse;
+import org.apache.james.imap.message.response.Literal;
+
+/**
+ * Compares the per response cost of encoding through the plain encoder chain
+ * and through the {@link DispatchingImapEncoder}. The encoded bytes are
+ * discarded, so the difference between both runs is the dispatch cost.
+ * 
+ * Run with: java -cp ... org.apache.james.imap.encode.base.DispatchingImapEncoderBenchmark [responses]
+ */
+public class DispatchingImapEncoderBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        final int responses = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        final ImapEncoder chain = DefaultImapEncoderFactory.createDefaultEncoderChain(new DefaultLocalizer(), false);
+        final ImapEncoder dispatching = new DispatchingImapEncoder(chain);
+
+        final FetchResponse[] fetches = new FetchResponse[1024];
+        for (int i = 0; i < fetches.length; i++) {
+            fetches[i] = new FetchResponse(i + 1, null, Long.valueOf(i + 1), null, null, null, null, null, null, Collections.<FetchResponse.BodyElement>emptyList());
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            final long chained = run(chain, fetches, responses);
+            final long dispatched = run(dispatching, fetches, responses);
+            System.out.println("Round " + (round + 1) + ": chain " + nanosPerResponse(chained, responses) + " ns/response, dispatching " + nanosPerResponse(dispatched, responses) + " ns/response");
+        }
+    }
+
+    private static long run(ImapEncoder encoder, FetchResponse[] fetches, int responses) throws IOException {
+        final ImapResponseComposer composer = new ImapResponseComposerImpl(new DiscardingImapResponseWriter());
+        final FakeImapSession session = new FakeImapSession();
+        final long start = System.nanoTime();
+        for (int i = 0; i < responses; i++) {
+            encoder.encode(fetches[i & (fetches.length - 1)], composer, session);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static String nanosPerResponse(long nanos, int responses) {
+        return String.valueOf((double) nanos / responses);
+    }
+
+    private static final class DiscardingImapResponseWriter implements BufferedImapResponseWriter {
+
+        public void write(Literal literal) throws IOException {
+        }
+
+        public void write(byte[] buffer) throws IOException {
+        }
+
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+        }
+
+        public void flush() throws IOException {
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.encode.base;
+
+import static org.junit.Assert.*;
+
+import org.apache.james.imap.api.process.MailboxType;
+import org.apache.james.imap.encode.FakeImapSession;
+import org.apache.james.imap.encode.ImapEncoder;
+import org.apache.james.imap.encode.ImapResponseComposer;
+import org.apache.james.imap.encode.main.DefaultImapEncoderFactory;
+import org.apache.james.imap.encode.main.DefaultLocalizer;
+import org.apache.james.imap.message.response.ExistsResponse;
+import org.apache.james.imap.message.response.ListResponse;
+import org.apache.james.imap.message.response.XListResponse;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DispatchingImapEncoderTest {
+
+    private ImapEncoder encoder;
+
+    private ByteImapResponseWriter writer;
+
+    private ImapResponseComposer composer;
+
+    @Before
+    public void setUp() throws Exception {
+        encoder = DefaultImapEncoderFactory.createDefaultEncoder(new DefaultLocalizer(), false);
+        writer = new ByteImapResponseWriter();
+        composer = new ImapResponseComposerImpl(writer);
+    }
+
+    @Test
+    public void testShouldKeepChainOrderForSubclasses() throws Exception {
+        encoder.encode(new XListResponse(false, false, false, false, false, false, "INBOX", '.', MailboxType.INBOX), composer, new FakeImapSession());
+        assertTrue(writer.getString().startsWith("* XLIST "));
+        writer.clear();
+        encoder.encode(new ListResponse(false, false, false, false, false, false, "INBOX", '.'), composer, new FakeImapSession());
+        assertTrue(writer.getString().startsWith("* LIST "));
+    }
+
+    @Test
+    public void testShouldEncodeRepeatedResponses() throws Exception {
+        encoder.encode(new ExistsResponse(5), composer, new FakeImapSession());
+        encoder.encode(new ExistsResponse(6), composer, new FakeImapSession());
+        assertEquals("* 5 EXISTS\r\n* 6 EXISTS\r\n", writer.getString());
+    }
+}
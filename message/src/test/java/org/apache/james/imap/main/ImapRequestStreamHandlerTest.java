@@ -0,0 +1,150 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.james.imap.api.ImapCommand;
+import org.apache.james.imap.api.ImapMessage;
+import org.apache.james.imap.api.message.response.ImapResponseMessage;
+import org.apache.james.imap.api.process.ImapProcessor;
+import org.apache.james.imap.api.process.ImapSession;
+import org.apache.james.imap.decode.ImapDecoder;
+import org.apache.james.imap.decode.ImapRequestLineReader;
+import org.apache.james.imap.encode.FakeImapSession;
+import org.apache.james.imap.encode.ImapEncoder;
+import org.apache.james.imap.encode.ImapResponseComposer;
+import org.apache.james.imap.message.request.CompressRequest;
+import org.apache.james.imap.message.request.StartTLSRequest;
+import org.apache.james.imap.message.response.ChannelLiteral;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ImapRequestStreamHandlerTest {
+
+    private static final String OK = "a1 OK done\r\n";
+
+    private ByteArrayOutputStream output;
+
+    private ImapMessage request;
+
+    /** output as it was when the transport was switched */
+    private String outputOnSwitch;
+
+    /** literal to compose before the tagged OK, may be null */
+    private ChannelLiteral literal;
+
+    /** channel the literal was transfered to */
+    private WritableByteChannel transferTarget;
+
+    private ImapRequestStreamHandler subject;
+
+    @Before
+    public void setUp() throws Exception {
+        output = new ByteArrayOutputStream();
+        ImapDecoder decoder = new ImapDecoder() {
+
+            public ImapMessage decode(ImapRequestLineReader reader, ImapSession session) {
+                return request;
+            }
+        };
+        // responds with a tagged OK and then switches the transport, like
+        // STARTTLS and COMPRESS do
+        ImapProcessor processor = new ImapProcessor() {
+
+            public void process(ImapMessage message, Responder responder, ImapSession session) {
+                responder.respond(new ImapResponseMessage() {
+                });
+                outputOnSwitch = new String(output.toByteArray());
+            }
+        };
+        ImapEncoder encoder = new ImapEncoder() {
+
+            public void encode(ImapMessage message, ImapResponseComposer composer, ImapSession session) throws IOException {
+                if (literal != null) {
+                    composer.untagged().message("1").message("FETCH").openParen().message("BODY[]").literal(literal).closeParen().end();
+                }
+                composer.tag("a1").message("OK").message("done").end();
+            }
+        };
+        subject = new ImapRequestStreamHandler(decoder, processor, encoder);
+    }
+
+    @Test
+    public void testStartTLSOkIsWrittenBeforeSwitch() throws Exception {
+        request = new StartTLSRequest("a1", ImapCommand.anyStateCommand("STARTTLS"));
+        handle("a1 STARTTLS\r\n");
+        assertEquals(OK, outputOnSwitch);
+    }
+
+    @Test
+    public void testCompressOkIsWrittenBeforeSwitch() throws Exception {
+        request = new CompressRequest("a1", ImapCommand.authenticatedStateCommand("COMPRESS"), "DEFLATE");
+        handle("a1 COMPRESS DEFLATE\r\n");
+        assertEquals(OK, outputOnSwitch);
+    }
+
+    @Test
+    public void testOtherResponsesAreCorked() throws Exception {
+        request = new ImapMessage() {
+        };
+        handle("a1 NOOP\r\n");
+        assertEquals("", outputOnSwitch);
+        assertEquals(OK, new String(output.toByteArray()));
+    }
+
+    @Test
+    public void testLiteralIsTransferedToChannel() throws Exception {
+        request = new ImapMessage() {
+        };
+        literal = new ChannelLiteral() {
+
+            public long size() {
+                return 3;
+            }
+
+            public InputStream getInputStream() {
+                return new ByteArrayInputStream("abc".getBytes());
+            }
+
+            public long transferTo(WritableByteChannel target, ByteBuffer buffer) throws IOException {
+                transferTarget = target;
+                return target.write(ByteBuffer.wrap("abc".getBytes()));
+            }
+        };
+        WritableByteChannel channel = Channels.newChannel(output);
+        subject.handleRequest(new ByteArrayInputStream("a1 FETCH 1 BODY[]\r\n".getBytes()), output, channel, new FakeImapSession());
+        assertSame(channel, transferTarget);
+        assertEquals("* 1 FETCH (BODY[] {3}\r\nabc)\r\n" + OK, new String(output.toByteArray()));
+    }
+
+    private void handle(String line) {
+        subject.handleRequest(new ByteArrayInputStream(line.getBytes()), output, new FakeImapSession());
+    }
+}
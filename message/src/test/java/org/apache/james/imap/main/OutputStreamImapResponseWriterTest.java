@@ -0,0 +1,133 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.main;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.james.imap.message.response.ChannelLiteral;
+import org.apache.james.imap.message.response.Literal;
+import org.apache.james.imap.utils.io.ByteArrayPool;
+import org.junit.Test;
+
+public class OutputStreamImapResponseWriterTest extends AbstractTestOutputStreamImapResponseWriter {
+
+    @Test
+    public void testWriteThroughWhenNotCorked() throws Exception {
+        writer.write("* OK\r\n".getBytes("US-ASCII"));
+        assertEquals(6, out.size());
+    }
+
+    @Test
+    public void testCorkedWritesAreHeldUntilUncork() throws Exception {
+        writer.cork();
+        writer.write("* 1 EXISTS\r\n".getBytes("US-ASCII"));
+        writer.write("A1 OK done\r\n".getBytes("US-ASCII"));
+        assertEquals(0, out.size());
+        writer.uncork();
+        checkExpected("* 1 EXISTS\r\nA1 OK done\r\n");
+    }
+
+    @Test
+    public void testFlushWhileCorked() throws Exception {
+        writer.cork();
+        writer.write("+ Ready\r\n".getBytes("US-ASCII"));
+        writer.flush();
+        assertEquals(9, out.size());
+        writer.write("A1 OK\r\n".getBytes("US-ASCII"));
+        assertEquals(9, out.size());
+        writer.uncork();
+        checkExpected("+ Ready\r\nA1 OK\r\n");
+    }
+
+    @Test
+    public void testCorkedWritesLargerThanBuffer() throws Exception {
+        final StringBuilder expected = new StringBuilder();
+        writer.cork();
+        for (int i = 0; i < 5000; i++) {
+            final String line = "* " + i + " EXPUNGE\r\n";
+            expected.append(line);
+            writer.write(line.getBytes("US-ASCII"));
+        }
+        final byte[] large = new byte[OutputStreamImapResponseWriter.DEFAULT_CORK_BUFFER_SIZE * 2];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) ('a' + i % 26);
+            expected.append((char) large[i]);
+        }
+        writer.write(large);
+        writer.uncork();
+        checkExpected(expected.toString());
+    }
+
+    @Test
+    public void testCorkedLiteral() throws Exception {
+        final StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            content.append("line ").append(i).append("\r\n");
+        }
+        final byte[] bytes = content.toString().getBytes("US-ASCII");
+        writer.cork();
+        writer.write("* 1 FETCH (BODY[] {".getBytes("US-ASCII"));
+        writer.write(new Literal() {
+
+            public long size() throws IOException {
+                return bytes.length;
+            }
+
+            public InputStream getInputStream() throws IOException {
+                return new ByteArrayInputStream(bytes);
+            }
+        });
+        writer.write(")\r\n".getBytes("US-ASCII"));
+        writer.uncork();
+        checkExpected("* 1 FETCH (BODY[] {" + content + ")\r\n");
+    }
+
+    @Test
+    public void testChannelLiteralIsTransferedToChannel() throws Exception {
+        final byte[] bytes = "Hello World\r\n".getBytes("US-ASCII");
+        writer = new OutputStreamImapResponseWriter(out, Channels.newChannel(out), new ByteArrayPool(16, 1));
+        writer.cork();
+        writer.write("* 1 FETCH (BODY[] {13}\r\n".getBytes("US-ASCII"));
+        writer.write(new ChannelLiteral() {
+
+            public long size() throws IOException {
+                return bytes.length;
+            }
+
+            public InputStream getInputStream() throws IOException {
+                throw new IOException("Content should be transfered to the channel");
+            }
+
+            public long transferTo(WritableByteChannel target, ByteBuffer buffer) throws IOException {
+                return target.write(ByteBuffer.wrap(bytes));
+            }
+        });
+        writer.write(")\r\n".getBytes("US-ASCII"));
+        writer.uncork();
+        checkExpected("* 1 FETCH (BODY[] {13}\r\nHello World\r\n)\r\n");
+    }
+}
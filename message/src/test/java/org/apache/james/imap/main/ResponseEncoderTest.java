@@ -0,0 +1,84 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.james.imap.api.ImapMessage;
+import org.apache.james.imap.api.message.response.ImapResponseMessage;
+import org.apache.james.imap.api.process.ImapSession;
+import org.apache.james.imap.encode.FakeImapSession;
+import org.apache.james.imap.encode.ImapEncoder;
+import org.apache.james.imap.encode.ImapResponseComposer;
+import org.apache.james.imap.encode.base.ByteImapResponseWriter;
+import org.apache.james.imap.encode.base.ImapResponseComposerImpl;
+import org.junit.Test;
+
+public class ResponseEncoderTest {
+
+    private static final int RESPONSES = 2000;
+
+    @Test
+    public void testResponsesOfConcurrentThreadsDoNotInterleave() throws Exception {
+        final ByteImapResponseWriter writer = new ByteImapResponseWriter();
+        final ImapResponseComposer composer = new ImapResponseComposerImpl(writer);
+        final ImapEncoder encoder = new ImapEncoder() {
+
+            public void encode(ImapMessage message, ImapResponseComposer composer, ImapSession session) throws IOException {
+                final String name = ((NamedResponse) message).name;
+                composer.untagged().message(name).message("one").message("two").message("three").end();
+            }
+        };
+        final ResponseEncoder command = new ResponseEncoder(encoder, composer, new FakeImapSession());
+        final ResponseEncoder idle = new ResponseEncoder(encoder, composer, new FakeImapSession());
+
+        final Thread thread = new Thread() {
+            public void run() {
+                for (int i = 0; i < RESPONSES; i++) {
+                    idle.respond(new NamedResponse("IDLE"));
+                }
+            }
+        };
+        thread.start();
+        for (int i = 0; i < RESPONSES; i++) {
+            command.respond(new NamedResponse("COMMAND"));
+        }
+        thread.join();
+
+        final String[] lines = writer.getString().split("\r\n");
+        assertEquals(2 * RESPONSES, lines.length);
+        for (int i = 0; i < lines.length; i++) {
+            final boolean valid = "* IDLE one two three".equals(lines[i]) || "* COMMAND one two three".equals(lines[i]);
+            assertTrue("line " + i + ": " + lines[i], valid);
+        }
+    }
+
+    private static final class NamedResponse implements ImapResponseMessage {
+
+        private final String name;
+
+        public NamedResponse(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -31,6 +31,7 @@ import org.apache.james.imap.api.ImapConstants;
 import org.apache.james.imap.api.ImapSessionUtils;
 import org.apache.james.imap.api.display.HumanReadableText;
 import org.apache.james.imap.api.message.IdRange;
+import org.apache.james.imap.api.message.UidSet;
 import org.apache.james.imap.api.message.request.ImapRequest;
 import org.apache.james.imap.api.message.response.ImapResponseMessage;
 import org.apache.james.imap.api.message.response.StatusResponse;
@@ -145,7 +146,7 @@ abstract public class AbstractMailboxProcessor<M extends ImapRequest> extends Ab
         }
         // Expunged messages
         if (!omitExpunged) {
-            final Collection<Long> expungedUids = selected.expungedUids();
+            final UidSet expungedUids = selected.expungedUids();
             if (!expungedUids.isEmpty()) {
                 // Check if QRESYNC was enabled. If so we MUST use VANISHED responses
                 if (EnableProcessor.getEnabledCapabilities(session).contains(ImapConstants.SUPPORTS_QRESYNC)) {
@@ -169,25 +170,23 @@ abstract public class AbstractMailboxProcessor<M extends ImapRequest> extends Ab
         selected.resetEvents();
     }
 
-    private void addExpungedResponses(SelectedMailbox selected, Collection<Long> expungedUids, final ImapProcessor.Responder responder) {
-        for (final Long uid : expungedUids) {
-            final long uidValue = uid.longValue();
+    private void addExpungedResponses(SelectedMailbox selected, UidSet expungedUids, final ImapProcessor.Responder responder) {
+        final int[] msns = selected.removeAll(expungedUids);
 
-            // we need to remove the message in the loop to the sequence numbers
-            // are updated correctly.
-            // See 7.4.1. EXPUNGE Response
-            final int msn = selected.remove(uidValue);
-            ExpungeResponse response = new ExpungeResponse(msn);
+        // All messages are removed at once, so the sequence numbers are the
+        // ones from before. Sending them from the highest to the lowest keeps
+        // them correct for the client, as every EXPUNGE only renumbers the
+        // messages after it.
+        // See 7.4.1. EXPUNGE Response
+        for (int i = msns.length - 1; i >= 0; i--) {
+            ExpungeResponse response = new ExpungeResponse(msns[i]);
             responder.respond(response);
         }
     }
     
-    private void addVanishedResponse(SelectedMailbox selected, Collection<Long> expungedUids, final ImapProcessor.Responder responder) {
-        for (final Long uid : expungedUids) {
-            final long uidValue = uid.longValue();
-            selected.remove(uidValue);
-        }
-        IdRange[] uidRange = idRanges(MessageRange.toRanges(expungedUids));
+    private void addVanishedResponse(SelectedMailbox selected, UidSet expungedUids, final ImapProcessor.Responder responder) {
+        selected.removeAll(expungedUids);
+        IdRange[] uidRange = expungedUids.toIdRanges();
         responder.respond(new VanishedResponse(uidRange, false));
     }
     
@@ -208,9 +207,9 @@ abstract public class AbstractMailboxProcessor<M extends ImapRequest> extends Ab
                 selected.resetNewApplicableFlags();
             }
             
-            final Collection<Long> flagUpdateUids = selected.flagUpdateUids();
+            final UidSet flagUpdateUids = selected.flagUpdateUids();
             if (!flagUpdateUids.isEmpty()) {
-                Iterator<MessageRange> ranges = MessageRange.toRanges(flagUpdateUids).iterator();
+                Iterator<MessageRange> ranges = flagUpdateUids.toMessageRanges().iterator();
                 while(ranges.hasNext()) {
                     addFlagsResponses(session, selected, responder, useUid, ranges.next(), mailbox, mailboxSession);
                 }
@@ -42,6 +42,8 @@ import org.apache.james.imap.message.request.AbstractMailboxSelectionRequest;
 import org.apache.james.imap.message.response.ExistsResponse;
 import org.apache.james.imap.message.response.RecentResponse;
 import org.apache.james.imap.processor.base.SelectedMailboxImpl;
+import org.apache.james.imap.processor.base.UidIndexCache;
+import org.apache.james.imap.processor.base.UidSnapshotRegistry;
 import org.apache.james.mailbox.MailboxManager;
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.MessageManager;
@@ -59,14 +61,30 @@ abstract class AbstractSelectionProcessor<M extends AbstractMailboxSelectionRequ
     final StatusResponseFactory statusResponseFactory;
 
     private final boolean openReadOnly;
+    private final UidSnapshotRegistry snapshots;
+    private final UidIndexCache uidCache;
     private final static List<String> CAPS = Collections.unmodifiableList(Arrays.asList(ImapConstants.SUPPORTS_QRESYNC, ImapConstants.SUPPORTS_CONDSTORE));
 
     
     public AbstractSelectionProcessor(final Class<M> acceptableClass, final ImapProcessor next, final MailboxManager mailboxManager, final StatusResponseFactory statusResponseFactory, final boolean openReadOnly) {
+        this(acceptableClass, next, mailboxManager, statusResponseFactory, openReadOnly, null, null);
+    }
+
+    /**
+     * @param snapshots
+     *            used to share the uids of a mailbox between the sessions
+     *            which selected it, or <code>null</code> to use the one
+     *            of the process
+     * @param uidCache
+     *            used to select a mailbox again without listing all of its
+     *            messages, or <code>null</code> to disable caching
+     */
+    public AbstractSelectionProcessor(final Class<M> acceptableClass, final ImapProcessor next, final MailboxManager mailboxManager, final StatusResponseFactory statusResponseFactory, final boolean openReadOnly, final UidSnapshotRegistry snapshots, final UidIndexCache uidCache) {
         super(acceptableClass, next, mailboxManager, statusResponseFactory);
         this.statusResponseFactory = statusResponseFactory;
         this.openReadOnly = openReadOnly;
-
+        this.snapshots = snapshots;
+        this.uidCache = uidCache;
     }
 
     /**
@@ -116,36 +134,20 @@ abstract class AbstractSelectionProcessor<M extends AbstractMailboxSelectionRequ
         
         
         
+        // All responses are computed from the same meta data, which is also
+        // used to initialize the selected mailbox
         final MessageManager.MetaData metaData = selectMailbox(fullMailboxPath, session);
         final SelectedMailbox selected = session.getSelected();
-        Long firstUnseen = metaData.getFirstUnseen();
         
         flags(responder, selected);
-        exists(responder, metaData);
+        exists(responder, selected);
         recent(responder, selected);
         uidValidity(responder, metaData);
-        
-        
-        // try to write the UNSEEN message to the client and retry if we fail because of concurrent sessions.
-        // 
-        // See IMAP-345
-        int retryCount = 0;
-        while(unseen(responder, firstUnseen, selected, ImapSessionUtils.getMailboxSession(session)) == false) {
-            // if we not was able to get find the unseen within 5 retries we should just not send it
-            if (retryCount == 5) {
-                if (session.getLog().isInfoEnabled()) {
-                    session.getLog().info("Unable to uid for unseen message " + firstUnseen + " in mailbox " + selected.getPath());
-                }
-                break;
-            }
-            firstUnseen = selectMailbox(fullMailboxPath, session).getFirstUnseen();
-            retryCount++;
-            
-        }
+        unseen(responder, metaData.getFirstUnseen(), selected, ImapSessionUtils.getMailboxSession(session));
         
         permanentFlags(responder, metaData, selected);
         highestModSeq(responder, metaData, selected);
-        uidNext(responder, metaData);
+        uidNext(responder, metaData, selected);
         
         if (request.getCondstore()) {
            condstoreEnablingCommand(session, responder, metaData, false);
@@ -340,8 +342,10 @@ abstract class AbstractSelectionProcessor<M extends AbstractMailboxSelectionRequ
         responder.respond(untaggedOk);        
     }
 
-    private void uidNext(final Responder responder, final MessageManager.MetaData metaData) throws MailboxException {
-        final long uid = metaData.getUidNext();
+    private void uidNext(final Responder responder, final MessageManager.MetaData metaData, final SelectedMailbox selected) throws MailboxException {
+        // messages added after the meta data was read may already be part of
+        // the selected mailbox
+        final long uid = Math.max(metaData.getUidNext(), selected.getLastUid() + 1);
         final StatusResponse untaggedOk = statusResponseFactory.untaggedOk(HumanReadableText.UIDNEXT, ResponseCode.uidNext(uid));
         responder.respond(untaggedOk);
     }
@@ -358,24 +362,23 @@ abstract class AbstractSelectionProcessor<M extends AbstractMailboxSelectionRequ
         responder.respond(taggedOk);
     }
 
-    private boolean unseen(Responder responder, Long firstUnseen, final SelectedMailbox selected, MailboxSession session) throws MailboxException {
+    private void unseen(Responder responder, Long firstUnseen, final SelectedMailbox selected, MailboxSession session) throws MailboxException {
         if (firstUnseen != null) {
             final long unseenUid = firstUnseen;
             int msn = selected.msn(unseenUid);
 
             if (msn == SelectedMailbox.NO_SUCH_MESSAGE) {
+                // The message was expunged after the meta data was read, so
+                // there is no UNSEEN to report. See IMAP-345
                 if (session.getLog().isDebugEnabled()) {
                     session.getLog().debug("No message found with uid " + unseenUid + " in mailbox " + selected.getPath().getFullName(session.getPathDelimiter()));
                 }
-                return false;
+                return;
             } 
 
             final StatusResponse untaggedOk = statusResponseFactory.untaggedOk(HumanReadableText.unseen(msn), ResponseCode.unseen(msn));
             responder.respond(untaggedOk);
         }
-        return true;
-
-
     }
 
     private void uidValidity(Responder responder, MessageManager.MetaData metaData) throws MailboxException {
@@ -390,8 +393,8 @@ abstract class AbstractSelectionProcessor<M extends AbstractMailboxSelectionRequ
         responder.respond(recentResponse);
     }
 
-    private void exists(Responder responder, MessageManager.MetaData metaData) throws MailboxException {
-        final long messageCount = metaData.getMessageCount();
+    private void exists(Responder responder, final SelectedMailbox selected) throws MailboxException {
+        final long messageCount = selected.existsCount();
         final ExistsResponse existsResponse = new ExistsResponse(messageCount);
         responder.respond(existsResponse);
     }
@@ -400,6 +403,7 @@ abstract class AbstractSelectionProcessor<M extends AbstractMailboxSelectionRequ
         final MailboxManager mailboxManager = getMailboxManager();
         final MailboxSession mailboxSession = ImapSessionUtils.getMailboxSession(session);
         final MessageManager mailbox = mailboxManager.getMailbox(mailboxPath, mailboxSession);
+        final MessageManager.MetaData metaData = mailbox.getMetaData(!openReadOnly, mailboxSession, MessageManager.MetaData.FetchGroup.FIRST_UNSEEN);
 
         final SelectedMailbox sessionMailbox;
         final SelectedMailbox currentMailbox = session.getSelected();
@@ -413,7 +417,11 @@ abstract class AbstractSelectionProcessor<M extends AbstractMailboxSelectionRequ
             if (currentMailbox != null) {
                 getStatusResponseFactory().untaggedOk(HumanReadableText.QRESYNC_CLOSED, ResponseCode.closed());
             }
-            session.selected(new SelectedMailboxImpl(getMailboxManager(),  session, mailboxPath));
+            if (snapshots == null) {
+                session.selected(new SelectedMailboxImpl(getMailboxManager(), session, mailboxPath, metaData));
+            } else {
+                session.selected(new SelectedMailboxImpl(getMailboxManager(), session, mailboxPath, metaData, snapshots, uidCache));
+            }
 
             sessionMailbox = session.getSelected();
             
@@ -421,7 +429,6 @@ abstract class AbstractSelectionProcessor<M extends AbstractMailboxSelectionRequ
             // TODO: Check if we need to handle CONDSTORE there too 
             sessionMailbox = currentMailbox;
         }
-        final MessageManager.MetaData metaData = mailbox.getMetaData(!openReadOnly, mailboxSession, MessageManager.MetaData.FetchGroup.FIRST_UNSEEN);
         addRecent(metaData, sessionMailbox);
         return metaData;
     }
@@ -26,6 +26,7 @@ import java.util.Date;
 import javax.mail.Flags;
 
 import org.apache.james.imap.api.ImapCommand;
+import org.apache.james.imap.api.ImapMessage;
 import org.apache.james.imap.api.ImapSessionUtils;
 import org.apache.james.imap.api.display.HumanReadableText;
 import org.apache.james.imap.api.message.IdRange;
@@ -51,6 +52,30 @@ public class AppendProcessor extends AbstractMailboxProcessor<AppendRequest> {
         super(AppendRequest.class, next, mailboxManager, statusResponseFactory);
     }
 
+    /**
+     * Releases the message of an APPEND once it is processed, even if it was
+     * refused before {@link #doProcess(AppendRequest, ImapSession, String, ImapCommand, Responder)}
+     * got called. The message may be spooled to a temporary file
+     * 
+     * @see org.apache.james.imap.processor.base.AbstractChainedProcessor#process(org.apache.james.imap.api.ImapMessage,
+     * org.apache.james.imap.api.process.ImapProcessor.Responder,
+     * org.apache.james.imap.api.process.ImapSession)
+     */
+    @Override
+    public void process(ImapMessage message, Responder responder, ImapSession session) {
+        try {
+            super.process(message, responder, session);
+        } finally {
+            if (message instanceof AppendRequest) {
+                try {
+                    ((AppendRequest) message).getMessage().close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+        }
+    }
+
     /**
      * @see
      * org.apache.james.imap.processor.AbstractMailboxProcessor#doProcess(org.apache.james.imap.api.message.request.ImapRequest,
@@ -22,6 +22,8 @@ package org.apache.james.imap.processor;
 import org.apache.james.imap.api.message.response.StatusResponseFactory;
 import org.apache.james.imap.api.process.ImapProcessor;
 import org.apache.james.imap.message.request.ExamineRequest;
+import org.apache.james.imap.processor.base.UidIndexCache;
+import org.apache.james.imap.processor.base.UidSnapshotRegistry;
 import org.apache.james.mailbox.MailboxManager;
 
 public class ExamineProcessor extends AbstractSelectionProcessor<ExamineRequest> {
@@ -29,4 +31,16 @@ public class ExamineProcessor extends AbstractSelectionProcessor<ExamineRequest>
     public ExamineProcessor(final ImapProcessor next, final MailboxManager mailboxManager, final StatusResponseFactory statusResponseFactory) {
         super(ExamineRequest.class, next, mailboxManager, statusResponseFactory, true);
     }
+
+    /**
+     * @param snapshots
+     *            used to share the uids of a mailbox between the sessions
+     *            which selected it
+     * @param uidCache
+     *            used to select a mailbox again without listing all of its
+     *            messages, or <code>null</code> to disable caching
+     */
+    public ExamineProcessor(final ImapProcessor next, final MailboxManager mailboxManager, final StatusResponseFactory statusResponseFactory, final UidSnapshotRegistry snapshots, final UidIndexCache uidCache) {
+        super(ExamineRequest.class, next, mailboxManager, statusResponseFactory, true, snapshots, uidCache);
+    }
 }
@@ -42,6 +42,7 @@ import org.apache.james.imap.api.process.ImapSession;
 import org.apache.james.imap.api.process.SelectedMailbox;
 import org.apache.james.imap.message.request.IdleRequest;
 import org.apache.james.imap.message.response.ContinuationResponse;
+import org.apache.james.imap.processor.base.SelectedMailboxImpl;
 import org.apache.james.mailbox.MailboxListener;
 import org.apache.james.mailbox.MailboxManager;
 import org.apache.james.mailbox.MailboxSession;
@@ -58,6 +59,10 @@ public class IdleProcessor extends AbstractMailboxProcessor<IdleRequest> impleme
     private final static String DONE = "DONE";
     private final TimeUnit heartbeatIntervalUnit;
     private final long heartbeatInterval;
+    // 5 minutes
+    public final static long DEFAULT_HIBERNATE_DELAY_IN_SECONDS = 5 * 60;
+    private final TimeUnit hibernateDelayUnit;
+    private final long hibernateDelay;
 
     public IdleProcessor(final ImapProcessor next, final MailboxManager mailboxManager, final StatusResponseFactory factory) {
         this(next, mailboxManager, factory, DEFAULT_HEARTBEAT_INTERVAL_IN_SECONDS, DEFAULT_HEARTBEAT_INTERVAL_UNIT, Executors.newScheduledThreadPool(DEFAULT_SCHEDULED_POOL_CORE_SIZE));
@@ -65,10 +70,23 @@ public class IdleProcessor extends AbstractMailboxProcessor<IdleRequest> impleme
     }
 
     public IdleProcessor(final ImapProcessor next, final MailboxManager mailboxManager, final StatusResponseFactory factory, long heartbeatInterval, TimeUnit heartbeatIntervalUnit, ScheduledExecutorService heartbeatExecutor) {
+        this(next, mailboxManager, factory, heartbeatInterval, heartbeatIntervalUnit, heartbeatExecutor, DEFAULT_HIBERNATE_DELAY_IN_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param hibernateDelay
+     *            time after which the selected mailbox of an idling session
+     *            is hibernated if nothing happened in it, see
+     *            {@link SelectedMailboxImpl#hibernate()}. Use 0 to never
+     *            hibernate. This needs the heartbeatExecutor
+     */
+    public IdleProcessor(final ImapProcessor next, final MailboxManager mailboxManager, final StatusResponseFactory factory, long heartbeatInterval, TimeUnit heartbeatIntervalUnit, ScheduledExecutorService heartbeatExecutor, long hibernateDelay, TimeUnit hibernateDelayUnit) {
         super(IdleRequest.class, next, mailboxManager, factory);
         this.heartbeatInterval = heartbeatInterval;
         this.heartbeatIntervalUnit = heartbeatIntervalUnit;
         this.heartbeatExecutor = heartbeatExecutor;
+        this.hibernateDelay = hibernateDelay;
+        this.hibernateDelayUnit = hibernateDelayUnit;
 
     }
 
@@ -151,6 +169,22 @@ public class IdleProcessor extends AbstractMailboxProcessor<IdleRequest> impleme
                 }, heartbeatInterval, heartbeatIntervalUnit);
             }
             
+            // Hibernate the selected mailbox while nothing happens in it, so
+            // sessions which idle for hours do not keep all uids on the heap
+            if (hibernateDelay > 0 && heartbeatExecutor != null && sm instanceof SelectedMailboxImpl) {
+                final SelectedMailboxImpl selected = (SelectedMailboxImpl) sm;
+                final long delay = hibernateDelayUnit.toMillis(hibernateDelay);
+                heartbeatExecutor.schedule(new Runnable() {
+
+                    public void run() {
+                        if (session.getState() != ImapSessionState.LOGOUT && idleActive.get() && session.getSelected() == selected) {
+                            selected.hibernateIfIdle(delay);
+                            heartbeatExecutor.schedule(this, delay, TimeUnit.MILLISECONDS);
+                        }
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+            
             // Write the response after the listener was add
             // IMAP-341
             responder.respond(new ContinuationResponse(HumanReadableText.IDLING));
@@ -22,6 +22,8 @@ package org.apache.james.imap.processor;
 import org.apache.james.imap.api.message.response.StatusResponseFactory;
 import org.apache.james.imap.api.process.ImapProcessor;
 import org.apache.james.imap.message.request.SelectRequest;
+import org.apache.james.imap.processor.base.UidIndexCache;
+import org.apache.james.imap.processor.base.UidSnapshotRegistry;
 import org.apache.james.mailbox.MailboxManager;
 
 public class SelectProcessor extends AbstractSelectionProcessor<SelectRequest> {
@@ -30,4 +32,16 @@ public class SelectProcessor extends AbstractSelectionProcessor<SelectRequest> {
         super(SelectRequest.class, next, mailboxManager, statusResponseFactory, false);
     }
 
+    /**
+     * @param snapshots
+     *            used to share the uids of a mailbox between the sessions
+     *            which selected it
+     * @param uidCache
+     *            used to select a mailbox again without listing all of its
+     *            messages, or <code>null</code> to disable caching
+     */
+    public SelectProcessor(final ImapProcessor next, final MailboxManager mailboxManager, final StatusResponseFactory statusResponseFactory, final UidSnapshotRegistry snapshots, final UidIndexCache uidCache) {
+        super(SelectRequest.class, next, mailboxManager, statusResponseFactory, false, snapshots, uidCache);
+    }
+
 }
@@ -56,7 +56,18 @@ abstract public class AbstractChainedProcessor<M extends ImapMessage> implements
     }
 
     /**
-     * Is the given message acceptable?
+     * Return the next <code>ImapProcessor</code> in the chain
+     * 
+     * @return next, not null
+     */
+    protected final ImapProcessor getNext() {
+        return next;
+    }
+
+    /**
+     * Is the given message acceptable? The decision must only depend on the
+     * class of the message, as {@link DispatchingImapProcessor} caches it per
+     * class.
      * 
      * @param message
      *            <code>ImapMessage</code>, not null
@@ -0,0 +1,93 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.base;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.james.imap.api.ImapMessage;
+import org.apache.james.imap.api.process.ImapProcessor;
+import org.apache.james.imap.api.process.ImapSession;
+
+/**
+ * {@link ImapProcessor} which routes each message straight to the
+ * {@link AbstractChainedProcessor} of a chain which accepts it, instead of
+ * letting the message walk down the chain.
+ * 
+ * The chain is walked once when this processor is created. The processor
+ * accepting a message class is looked up on first use and cached, so every
+ * later message of this class costs one lookup. Walking stops at the first
+ * processor which is no {@link AbstractChainedProcessor}; messages not
+ * accepted before are handed to it, so custom processors can still be placed
+ * anywhere in the chain.
+ */
+public class DispatchingImapProcessor implements ImapProcessor {
+
+    private final AbstractChainedProcessor<?>[] processors;
+
+    private final ImapProcessor chainEnd;
+
+    private final ConcurrentMap<Class<?>, ImapProcessor> processorsByClass = new ConcurrentHashMap<Class<?>, ImapProcessor>();
+
+    /**
+     * Constructs a dispatching <code>ImapProcessor</code>.
+     * 
+     * @param chain
+     *            first <code>ImapProcessor</code> of the chain, not null
+     */
+    public DispatchingImapProcessor(final ImapProcessor chain) {
+        final List<AbstractChainedProcessor<?>> chained = new ArrayList<AbstractChainedProcessor<?>>();
+        ImapProcessor processor = chain;
+        while (processor instanceof AbstractChainedProcessor<?>) {
+            final AbstractChainedProcessor<?> chainedProcessor = (AbstractChainedProcessor<?>) processor;
+            chained.add(chainedProcessor);
+            processor = chainedProcessor.getNext();
+        }
+        this.processors = chained.toArray(new AbstractChainedProcessor<?>[chained.size()]);
+        this.chainEnd = processor;
+    }
+
+    /**
+     * @see
+     * org.apache.james.imap.api.process.ImapProcessor#process(org.apache.james.imap.api.ImapMessage,
+     * org.apache.james.imap.api.process.ImapProcessor.Responder,
+     * org.apache.james.imap.api.process.ImapSession)
+     */
+    public void process(ImapMessage message, Responder responder, ImapSession session) {
+        ImapProcessor processor = processorsByClass.get(message.getClass());
+        if (processor == null) {
+            processor = lookup(message);
+            processorsByClass.putIfAbsent(message.getClass(), processor);
+        }
+        processor.process(message, responder, session);
+    }
+
+    private ImapProcessor lookup(ImapMessage message) {
+        for (int i = 0; i < processors.length; i++) {
+            final AbstractChainedProcessor<?> processor = processors[i];
+            if (processor.isAcceptable(message)) {
+                return processor;
+            }
+        }
+        return chainEnd;
+    }
+}
@@ -0,0 +1,147 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.base;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Immutable, compact encoding of sorted uids. Runs of consecutive uids are
+ * stored as the variable length encoded gap to the previous run and the
+ * length of the run. A mailbox without gaps in its uids takes a few bytes,
+ * and even sparse uids rarely take more than two bytes each.
+ * 
+ * The bytes are kept on the heap. Direct buffers would count against the
+ * separately limited direct memory, which many idle sessions could exhaust.
+ */
+final class EncodedUids {
+
+    private final int size;
+
+    private final ByteBuffer data;
+
+    /**
+     * @param uids
+     *            sorted ascending, without duplicates
+     * @param size
+     *            count of uids in the array to use
+     */
+    EncodedUids(long[] uids, int size) {
+        this.size = size;
+        int length = 0;
+        long previous = 0;
+        for (int i = 0; i < size;) {
+            final int end = runEnd(uids, size, i);
+            length += encodedLength(uids[i] - previous) + encodedLength(end - i);
+            previous = uids[end];
+            i = end + 1;
+        }
+        final ByteBuffer data = ByteBuffer.allocate(length);
+        previous = 0;
+        for (int i = 0; i < size;) {
+            final int end = runEnd(uids, size, i);
+            put(data, uids[i] - previous);
+            put(data, end - i);
+            previous = uids[end];
+            i = end + 1;
+        }
+        data.flip();
+        this.data = data;
+    }
+
+    /**
+     * Return the count of uids
+     * 
+     * @return size
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Return the count of bytes the encoded uids take
+     * 
+     * @return bytes
+     */
+    int bytes() {
+        return data.capacity();
+    }
+
+    /**
+     * Decode the uids
+     * 
+     * @return uids, sorted ascending
+     */
+    long[] decode() {
+        final ByteBuffer data = this.data.duplicate();
+        final long[] uids = new long[size];
+        long previous = 0;
+        int i = 0;
+        while (i < size) {
+            long uid = previous + get(data);
+            final long run = get(data);
+            for (long j = 0; j <= run; j++) {
+                uids[i++] = uid++;
+            }
+            previous = uid - 1;
+        }
+        return uids;
+    }
+
+    /**
+     * Return the index of the last uid of the run of consecutive uids which
+     * starts at the given index
+     */
+    private static int runEnd(long[] uids, int size, int start) {
+        int end = start;
+        while (end + 1 < size && uids[end + 1] == uids[end] + 1) {
+            end++;
+        }
+        return end;
+    }
+
+    private static void put(ByteBuffer data, long value) {
+        while ((value & ~0x7FL) != 0) {
+            data.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        data.put((byte) value);
+    }
+
+    private static long get(ByteBuffer data) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static int encodedLength(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+}
@@ -20,29 +20,31 @@
 package org.apache.james.imap.processor.base;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.mail.Flags;
 import javax.mail.Flags.Flag;
 
 import org.apache.james.imap.api.ImapSessionUtils;
+import org.apache.james.imap.api.message.UidSet;
 import org.apache.james.imap.api.process.ImapSession;
 import org.apache.james.imap.api.process.SelectedMailbox;
 import org.apache.james.mailbox.MailboxListener;
 import org.apache.james.mailbox.MailboxManager;
 import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageManager;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.model.MailboxPath;
 import org.apache.james.mailbox.model.MessageRange;
-import org.apache.james.mailbox.model.MessageResult;
 import org.apache.james.mailbox.model.MessageResultIterator;
+import org.apache.james.mailbox.model.SearchQuery;
 import org.apache.james.mailbox.model.UpdatedFlags;
 
 /**
@@ -50,13 +52,17 @@ import org.apache.james.mailbox.model.UpdatedFlags;
  */
 public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
 
-    private final Set<Long> recentUids = new TreeSet<Long>();
+    private final UidSet recentUids = new UidSet();
 
     private boolean recentUidRemoved = false;
 
     private MailboxManager mailboxManager;
 
-    private MailboxPath path;
+    /**
+     * Changed by renames while the events are applied, and read by
+     * {@link #fold(Event)} on the thread which delivers the events
+     */
+    private volatile MailboxPath path;
 
     private final ImapSession session;
     
@@ -71,86 +77,338 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
     }
     
     private final long sessionId;
-    private final Set<Long> flagUpdateUids = new TreeSet<Long>();;
-    private final Flags.Flag uninterestingFlag = Flags.Flag.RECENT;
-    private final Set<Long> expungedUids = new TreeSet<Long>();
+    private final UidSet flagUpdateUids = new UidSet();
+    private final UidSet expungedUids = new UidSet();
 
     private boolean isDeletedByOtherSession = false;
     private boolean sizeChanged = false;
     private boolean silentFlagChanges = false;
-    private final Flags applicableFlags = new Flags(FLAGS);
+    private Flags applicableFlags;
 
     private boolean applicableFlagsChanged;
     
-    private final SortedMap<Integer, Long> msnToUid =new TreeMap<Integer, Long>();;
+    /** null while the session is hibernated with its uids encoded */
+    private UidMsnIndex index;
+
+    private UidSnapshotRegistry.Key key;
+
+    /** the uids while the index is dropped, see {@link #hibernate()} */
+    private EncodedUids hibernated;
+
+    /** true while the session is hibernated, see {@link #hibernate()} */
+    private boolean asleep;
+
+    private long lastAccess;
+
+    /** events which were received but not yet applied */
+    private final Queue<Event> events = new ConcurrentLinkedQueue<Event>();
 
-    private final SortedMap<Long, Integer> uidToMsn = new TreeMap<Long, Integer>();
+    /** number of events in {@link #events} */
+    private final AtomicInteger queued = new AtomicInteger();
 
-    private long highestUid = 0;
+    /**
+     * Default number of queued events past which they are folded, see
+     * {@link #event(Event)}
+     */
+    public static final int DEFAULT_MAX_QUEUED_EVENTS = 256;
 
-    private int highestMsn = 0;
+    private final int maxQueuedEvents;
+
+    /**
+     * events which were folded but not yet applied. Guards {@link #events}
+     * while they are folded or applied
+     */
+    private final FoldedEvents folded = new FoldedEvents();
+
+    private boolean applyingEvents = false;
     
+    /**
+     * snapshots of the uids of the mailboxes selected by sessions which were
+     * not given a registry
+     */
+    private final static UidSnapshotRegistry SNAPSHOTS = new UidSnapshotRegistry();
+
+    private final UidSnapshotRegistry snapshots;
+
+    /** null if the uids are not cached */
+    private final UidIndexCache cache;
+    
+    /** true if the mailbox allows to store user flags */
+    private boolean userFlagsPermanent;
+
+    /** HIGHESTMODSEQ of the cached uids this session was initialized from, -1 if not cached */
+    private long cachedModSeq = -1;
+
     public SelectedMailboxImpl(final MailboxManager mailboxManager, final ImapSession session, final MailboxPath path) throws MailboxException {
+        this(mailboxManager, session, path, null);
+    }
+
+    /**
+     * @param metaData
+     *            meta data of the mailbox to initialize from, or null to
+     *            read it. Passing the meta data which is used to respond
+     *            to the SELECT keeps the responses consistent with the uids
+     *            of the mailbox
+     */
+    public SelectedMailboxImpl(final MailboxManager mailboxManager, final ImapSession session, final MailboxPath path, final MessageManager.MetaData metaData) throws MailboxException {
+        this(mailboxManager, session, path, metaData, SNAPSHOTS, null);
+    }
+
+    /**
+     * @param metaData
+     *            meta data of the mailbox to initialize from, or null to
+     *            read it
+     * @param snapshots
+     *            used to share the uids of the mailbox with other sessions
+     *            which selected it
+     * @param cache
+     *            used to select the mailbox again without listing all of its
+     *            messages, or <code>null</code> to list them every time
+     */
+    public SelectedMailboxImpl(final MailboxManager mailboxManager, final ImapSession session, final MailboxPath path, final MessageManager.MetaData metaData, final UidSnapshotRegistry snapshots, final UidIndexCache cache) throws MailboxException {
+        this(mailboxManager, session, path, metaData, snapshots, cache, DEFAULT_MAX_QUEUED_EVENTS);
+    }
+
+    /**
+     * @param metaData
+     *            meta data of the mailbox to initialize from, or null to
+     *            read it
+     * @param snapshots
+     *            used to share the uids of the mailbox with other sessions
+     *            which selected it
+     * @param cache
+     *            used to select the mailbox again without listing all of its
+     *            messages, or <code>null</code> to list them every time
+     * @param maxQueuedEvents
+     *            number of queued events past which they are folded into
+     *            sets of uids, see {@link #event(Event)}
+     */
+    public SelectedMailboxImpl(final MailboxManager mailboxManager, final ImapSession session, final MailboxPath path, final MessageManager.MetaData metaData, final UidSnapshotRegistry snapshots, final UidIndexCache cache, int maxQueuedEvents) throws MailboxException {
         this.session = session;
+        this.maxQueuedEvents = maxQueuedEvents;
+        this.snapshots = snapshots;
+        this.cache = cache;
         this.sessionId = ImapSessionUtils.getMailboxSession(session).getSessionId();
         this.mailboxManager = mailboxManager;
         
         // Ignore events from our session
         setSilentFlagChanges(true);
         this.path = path;
-        init();
+        init(metaData);
     }
  
 
-    private void init() throws MailboxException {
+    /**
+     * Search the uids of all messages in the mailbox. The uids are shared with
+     * other sessions which selected the same mailbox. If the mailbox allows
+     * user flags, the applicable flags are only read once they are asked for,
+     * see {@link #getApplicableFlags()}.
+     * 
+     * If a cache is used and the mailbox stores mod-sequences its uids and
+     * flags are cached, so selecting it again only needs to look at the
+     * messages changed since.
+     * 
+     * @throws MailboxException
+     */
+    private void init(MessageManager.MetaData metaData) throws MailboxException {
         MailboxSession mailboxSession = ImapSessionUtils.getMailboxSession(session);
         
         mailboxManager.addListener(path, this, mailboxSession);
 
-        MessageResultIterator messages = mailboxManager.getMailbox(path, mailboxSession).getMessages(MessageRange.all(), FetchGroupImpl.MINIMAL, mailboxSession);
-        synchronized (this) {
-            while(messages.hasNext()) {
-                MessageResult mr = messages.next();
-                applicableFlags.add(mr.getFlags());
-                add(mr.getUid());
+        MessageManager mailbox = mailboxManager.getMailbox(path, mailboxSession);
+        final boolean readBeforeListener = metaData != null;
+        if (metaData == null) {
+            metaData = mailbox.getMetaData(false, mailboxSession, MessageManager.MetaData.FetchGroup.NO_COUNT);
+        }
+        final UidSnapshotRegistry.Key key = new UidSnapshotRegistry.Key(path, metaData.getUidValidity());
+        // only mailboxes which store mod-sequences can be caught up with
+        // the messages changed since their uids were cached
+        final boolean cacheable = cache != null && metaData.isModSeqPermanent();
+        long highestModSeq = metaData.getHighestModSeq();
+        final long count;
+        if (readBeforeListener && cacheable) {
+            // The given meta data was read before the listener was added, so
+            // messages added or expunged in between are not delivered as
+            // events. The cached uids are only caught up to the HIGHESTMODSEQ
+            // and checked against the count, so both must be read again now
+            highestModSeq = mailbox.getMetaData(false, mailboxSession, MessageManager.MetaData.FetchGroup.NO_COUNT).getHighestModSeq();
+            count = mailbox.getMessageCount(mailboxSession);
+        } else if (readBeforeListener) {
+            // only used to size the array, the uids are listed after the
+            // listener was added
+            count = metaData.getMessageCount();
+        } else {
+            count = mailbox.getMessageCount(mailboxSession);
+        }
+        userFlagsPermanent = metaData.getPermanentFlags().contains(Flags.Flag.USER);
+
+        Flags flags = new Flags(FLAGS);
+        long[] uids = null;
+        final UidIndexCache.Entry entry = cacheable ? cache.get(key) : null;
+        if (entry != null) {
+            uids = cachedUids(mailbox, mailboxSession, key, entry, highestModSeq, count, flags);
+            if (uids != null && userFlagsPermanent && entry.getFlags() == null) {
+                flags = null;
             }
-            
-          
+        }
+        if (uids == null) {
+            final long[] array = new long[(int) Math.min(Math.max(count, 1), Integer.MAX_VALUE)];
+            final SearchQuery query = new SearchQuery();
+            query.andCriteria(SearchQuery.all());
+            uids = sortedUids(mailbox.search(query, mailboxSession), array, 0);
+            if (userFlagsPermanent) {
+                flags = null;
+            }
+            if (cacheable) {
+                cache.put(key, highestModSeq, uids, uids.length, flags);
+            }
+        }
+        if (flags != null) {
             // \RECENT is not a applicable flag in imap so remove it from the list
-            applicableFlags.remove(Flags.Flag.RECENT);
+            flags.remove(Flags.Flag.RECENT);
+        }
+        synchronized (this) {
+            this.key = key;
+            applicableFlags = flags;
+            cachedModSeq = cacheable ? highestModSeq : -1;
+            index = new UidMsnIndex(snapshots, key, uids, uids.length);
+            lastAccess = System.currentTimeMillis();
         }
        
     }
 
-    private void add(int msn, long uid) {
-        if (uid > highestUid) {
-            highestUid = uid;
+    /**
+     * Return the cached uids of the mailbox, caught up with the messages
+     * added since they were cached. If the flags are cached too, they are
+     * added to the given flags with the flags of the messages changed since
+     * 
+     * @return uids, or null if the cached uids are newer or messages were
+     *         expunged since they were cached
+     * @throws MailboxException
+     */
+    private long[] cachedUids(MessageManager mailbox, MailboxSession mailboxSession, UidSnapshotRegistry.Key key, UidIndexCache.Entry entry, long highestModSeq, long count, Flags flags) throws MailboxException {
+        if (entry.getHighestModSeq() > highestModSeq) {
+            return null;
+        }
+        final Flags cachedFlags = entry.getFlags();
+        long[] uids = entry.getUids();
+        List<Long> changed = Collections.emptyList();
+        if (entry.getHighestModSeq() < highestModSeq) {
+            final SearchQuery query = new SearchQuery();
+            query.andCriteria(SearchQuery.modSeqGreaterThan(entry.getHighestModSeq()));
+            changed = new ArrayList<Long>();
+            final Iterator<Long> it = mailbox.search(query, mailboxSession);
+            while (it.hasNext()) {
+                changed.add(it.next());
+            }
+            uids = sortedUids(changed.iterator(), uids, uids.length);
+        }
+        if (uids.length != count) {
+            // Expunged messages are not found by their mod-sequence, so the
+            // cached uids can not be used anymore
+            cache.remove(key);
+            return null;
+        }
+        if (cachedFlags != null) {
+            flags.add(cachedFlags);
+        }
+        if (userFlagsPermanent && cachedFlags != null && !changed.isEmpty()) {
+            for (MessageRange range : MessageRange.toRanges(changed)) {
+                final MessageResultIterator messages = mailbox.getMessages(range, FetchGroupImpl.MINIMAL, mailboxSession);
+                while (messages.hasNext()) {
+                    flags.add(messages.next().getFlags());
+                }
+                if (messages.getException() != null) {
+                    throw messages.getException();
+                }
+            }
+        }
+        if (entry.getHighestModSeq() < highestModSeq) {
+            cache.put(key, highestModSeq, uids, uids.length, userFlagsPermanent && cachedFlags != null ? flags : cachedFlags);
+        }
+        return uids;
+    }
+
+    /**
+     * Add the uids to the first uids of the given array and return them
+     * sorted, without duplicates
+     */
+    private static long[] sortedUids(Iterator<Long> it, long[] uids, int size) {
+        boolean ordered = true;
+        while(it.hasNext()) {
+            if (size == uids.length) {
+                uids = Arrays.copyOf(uids, uids.length + (uids.length >> 1) + 1);
+            }
+            uids[size] = it.next();
+            if (size > 0 && uids[size - 1] >= uids[size]) {
+                ordered = false;
+            }
+            size++;
         }
-        msnToUid.put(msn, uid);
-        uidToMsn.put(uid, msn);
+        if (!ordered) {
+            Arrays.sort(uids, 0, size);
+            int unique = 0;
+            for (int i = 0; i < size; i++) {
+                if (unique == 0 || uids[unique - 1] != uids[i]) {
+                    uids[unique++] = uids[i];
+                }
+            }
+            size = unique;
+        }
+        return size == uids.length ? uids : Arrays.copyOf(uids, size);
     }
 
     /**
-     * Expunge the message with the given uid
+     * Return the index, restoring it first if the session is hibernated.
+     * Must be called while holding the monitor
+     */
+    private UidMsnIndex index() {
+        if (index == null) {
+            final long[] uids = hibernated.decode();
+            index = new UidMsnIndex(snapshots, key, uids, uids.length);
+            hibernated = null;
+        }
+        asleep = false;
+        lastAccess = System.currentTimeMillis();
+        return index;
+    }
+
+    /**
+     * Hibernate the session if its uids were not used for the given time,
+     * see {@link #hibernate()}
      * 
-     * @param uid
+     * @param idleTime
+     *            in milliseconds
+     * @return true if the session is hibernated
      */
-    private void expunge(final long uid) {
-        final int msn = msn(uid);
-        remove(msn, uid);
-        final List<Integer> renumberMsns = new ArrayList<Integer>(msnToUid.tailMap(msn + 1).keySet());
-        for (final Integer msnInteger : renumberMsns) {
-            int aMsn = msnInteger.intValue();
-            long aUid = uid(aMsn);
-            remove(aMsn, aUid);
-            add(aMsn - 1, aUid);
+    public synchronized boolean hibernateIfIdle(long idleTime) {
+        if (!asleep && System.currentTimeMillis() - lastAccess >= idleTime) {
+            hibernate();
         }
-        highestMsn--;
+        return asleep;
     }
 
-    private void remove(int msn, long uid) {
-        uidToMsn.remove(uid);
-        msnToUid.remove(msn);
+    /**
+     * Hibernate the session. This is meant for sessions which are idle for a
+     * long time, for example in IDLE. The next access wakes the session up
+     * again.
+     * 
+     * If other sessions share the snapshot of the uids, it is kept, as it
+     * stays in memory anyway, and only the room reserved for changes of this
+     * session is dropped. Otherwise the uids are kept in compact form and
+     * the index is dropped, to be restored on the next access.
+     */
+    public synchronized void hibernate() {
+        if (index != null) {
+            if (index.isShared()) {
+                index.trim();
+            } else {
+                hibernated = new EncodedUids(index.toArray(), index.size());
+                index.clear();
+                index = null;
+            }
+        }
+        asleep = true;
     }
 
     /**
@@ -159,10 +417,7 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
      * @param uid
      */
     private void add(long uid) {
-        if (!uidToMsn.containsKey(uid)) {
-            highestMsn++;
-            add(highestMsn, uid);
-        }
+        index().add(uid);
     }
 
     /**
@@ -175,11 +430,7 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
      */
     @Override
     public synchronized long getFirstUid() {
-        if (uidToMsn.isEmpty()) {
-            return -1;
-        } else {
-            return uidToMsn.firstKey();
-        }
+        return index().first();
     }
 
     /**
@@ -187,11 +438,7 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
      */
     @Override
     public synchronized long getLastUid() {
-        if (uidToMsn.isEmpty()) {
-            return -1;
-        } else {
-            return uidToMsn.lastKey();
-        }
+        return index().last();
     }
 
 
@@ -207,8 +454,18 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
             }
         }
         
-        uidToMsn.clear();
-        msnToUid.clear();
+        if (index != null) {
+            index.clear();
+        } else {
+            index = new UidMsnIndex();
+        }
+        hibernated = null;
+        asleep = false;
+        synchronized (folded) {
+            events.clear();
+            queued.set(0);
+            folded.clear();
+        }
         flagUpdateUids.clear();
 
         expungedUids.clear();
@@ -240,9 +497,10 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
      * @see org.apache.james.imap.api.process.SelectedMailbox#getRecent()
      */
     @Override
-    public synchronized Collection<Long> getRecent() {
+    public synchronized UidSet getRecent() {
+        applyEvents();
         checkExpungedRecents();
-        return new ArrayList<Long>(recentUids);
+        return recentUids.snapshot();
     }
 
     /**
@@ -250,6 +508,7 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
      */
     @Override
     public synchronized int recentCount() {
+        applyEvents();
         checkExpungedRecents();
         return recentUids.size();
     }
@@ -259,11 +518,12 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
      */
     @Override
     public synchronized MailboxPath getPath() {
+        applyEvents();
         return path;
     }
 
     private void checkExpungedRecents() {
-        for (final long uid : expungedUids()) {
+        for (final long uid : expungedUids.toLongArray()) {
             removeRecent(uid);
         }
     }
@@ -273,6 +533,7 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
      */
     @Override
     public synchronized boolean isRecent(long uid) {
+        applyEvents();
         return recentUids.contains(uid);
     }
 
@@ -282,6 +543,7 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
      */
     @Override
     public synchronized boolean isRecentUidRemoved() {
+        applyEvents();
         return recentUidRemoved;
     }
 
@@ -298,6 +560,7 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
      * @see org.apache.james.imap.api.process.SelectedMailbox#resetEvents()
      */
     public synchronized void resetEvents() {
+        applyEvents();
         sizeChanged = false;
         flagUpdateUids.clear();
         isDeletedByOtherSession = false;
@@ -310,37 +573,41 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
      */
     @Override
     public synchronized  int remove(Long uid) {
-        final int result = msn(uid);
-        expunge(uid);
-        return result;
+        return index().remove(uid);
     }
 
-
-
-    private boolean interestingFlags(UpdatedFlags updated) {
-        boolean result;
-        final Iterator<Flags.Flag> it = updated.systemFlagIterator();
-        if (it.hasNext()) {
-            final Flags.Flag flag = it.next();
-            if (flag.equals(uninterestingFlag)) {
-                result = false;
-            } else {
-                result = true;
+    /**
+     * @see
+     * org.apache.james.imap.api.process.SelectedMailbox#removeAll(java.util.Collection)
+     */
+    @Override
+    public synchronized int[] removeAll(Collection<Long> uids) {
+        if (uids instanceof UidSet) {
+            final long[] sorted = ((UidSet) uids).toLongArray();
+            return index().removeAll(sorted, sorted.length);
+        }
+        final long[] sorted = new long[uids.size()];
+        int count = 0;
+        boolean ordered = true;
+        for (final Long uid : uids) {
+            sorted[count] = uid;
+            if (count > 0 && sorted[count - 1] >= sorted[count]) {
+                ordered = false;
             }
-        } else {
-            result = false;
+            count++;
         }
-        // See if we need to check the user flags
-        if (result == false) {
-            final Iterator<String> userIt = updated.userFlagIterator();
-            result = userIt.hasNext();
+        if (!ordered) {
+            Arrays.sort(sorted);
         }
-        return result;
+        return index().removeAll(sorted, count);
     }
 
+
+
     
     @Override
     public synchronized void resetExpungedUids() {
+        applyEvents();
         expungedUids.clear();
     }
 
@@ -372,6 +639,7 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
      */
     @Override
     public synchronized final boolean isSizeChanged() {
+        applyEvents();
         return sizeChanged;
     }
 
@@ -383,47 +651,91 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
      */
     @Override
     public synchronized final boolean isDeletedByOtherSession() {
+        applyEvents();
         return isDeletedByOtherSession;
     }
 
     /**
-     * Return a unmodifiable {@link Collection} of uids which have updated flags
+     * Return a snapshot of the uids which have updated flags. The snapshot
+     * is not affected by later changes, see IMAP-278
      * 
      * @return uids
      */
     @Override
-    public synchronized Collection<Long> flagUpdateUids() {
-        // copy the TreeSet to fix possible
-        // java.util.ConcurrentModificationException
-        // See IMAP-278
-        return Collections.unmodifiableSet(new TreeSet<Long>(flagUpdateUids));
+    public synchronized UidSet flagUpdateUids() {
+        applyEvents();
+        return flagUpdateUids.snapshot();
         
     }
 
     /**
-     * Return a unmodifiable {@link Collection} of uids that where expunged
+     * Return a snapshot of the uids that where expunged. The snapshot is not
+     * affected by later changes, see IMAP-278
      * 
      * @return uids
      */
     @Override
-    public synchronized Collection<Long> expungedUids() {
-        // copy the TreeSet to fix possible
-        // java.util.ConcurrentModificationException
-        // See IMAP-278
-        return Collections.unmodifiableSet(new TreeSet<Long>(expungedUids));
+    public synchronized UidSet expungedUids() {
+        applyEvents();
+        return expungedUids.snapshot();
         
     }
 
 
 
 
+    /**
+     * Return the applicable flags. If the mailbox allows user flags and they
+     * are not cached, the flags of all messages are read the first time, as
+     * the mailbox offers no cheaper way to list the user flags in use. If
+     * this fails, only the system flags are returned and reading is tried
+     * again the next time
+     * 
+     * @see org.apache.james.imap.api.process.SelectedMailbox#getApplicableFlags()
+     */
     @Override
     public synchronized Flags getApplicableFlags() {
+        applyEvents();
+        if (applicableFlags == null) {
+            try {
+                applicableFlags = loadApplicableFlags();
+            } catch (MailboxException e) {
+                session.getLog().warn("Unable to read the flags of mailbox " + path + ", so only the system flags are applicable", e);
+                return new Flags(FLAGS);
+            }
+        }
         return applicableFlags;
     }
 
+    /**
+     * Read the flags of all messages and keep them in the cache entry of the
+     * mailbox, if it still holds the uids this session was initialized from
+     */
+    private Flags loadApplicableFlags() throws MailboxException {
+        final MailboxSession mailboxSession = ImapSessionUtils.getMailboxSession(session);
+        final MessageManager mailbox = mailboxManager.getMailbox(path, mailboxSession);
+        final Flags flags = new Flags(FLAGS);
+        final MessageResultIterator messages = mailbox.getMessages(MessageRange.all(), FetchGroupImpl.MINIMAL, mailboxSession);
+        while (messages.hasNext()) {
+            flags.add(messages.next().getFlags());
+        }
+        if (messages.getException() != null) {
+            throw messages.getException();
+        }
+        // \RECENT is not a applicable flag in imap so remove it from the list
+        flags.remove(Flags.Flag.RECENT);
+        if (cachedModSeq != -1) {
+            final UidIndexCache.Entry entry = cache.get(key);
+            if (entry != null && entry.getFlags() == null && entry.getHighestModSeq() == cachedModSeq) {
+                cache.put(key, cachedModSeq, entry.getUids(), entry.size(), flags);
+            }
+        }
+        return flags;
+    }
+
     @Override
     public synchronized boolean hasNewApplicableFlags() {
+        applyEvents();
         return applicableFlagsChanged;
     }
 
@@ -432,11 +744,158 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
         applicableFlagsChanged = false;
     }
 
+    /**
+     * Queue the event. It is applied by the session itself the next time
+     * the state of the mailbox is queried, so the thread which delivers the
+     * events never needs to wait for the monitor held by a running command.
+     * 
+     * A session which does not query the state for a while, e.g. because it
+     * neither runs a command nor IDLEs, would keep every event. So once more
+     * than the configured maximum of events are queued they are folded into sets of
+     * uids, which only need memory for the distinct uids.
+     * 
+     * @see org.apache.james.mailbox.MailboxListener#event(org.apache.james.mailbox.MailboxListener.Event)
+     */
     @Override
-    public synchronized void event(Event event) {
+    public void event(Event event) {
+        events.add(event);
+        if (queued.incrementAndGet() > maxQueuedEvents) {
+            synchronized (folded) {
+                if (queued.get() > maxQueuedEvents) {
+                    Event e;
+                    while ((e = events.poll()) != null) {
+                        queued.decrementAndGet();
+                        fold(e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply all folded and queued events. Must be called while holding the
+     * monitor
+     */
+    private void applyEvents() {
+        if (applyingEvents) {
+            return;
+        }
+        applyingEvents = true;
+        try {
+            synchronized (folded) {
+                applyFolded();
+                Event event;
+                while ((event = events.poll()) != null) {
+                    queued.decrementAndGet();
+                    apply(event);
+                }
+            }
+        } finally {
+            applyingEvents = false;
+        }
+    }
+
+    /**
+     * Fold the event into {@link #folded}. Must be called while holding the
+     * lock of {@link #folded}
+     */
+    private void fold(Event event) {
+        final MailboxPath target = folded.path == null ? path : folded.path;
+        if (!event.getMailboxPath().equals(target)) {
+            return;
+        }
+        final long eventSessionId = event.getSession().getSessionId();
+        if (event instanceof Added) {
+            folded.sizeChanged = true;
+            folded.added.addAll(((Added) event).getUids());
+        } else if (event instanceof FlagsUpdated) {
+            final List<UpdatedFlags> uFlags = ((FlagsUpdated) event).getUpdatedFlags();
+            final UidSet updated = eventSessionId == sessionId ? folded.ownFlagUpdates : folded.flagUpdates;
+            for (int i = 0; i < uFlags.size(); i++) {
+                final UpdatedFlags u = uFlags.get(i);
+                boolean interesting = false;
+                final Iterator<Flag> systemFlags = u.systemFlagIterator();
+                while (systemFlags.hasNext()) {
+                    if (Flag.RECENT.equals(systemFlags.next())) {
+                        folded.recent.add(u.getUid());
+                    } else {
+                        interesting = true;
+                    }
+                }
+                final Iterator<String> userFlags = u.userFlagIterator();
+                while (userFlags.hasNext()) {
+                    interesting = true;
+                    final String userFlag = userFlags.next();
+                    if (u.getNewFlags().contains(userFlag)) {
+                        folded.userFlags.add(userFlag);
+                    }
+                }
+                if (interesting) {
+                    updated.add(u.getUid());
+                }
+            }
+        } else if (event instanceof Expunged) {
+            folded.expunged.addAll(((Expunged) event).getUids());
+        } else if (event instanceof MailboxDeletion) {
+            if (eventSessionId != sessionId) {
+                folded.deleted = true;
+            }
+        } else if (event instanceof MailboxRenamed) {
+            folded.path = ((MailboxRenamed) event).getNewPath();
+        }
+    }
+
+    /**
+     * Apply the events which were folded by {@link #fold(Event)}, in the
+     * same way {@link #apply(Event)} would have applied them one by one
+     */
+    private void applyFolded() {
+        if (folded.isEmpty()) {
+            return;
+        }
+        if (folded.sizeChanged) {
+            sizeChanged = true;
+            final Iterator<Long> added = folded.added.iterator();
+            while (added.hasNext()) {
+                add(added.next());
+            }
+        }
+        flagUpdateUids.addAll(folded.flagUpdates);
+        if (!silentFlagChanges) {
+            flagUpdateUids.addAll(folded.ownFlagUpdates);
+        }
+        if (!folded.recent.isEmpty()) {
+            // See IMAP-287
+            final MailboxPath target = folded.path == null ? path : folded.path;
+            final SelectedMailbox sm = session.getSelected();
+            if (sm != null && (sm == this || target.equals(sm.getPath()))) {
+                final Iterator<Long> recent = folded.recent.iterator();
+                while (recent.hasNext()) {
+                    sm.addRecent(recent.next());
+                }
+            }
+        }
+        final String[] userFlags = folded.userFlags.getUserFlags();
+        for (int i = 0; applicableFlags != null && i < userFlags.length; i++) {
+            if (!applicableFlags.contains(userFlags[i])) {
+                applicableFlags.add(userFlags[i]);
+                applicableFlagsChanged = true;
+            }
+        }
+        expungedUids.addAll(folded.expunged);
+        if (folded.deleted) {
+            isDeletedByOtherSession = true;
+        }
+        if (folded.path != null) {
+            path = folded.path;
+        }
+        folded.clear();
+    }
+
+    private void apply(Event event) {
 
         // Check if the event was for the mailbox we are observing
-        if (event.getMailboxPath().equals(getPath())) {
+        if (event.getMailboxPath().equals(path)) {
             final long eventSessionId = event.getSession().getSessionId();
             if (event instanceof MessageEvent) {
                 final MessageEvent messageEvent = (MessageEvent) event;
@@ -448,65 +907,12 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
                         add(uids.get(i));
                     }
                 } else if (messageEvent instanceof FlagsUpdated) {
-                    FlagsUpdated updated = (FlagsUpdated) messageEvent;
-                    List<UpdatedFlags> uFlags = updated.getUpdatedFlags();
-                    if (sessionId != eventSessionId || !silentFlagChanges) {
-
-                        for (int i = 0; i < uFlags.size(); i++) {
-                            UpdatedFlags u = uFlags.get(i);
-
-                            if (interestingFlags(u)) {
-
-                                flagUpdateUids.add(u.getUid());
-
-                            }
-                        }
-                    }
-
-                    SelectedMailbox sm = session.getSelected();
-                    if (sm != null) {
-                        // We need to add the UID of the message to the recent
-                        // list if we receive an flag update which contains a
-                        // \RECENT flag
-                        // See IMAP-287
-                        List<UpdatedFlags> uflags = updated.getUpdatedFlags();
-                        for (int i = 0; i < uflags.size(); i++) {
-                            UpdatedFlags u = uflags.get(i);
-                            Iterator<Flag> flags = u.systemFlagIterator();
-
-                            while (flags.hasNext()) {
-                                if (Flag.RECENT.equals(flags.next())) {
-                                    MailboxPath path = sm.getPath();
-                                    if (path != null && path.equals(event.getMailboxPath())) {
-                                        sm.addRecent(u.getUid());
-                                    }
-                                }
-                            }
-                          
-
-                        }
-                    }
-                    
-                    int size = applicableFlags.getUserFlags().length;
-                    FlagsUpdated updatedF = (FlagsUpdated) messageEvent;
-                    List<UpdatedFlags> flags = updatedF.getUpdatedFlags();
-
-                    for (int i = 0; i < flags.size(); i++) {
-                        applicableFlags.add(flags.get(i).getNewFlags());
-
-                    }
-
-                    // \RECENT is not a applicable flag in imap so remove it
-                    // from the list
-                    applicableFlags.remove(Flags.Flag.RECENT);
-
-                    if (size < applicableFlags.getUserFlags().length) {
-                        applicableFlagsChanged = true;
-                    }
-                    
-                    
+                    apply((FlagsUpdated) messageEvent, sessionId != eventSessionId || !silentFlagChanges);
                 } else if (messageEvent instanceof Expunged) {
-                    expungedUids.addAll(messageEvent.getUids());
+                    final List<Long> uids = messageEvent.getUids();
+                    for (int i = 0; i < uids.size(); i++) {
+                        expungedUids.add(uids.get(i).longValue());
+                    }
                     
                 }
             } else if (event instanceof MailboxDeletion) {
@@ -520,33 +926,107 @@ public class SelectedMailboxImpl implements SelectedMailbox, MailboxListener{
         }
     }
 
+    /**
+     * Apply the updated flags of all messages in a single pass over them.
+     * Messages whose flags are updated several times are only marked once, so
+     * a burst of updates results in one FETCH response per message
+     * 
+     * @param updated
+     * @param notify
+     *            true if the changes must be reported to the client
+     */
+    private void apply(FlagsUpdated updated, boolean notify) {
+        final List<UpdatedFlags> uFlags = updated.getUpdatedFlags();
+        SelectedMailbox sm = null;
+        for (int i = 0; i < uFlags.size(); i++) {
+            final UpdatedFlags u = uFlags.get(i);
+            boolean interesting = false;
+            final Iterator<Flag> systemFlags = u.systemFlagIterator();
+            while (systemFlags.hasNext()) {
+                if (Flag.RECENT.equals(systemFlags.next())) {
+                    // We need to add the UID of the message to the recent
+                    // list if we receive an flag update which contains a
+                    // \RECENT flag
+                    // See IMAP-287
+                    if (sm == null) {
+                        sm = session.getSelected();
+                    }
+                    if (sm != null) {
+                        MailboxPath path = sm == this ? this.path : sm.getPath();
+                        if (path != null && path.equals(updated.getMailboxPath())) {
+                            sm.addRecent(u.getUid());
+                        }
+                    }
+                } else {
+                    interesting = true;
+                }
+            }
+            final Iterator<String> userFlags = u.userFlagIterator();
+            while (userFlags.hasNext()) {
+                interesting = true;
+                final String userFlag = userFlags.next();
+                // Until the applicable flags are computed there is nothing to
+                // update, the new flags are part of the mailbox by then
+                if (applicableFlags != null && !applicableFlags.contains(userFlag) && u.getNewFlags().contains(userFlag)) {
+                    applicableFlags.add(userFlag);
+                    applicableFlagsChanged = true;
+                }
+            }
+            if (interesting && notify) {
+                flagUpdateUids.add(u.getUid());
+            }
+        }
+    }
+
     @Override
     public synchronized int msn(long uid) {
-        Integer msn = uidToMsn.get(uid);
-        if (msn != null) {
-            return msn.intValue();
-        } else {
-            return SelectedMailbox.NO_SUCH_MESSAGE;
-        }
+        return index().msn(uid);
     }
 
     @Override
     public synchronized long uid(int msn) {
-        if (msn == -1) {
-            return SelectedMailbox.NO_SUCH_MESSAGE;
-        }
-        Long uid = msnToUid.get(msn);
-        if (uid != null) {
-            return uid.longValue();
-        } else {
-            return SelectedMailbox.NO_SUCH_MESSAGE;
-        }
+        return index().uid(msn);
     }
 
     @Override
     public synchronized long existsCount() {
-        return uidToMsn.size();
+        return index().size();
     }
-    
 
+    /**
+     * The state changes of folded events. The uids of messages and the
+     * flags of the mailbox are kept, but not the events themselves
+     */
+    private final static class FoldedEvents {
+        private final UidSet added = new UidSet();
+        private final UidSet expunged = new UidSet();
+        private final UidSet flagUpdates = new UidSet();
+        /** flag updates made by the session itself */
+        private final UidSet ownFlagUpdates = new UidSet();
+        private final UidSet recent = new UidSet();
+        private final Flags userFlags = new Flags();
+        private boolean sizeChanged;
+        private boolean deleted;
+        /** the new path of the mailbox if it was renamed, null otherwise */
+        private MailboxPath path;
+
+        private boolean isEmpty() {
+            return !sizeChanged && !deleted && path == null && expunged.isEmpty() && flagUpdates.isEmpty() && ownFlagUpdates.isEmpty() && recent.isEmpty();
+        }
+
+        private void clear() {
+            added.clear();
+            expunged.clear();
+            flagUpdates.clear();
+            ownFlagUpdates.clear();
+            recent.clear();
+            final String[] flags = userFlags.getUserFlags();
+            for (int i = 0; i < flags.length; i++) {
+                userFlags.remove(flags[i]);
+            }
+            sizeChanged = false;
+            deleted = false;
+            path = null;
+        }
+    }
 }
@@ -0,0 +1,209 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.base;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.mail.Flags;
+
+/**
+ * Bounded LRU cache of the uids of recently selected mailboxes, so selecting
+ * a mailbox again does not need to list all of its messages.
+ * 
+ * The uids are stored in compact form, see {@link EncodedUids}.
+ * 
+ * Every entry remembers the HIGHESTMODSEQ of the mailbox at the time the uids
+ * were listed, so it can be caught up with the messages changed since then.
+ * It may also hold the flags used by the messages at that time, so the
+ * applicable flags do not need a pass over all messages either.
+ */
+public class UidIndexCache {
+
+    public static final int DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private final int maxBytes;
+
+    private int bytes = 0;
+
+    private final LinkedHashMap<UidSnapshotRegistry.Key, Entry> entries = new LinkedHashMap<UidSnapshotRegistry.Key, Entry>(16, 0.75f, true);
+
+    public UidIndexCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes
+     *            count of bytes all entries together may take. The least
+     *            recently used entries are evicted once it is exceeded
+     */
+    public UidIndexCache(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Store the uids of a mailbox
+     * 
+     * @param key
+     * @param highestModSeq
+     *            HIGHESTMODSEQ of the mailbox read before the uids were listed
+     * @param uids
+     *            sorted ascending
+     * @param size
+     *            count of uids in the array to use
+     */
+    public void put(UidSnapshotRegistry.Key key, long highestModSeq, long[] uids, int size) {
+        put(key, highestModSeq, uids, size, null);
+    }
+
+    /**
+     * Store the uids of a mailbox and the flags used by its messages
+     * 
+     * @param key
+     * @param highestModSeq
+     *            HIGHESTMODSEQ of the mailbox read before the uids were listed
+     * @param uids
+     *            sorted ascending
+     * @param size
+     *            count of uids in the array to use
+     * @param flags
+     *            flags used by the messages, or null if they are unknown
+     */
+    public void put(UidSnapshotRegistry.Key key, long highestModSeq, long[] uids, int size, Flags flags) {
+        final Entry entry = new Entry(highestModSeq, uids, size, flags);
+        synchronized (this) {
+            final Entry previous = entries.remove(key);
+            if (previous != null) {
+                bytes -= previous.bytes();
+            }
+            if (entry.bytes() > maxBytes) {
+                return;
+            }
+            entries.put(key, entry);
+            bytes += entry.bytes();
+            final Iterator<Map.Entry<UidSnapshotRegistry.Key, Entry>> it = entries.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                bytes -= it.next().getValue().bytes();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Return the cached uids of the mailbox
+     * 
+     * @param key
+     * @return entry, or null if none is cached
+     */
+    public synchronized Entry get(UidSnapshotRegistry.Key key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Remove the cached uids of the mailbox
+     * 
+     * @param key
+     */
+    public synchronized void remove(UidSnapshotRegistry.Key key) {
+        final Entry previous = entries.remove(key);
+        if (previous != null) {
+            bytes -= previous.bytes();
+        }
+    }
+
+    /**
+     * Return the count of bytes used by all entries
+     * 
+     * @return bytes
+     */
+    public synchronized int bytes() {
+        return bytes;
+    }
+
+    /**
+     * Return the count of cached mailboxes
+     * 
+     * @return size
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Cached uids of one mailbox. Instances are immutable
+     */
+    public static final class Entry {
+
+        private final long highestModSeq;
+
+        private final EncodedUids uids;
+
+        private final Flags flags;
+
+        Entry(long highestModSeq, long[] uids, int size, Flags flags) {
+            this.highestModSeq = highestModSeq;
+            this.uids = new EncodedUids(uids, size);
+            this.flags = flags == null ? null : (Flags) flags.clone();
+        }
+
+        /**
+         * Return the HIGHESTMODSEQ of the mailbox at the time the uids were
+         * listed
+         * 
+         * @return highestModSeq
+         */
+        public long getHighestModSeq() {
+            return highestModSeq;
+        }
+
+        /**
+         * Return the count of uids
+         * 
+         * @return size
+         */
+        public int size() {
+            return uids.size();
+        }
+
+        /**
+         * Decode the uids
+         * 
+         * @return uids, sorted ascending
+         */
+        public long[] getUids() {
+            return uids.decode();
+        }
+
+        /**
+         * Return a copy of the flags used by the messages at the time the
+         * uids were listed
+         * 
+         * @return flags, or null if they are unknown
+         */
+        public Flags getFlags() {
+            return flags == null ? null : (Flags) flags.clone();
+        }
+
+        int bytes() {
+            return uids.bytes();
+        }
+    }
+}
@@ -0,0 +1,532 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.base;
+
+import java.util.Arrays;
+
+import org.apache.james.imap.api.process.SelectedMailbox;
+
+/**
+ * Maps message sequence numbers to uids and back.
+ * 
+ * The uids are kept as a sorted, immutable {@link UidSnapshot} base plus a
+ * small delta of uids added to and removed from it, both kept sorted in
+ * primitive <code>long[]</code>s. The base may be shared with the indexes of
+ * other sessions which selected the same mailbox, see
+ * {@link UidSnapshotRegistry}, so each session only pays for its delta. Once
+ * the delta grows too big the index is rebased onto a new snapshot.
+ * 
+ * Lookups are done by binary search and never allocate.
+ * 
+ * Instances are not thread safe.
+ */
+public final class UidMsnIndex {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** a delta of up to this many uids never causes a rebase */
+    private static final int MIN_DELTA = 64;
+
+    private final UidSnapshotRegistry registry;
+
+    private final UidSnapshotRegistry.Key key;
+
+    private UidSnapshot base;
+
+    private long[] added;
+
+    private int addedSize;
+
+    private long[] removed;
+
+    private int removedSize;
+
+    public UidMsnIndex() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param capacity
+     *            count of uids the index can hold before it needs to grow
+     */
+    public UidMsnIndex(int capacity) {
+        this.registry = null;
+        this.key = null;
+        this.base = UidSnapshot.EMPTY;
+        this.added = new long[Math.max(capacity, 1)];
+        this.removed = new long[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Create an index holding the given uids. The base of the index is shared
+     * through the registry with all other indexes of the same key
+     * 
+     * @param registry
+     * @param key
+     * @param uids
+     *            sorted ascending, without duplicates. The array must not be
+     *            modified afterwards
+     * @param size
+     *            count of uids in the array to use
+     */
+    UidMsnIndex(UidSnapshotRegistry registry, UidSnapshotRegistry.Key key, long[] uids, int size) {
+        this.registry = registry;
+        this.key = key;
+        this.base = UidSnapshot.EMPTY;
+        this.added = new long[INITIAL_CAPACITY];
+        this.removed = new long[INITIAL_CAPACITY];
+        rebase(uids, size);
+    }
+
+    /**
+     * Return the count of messages in the index
+     * 
+     * @return size
+     */
+    public int size() {
+        return base.size - removedSize + addedSize;
+    }
+
+    /**
+     * Return true if the index holds no messages
+     * 
+     * @return empty
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Return true if the base of the index is used by other indexes as well
+     * 
+     * @return shared
+     */
+    public boolean isShared() {
+        return registry != null && registry.isShared(base);
+    }
+
+    /**
+     * Return the msn of the given uid
+     * 
+     * @param uid
+     * @return msn, or {@link SelectedMailbox#NO_SUCH_MESSAGE} if the uid is
+     *         not part of the index
+     */
+    public int msn(long uid) {
+        final int inAdded = indexOf(added, addedSize, uid);
+        if (inAdded >= 0) {
+            return rank(base.uids, base.size, uid) - rank(removed, removedSize, uid) + inAdded + 1;
+        }
+        final int inBase = indexOf(base.uids, base.size, uid);
+        if (inBase < 0) {
+            return SelectedMailbox.NO_SUCH_MESSAGE;
+        }
+        if (removedSize > 0) {
+            final int inRemoved = indexOf(removed, removedSize, uid);
+            if (inRemoved >= 0) {
+                return SelectedMailbox.NO_SUCH_MESSAGE;
+            }
+            return inBase + inRemoved + 1 + rank(added, addedSize, uid) + 1;
+        }
+        return inBase + rank(added, addedSize, uid) + 1;
+    }
+
+    /**
+     * Return the uid of the given msn
+     * 
+     * @param msn
+     * @return uid, or {@link SelectedMailbox#NO_SUCH_MESSAGE} if no message
+     *         with the msn exists
+     */
+    public long uid(int msn) {
+        if (msn < 1 || msn > size()) {
+            return SelectedMailbox.NO_SUCH_MESSAGE;
+        }
+        final int position = msn - 1;
+        if (removedSize == 0 && (addedSize == 0 || base.size == 0 || added[0] > base.uids[base.size - 1])) {
+            // nothing was removed and all added uids follow the base
+            return position < base.size ? base.uids[position] : added[position - base.size];
+        }
+
+        // the uid is either one of the added ones ...
+        int low = 0;
+        int high = addedSize - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long uid = added[mid];
+            final int midPosition = mid + rank(base.uids, base.size, uid) - rank(removed, removedSize, uid);
+            if (midPosition < position) {
+                low = mid + 1;
+            } else if (midPosition > position) {
+                high = mid - 1;
+            } else {
+                return uid;
+            }
+        }
+
+        // ... or the first one of the base which is not removed and has no
+        // lower position
+        low = 0;
+        high = base.size - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long uid = base.uids[mid];
+            if (mid - rank(removed, removedSize, uid) + rank(added, addedSize, uid) < position) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        while (indexOf(removed, removedSize, base.uids[low]) >= 0) {
+            low++;
+        }
+        return base.uids[low];
+    }
+
+    /**
+     * Return the lowest uid
+     * 
+     * @return uid, or {@link SelectedMailbox#NO_SUCH_MESSAGE} if the index is
+     *         empty
+     */
+    public long first() {
+        return uid(1);
+    }
+
+    /**
+     * Return the highest uid
+     * 
+     * @return uid, or {@link SelectedMailbox#NO_SUCH_MESSAGE} if the index is
+     *         empty
+     */
+    public long last() {
+        return uid(size());
+    }
+
+    /**
+     * Add the given uid. New uids are normally higher than all others, in
+     * which case they are appended to the delta. Otherwise the uid is
+     * inserted at its place, so the msns stay ordered by uid.
+     * 
+     * @param uid
+     * @return true if the uid was added, false if it was already part of the
+     *         index
+     */
+    public boolean add(long uid) {
+        final int inRemoved = indexOf(removed, removedSize, uid);
+        if (inRemoved >= 0) {
+            removedSize--;
+            System.arraycopy(removed, inRemoved + 1, removed, inRemoved, removedSize - inRemoved);
+            return true;
+        }
+        if (indexOf(base.uids, base.size, uid) >= 0) {
+            return false;
+        }
+        final int index;
+        if (addedSize == 0 || uid > added[addedSize - 1]) {
+            index = addedSize;
+        } else {
+            final int found = indexOf(added, addedSize, uid);
+            if (found >= 0) {
+                return false;
+            }
+            index = -(found + 1);
+        }
+        added = insert(added, addedSize++, index, uid);
+        checkDelta();
+        return true;
+    }
+
+    /**
+     * Remove the given uid. The msns of all following messages are decreased
+     * by one.
+     * 
+     * @param uid
+     * @return msn the uid had, or {@link SelectedMailbox#NO_SUCH_MESSAGE} if
+     *         it was not part of the index
+     */
+    public int remove(long uid) {
+        final int msn = msn(uid);
+        if (msn == SelectedMailbox.NO_SUCH_MESSAGE) {
+            return msn;
+        }
+        final int inAdded = indexOf(added, addedSize, uid);
+        if (inAdded >= 0) {
+            addedSize--;
+            System.arraycopy(added, inAdded + 1, added, inAdded, addedSize - inAdded);
+        } else {
+            final int index = -(indexOf(removed, removedSize, uid) + 1);
+            removed = insert(removed, removedSize, index, uid);
+            removedSize++;
+            checkDelta();
+        }
+        return msn;
+    }
+
+    /**
+     * Remove all given uids in one pass. The delta is merged with the removed
+     * uids once, instead of once per removed uid.
+     * 
+     * @param uids
+     *            uids to remove, sorted ascending
+     * @param count
+     *            count of uids in the array to use
+     * @return the msns the removed uids had, in ascending order. Uids which
+     *         are not part of the index are skipped
+     */
+    public int[] removeAll(long[] uids, int count) {
+        final int[] msns = new int[count];
+        final long[] removedUids = new long[count];
+        int found = 0;
+        int fromBase = 0;
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && uids[i] == uids[i - 1]) {
+                continue;
+            }
+            final int msn = msn(uids[i]);
+            if (msn != SelectedMailbox.NO_SUCH_MESSAGE) {
+                msns[found] = msn;
+                removedUids[found++] = uids[i];
+                if (indexOf(added, addedSize, uids[i]) < 0) {
+                    fromBase++;
+                }
+            }
+        }
+        if (found > 0) {
+            // drop the removed uids from the added ones
+            int write = 0;
+            int next = 0;
+            for (int read = 0; read < addedSize; read++) {
+                final long uid = added[read];
+                while (next < found && removedUids[next] < uid) {
+                    next++;
+                }
+                if (next == found || removedUids[next] != uid) {
+                    added[write++] = uid;
+                }
+            }
+            addedSize = write;
+
+            // and merge the others into the removed ones
+            if (fromBase > 0) {
+                final long[] merged = new long[Math.max(removedSize + fromBase, INITIAL_CAPACITY)];
+                int size = 0;
+                int r = 0;
+                for (int i = 0; i < found; i++) {
+                    final long uid = removedUids[i];
+                    if (indexOf(base.uids, base.size, uid) < 0) {
+                        continue;
+                    }
+                    while (r < removedSize && removed[r] < uid) {
+                        merged[size++] = removed[r++];
+                    }
+                    merged[size++] = uid;
+                }
+                while (r < removedSize) {
+                    merged[size++] = removed[r++];
+                }
+                removed = merged;
+                removedSize = size;
+            }
+            checkDelta();
+        }
+        if (found == count) {
+            return msns;
+        }
+        final int[] result = new int[found];
+        System.arraycopy(msns, 0, result, 0, found);
+        return result;
+    }
+
+    /**
+     * Remove all uids. The base is released, so it is not kept alive by this
+     * index anymore
+     */
+    public void clear() {
+        final UidSnapshot previous = base;
+        base = UidSnapshot.EMPTY;
+        previous.release();
+        added = new long[INITIAL_CAPACITY];
+        addedSize = 0;
+        removed = new long[INITIAL_CAPACITY];
+        removedSize = 0;
+    }
+
+    /**
+     * Shrink the arrays of the delta to the uids they hold, dropping the
+     * room kept for uids to come
+     */
+    public void trim() {
+        if (added.length > addedSize) {
+            added = Arrays.copyOf(added, addedSize);
+        }
+        if (removed.length > removedSize) {
+            removed = Arrays.copyOf(removed, removedSize);
+        }
+    }
+
+    /**
+     * Return all uids of the index, sorted ascending
+     * 
+     * @return uids
+     */
+    public long[] toArray() {
+        final long[] uids = new long[size()];
+        int size = 0;
+        int a = 0;
+        int r = 0;
+        for (int b = 0; b < base.size; b++) {
+            final long uid = base.uids[b];
+            if (r < removedSize && removed[r] == uid) {
+                r++;
+                continue;
+            }
+            while (a < addedSize && added[a] < uid) {
+                uids[size++] = added[a++];
+            }
+            uids[size++] = uid;
+        }
+        while (a < addedSize) {
+            uids[size++] = added[a++];
+        }
+        return uids;
+    }
+
+    /**
+     * Rebase the index once its delta grows too big
+     */
+    private void checkDelta() {
+        final int size = size();
+        if (addedSize + removedSize > maxDelta(size)) {
+            rebase(toArray(), size);
+        }
+    }
+
+    /**
+     * Switch to a new base holding the given uids, or to a shared base close
+     * enough to them. The delta is computed against the new base
+     */
+    private void rebase(long[] uids, int size) {
+        final UidSnapshot next;
+        if (registry == null) {
+            next = new UidSnapshot(uids, size);
+        } else {
+            next = registry.share(key, uids, size, maxDelta(size));
+        }
+        if (added.length > INITIAL_CAPACITY && added.length > 2 * maxDelta(size)) {
+            added = new long[INITIAL_CAPACITY];
+        }
+        if (removed.length > INITIAL_CAPACITY && removed.length > 2 * maxDelta(size)) {
+            removed = new long[INITIAL_CAPACITY];
+        }
+        addedSize = 0;
+        removedSize = 0;
+        if (next.uids != uids) {
+            int i = 0;
+            int j = 0;
+            while (i < size || j < next.size) {
+                if (j == next.size || (i < size && uids[i] < next.uids[j])) {
+                    added = insert(added, addedSize, addedSize++, uids[i++]);
+                } else if (i == size || next.uids[j] < uids[i]) {
+                    removed = insert(removed, removedSize, removedSize++, next.uids[j++]);
+                } else {
+                    i++;
+                    j++;
+                }
+            }
+        }
+        final UidSnapshot previous = base;
+        base = next;
+        previous.release();
+    }
+
+    /**
+     * Return the count of uids the delta may hold for an index of the given
+     * size
+     */
+    static int maxDelta(int size) {
+        return Math.max(MIN_DELTA, size >>> 4);
+    }
+
+    /**
+     * Return the count of uids which are part of only one of the given
+     * arrays, or a value higher than the limit if it exceeds it
+     */
+    static int distance(long[] a, int aSize, long[] b, int bSize, int limit) {
+        int distance = 0;
+        int i = 0;
+        int j = 0;
+        while (i < aSize && j < bSize && distance <= limit) {
+            if (a[i] < b[j]) {
+                i++;
+                distance++;
+            } else if (a[i] > b[j]) {
+                j++;
+                distance++;
+            } else {
+                i++;
+                j++;
+            }
+        }
+        return distance + (aSize - i) + (bSize - j);
+    }
+
+    private static long[] insert(long[] uids, int size, int index, long uid) {
+        if (size == uids.length) {
+            uids = Arrays.copyOf(uids, uids.length + (uids.length >> 1) + 1);
+        }
+        System.arraycopy(uids, index, uids, index + 1, size - index);
+        uids[index] = uid;
+        return uids;
+    }
+
+    /**
+     * Return the count of uids in the array which are lower than the given
+     * one
+     */
+    private static int rank(long[] uids, int size, long uid) {
+        if (size == 0 || uid > uids[size - 1]) {
+            return size;
+        }
+        final int index = indexOf(uids, size, uid);
+        return index < 0 ? -(index + 1) : index;
+    }
+
+    /**
+     * Return the index of the uid in the array, or (-(insertion point) - 1)
+     * if it is not part of it
+     */
+    private static int indexOf(long[] uids, int size, long uid) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long midUid = uids[mid];
+            if (midUid < uid) {
+                low = mid + 1;
+            } else if (midUid > uid) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+}
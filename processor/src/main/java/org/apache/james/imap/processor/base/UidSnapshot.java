@@ -0,0 +1,65 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.base;
+
+/**
+ * Sorted uids of a mailbox which form the base of one or more
+ * {@link UidMsnIndex}. Instances are immutable, apart from the count of
+ * references which is guarded by the {@link UidSnapshotRegistry} they belong
+ * to.
+ */
+final class UidSnapshot {
+
+    static final UidSnapshot EMPTY = new UidSnapshot(new long[0], 0);
+
+    final long[] uids;
+
+    final int size;
+
+    final UidSnapshotRegistry registry;
+
+    final UidSnapshotRegistry.Key key;
+
+    /** count of indexes using this snapshot, guarded by the registry */
+    int references;
+
+    /**
+     * Create a snapshot which is not shared
+     */
+    UidSnapshot(long[] uids, int size) {
+        this(null, null, uids, size);
+    }
+
+    UidSnapshot(UidSnapshotRegistry registry, UidSnapshotRegistry.Key key, long[] uids, int size) {
+        this.registry = registry;
+        this.key = key;
+        this.uids = uids;
+        this.size = size;
+    }
+
+    /**
+     * Signal that an index does not use this snapshot anymore
+     */
+    void release() {
+        if (registry != null) {
+            registry.release(this);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.base;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.james.mailbox.model.MailboxPath;
+
+/**
+ * Keeps the latest {@link UidSnapshot} of each selected mailbox, so the
+ * {@link UidMsnIndex} of all sessions which selected the same mailbox can
+ * share one copy of its uids. Each index only keeps its own delta on top of
+ * the shared snapshot.
+ * 
+ * Snapshots are reference counted and dropped from the registry once no
+ * index uses them anymore.
+ */
+public class UidSnapshotRegistry {
+
+    private final Map<Key, UidSnapshot> snapshots = new HashMap<Key, UidSnapshot>();
+
+    /**
+     * Return a snapshot to use as base for the given uids. This is the
+     * current snapshot of the mailbox if it differs from the uids by no more
+     * than the given count of uids. Otherwise a new snapshot of the uids is
+     * created and becomes the current one.
+     * 
+     * The returned snapshot must be released once it is not used anymore
+     * 
+     * @param key
+     * @param uids
+     *            sorted ascending, without duplicates. The array must not be
+     *            modified afterwards
+     * @param size
+     *            count of uids in the array to use
+     * @param maxDelta
+     * @return snapshot
+     */
+    UidSnapshot share(Key key, long[] uids, int size, int maxDelta) {
+        UidSnapshot current;
+        synchronized (this) {
+            current = snapshots.get(key);
+            if (current != null) {
+                current.references++;
+            }
+        }
+        if (current != null) {
+            // the snapshot is immutable, so compare it without holding the lock
+            if (UidMsnIndex.distance(uids, size, current.uids, current.size, maxDelta) <= maxDelta) {
+                return current;
+            }
+            release(current);
+        }
+        final long[] copy = size == uids.length ? uids : Arrays.copyOf(uids, size);
+        final UidSnapshot snapshot = new UidSnapshot(this, key, copy, size);
+        synchronized (this) {
+            snapshot.references = 1;
+            snapshots.put(key, snapshot);
+        }
+        return snapshot;
+    }
+
+    synchronized void release(UidSnapshot snapshot) {
+        snapshot.references--;
+        if (snapshot.references == 0 && snapshots.get(snapshot.key) == snapshot) {
+            snapshots.remove(snapshot.key);
+        }
+    }
+
+    /**
+     * Return true if the snapshot is used by more than one index
+     */
+    synchronized boolean isShared(UidSnapshot snapshot) {
+        return snapshot.references > 1;
+    }
+
+    /**
+     * Return the count of mailboxes for which a snapshot is kept
+     * 
+     * @return size
+     */
+    public synchronized int size() {
+        return snapshots.size();
+    }
+
+    /**
+     * Identifies the uids of a mailbox. The uids of a mailbox can only be
+     * shared as long as its UIDVALIDITY did not change
+     */
+    public static final class Key {
+
+        private final MailboxPath path;
+
+        private final long uidValidity;
+
+        public Key(MailboxPath path, long uidValidity) {
+            this.path = path;
+            this.uidValidity = uidValidity;
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode() * 31 + (int) (uidValidity ^ (uidValidity >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj instanceof Key) {
+                final Key that = (Key) obj;
+                return uidValidity == that.uidValidity && path.equals(that.path);
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return path + ";UIDVALIDITY=" + uidValidity;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.fetch;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes to a {@link WritableByteChannel} which may be non-blocking. Such a
+ * channel accepts no bytes while the send buffer of the socket is full. The
+ * writer then waits until a {@link Selector} reports the channel writable,
+ * and gives up if the channel accepts nothing for too long.
+ * 
+ * Waiting blocks the calling thread, so a transport which writes from its
+ * event loop should hand over a blocking channel, or none at all.
+ */
+final class ChannelTransfer {
+
+    /** Default time in milliseconds after which a channel which accepts nothing is given up */
+    public static final long DEFAULT_TIMEOUT = 60 * 1000;
+
+    static final ChannelTransfer DEFAULT = new ChannelTransfer(DEFAULT_TIMEOUT);
+
+    private final long timeout;
+
+    /**
+     * @param timeout
+     *            time in milliseconds after which a channel which accepts
+     *            nothing is given up
+     */
+    public ChannelTransfer(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Write all remaining bytes of the buffer to the target
+     * 
+     * @param target
+     * @param buffer
+     * @throws IOException
+     */
+    public void write(WritableByteChannel target, ByteBuffer buffer) throws IOException {
+        Selector selector = null;
+        try {
+            long deadline = 0;
+            while (buffer.hasRemaining()) {
+                if (target.write(buffer) > 0) {
+                    deadline = 0;
+                } else {
+                    if (deadline == 0) {
+                        deadline = System.currentTimeMillis() + timeout;
+                    }
+                    selector = await(target, selector, deadline);
+                }
+            }
+        } finally {
+            if (selector != null) {
+                selector.close();
+            }
+        }
+    }
+
+    /**
+     * Transfer count bytes of the file, starting at position, to the target
+     * 
+     * @param file
+     * @param position
+     * @param count
+     * @param target
+     * @throws IOException
+     * @throws EOFException
+     *             if the file ends before all bytes are transfered
+     */
+    public void transfer(FileChannel file, long position, long count, WritableByteChannel target) throws IOException {
+        final long end = position + count;
+        Selector selector = null;
+        try {
+            long deadline = 0;
+            while (position < end) {
+                final long written = file.transferTo(position, end - position, target);
+                if (written > 0) {
+                    position += written;
+                    deadline = 0;
+                } else if (position >= file.size()) {
+                    // transferTo returns 0 at the end of the file as well
+                    throw new EOFException("File ended " + (end - position) + " bytes before the end of the content");
+                } else {
+                    if (deadline == 0) {
+                        deadline = System.currentTimeMillis() + timeout;
+                    }
+                    selector = await(target, selector, deadline);
+                }
+            }
+        } finally {
+            if (selector != null) {
+                selector.close();
+            }
+        }
+    }
+
+    /**
+     * Wait until the target is writable after a try which wrote nothing
+     * 
+     * @param target
+     * @param selector
+     *            selector the target is registered with, or null
+     * @param deadline
+     *            time at which the channel is given up
+     * @return selector the target is registered with
+     * @throws IOException
+     *             if the channel can not be waited for, or accepted nothing
+     *             until the deadline
+     */
+    private Selector await(WritableByteChannel target, Selector selector, long deadline) throws IOException {
+        if (!(target instanceof SelectableChannel) || ((SelectableChannel) target).isBlocking()) {
+            throw new IOException("Channel accepted no data");
+        }
+        final long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new IOException("Channel accepted no data for " + timeout + " ms");
+        }
+        if (selector == null) {
+            selector = Selector.open();
+            ((SelectableChannel) target).register(selector, SelectionKey.OP_WRITE);
+        }
+        selector.select(remaining);
+        selector.selectedKeys().clear();
+        if (Thread.interrupted()) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the channel");
+        }
+        return selector;
+    }
+}
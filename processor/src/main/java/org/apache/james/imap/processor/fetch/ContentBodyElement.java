@@ -22,23 +22,41 @@
  */
 package org.apache.james.imap.processor.fetch;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 
+import org.apache.james.imap.message.response.ChannelLiteral;
+import org.apache.james.imap.message.response.FileBackedContent;
 import org.apache.james.imap.message.response.FetchResponse.BodyElement;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.model.Content;
 
-class ContentBodyElement implements BodyElement {
+class ContentBodyElement implements BodyElement, ChannelLiteral {
     private final String name;
 
     protected final Content content;
 
+    private final ChannelTransfer transfer;
+
     public ContentBodyElement(final String name, final Content content) {
+        this(name, content, ChannelTransfer.DEFAULT);
+    }
+
+    /**
+     * @param transfer
+     *            writes the content to channels, not null
+     */
+    ContentBodyElement(final String name, final Content content, final ChannelTransfer transfer) {
         super();
         this.name = name;
         this.content = content;
+        this.transfer = transfer;
     }
 
     /**
@@ -67,4 +85,69 @@ class ContentBodyElement implements BodyElement {
     public InputStream getInputStream() throws IOException {
         return content.getInputStream();
     }
-}
\ No newline at end of file
+
+    /**
+     * @see org.apache.james.imap.message.response.ChannelLiteral#transferTo(java.nio.channels.WritableByteChannel, java.nio.ByteBuffer)
+     */
+    public long transferTo(WritableByteChannel target, ByteBuffer buffer) throws IOException {
+        return transferTo(target, buffer, 0, size());
+    }
+
+    /**
+     * Write length bytes of the content, starting at offset, to the target.
+     * If the content is a {@link FileBackedContent} the bytes are transfered
+     * by a {@link FileChannel}, otherwise they are copied using the buffer.
+     */
+    long transferTo(WritableByteChannel target, ByteBuffer buffer, long offset, long length) throws IOException {
+        if (content instanceof FileBackedContent) {
+            final FileBackedContent fileContent = (FileBackedContent) content;
+            final RandomAccessFile file = new RandomAccessFile(fileContent.getFile(), "r");
+            try {
+                final long start = fileContent.getPosition() + offset;
+                final long end = start + Math.min(length, size() - offset);
+                if (end <= start) {
+                    return 0;
+                }
+                if (file.length() < end) {
+                    // the literal size is already announced, so the content
+                    // can not be cut short
+                    throw new EOFException("File " + fileContent.getFile() + " ends before the end of the content");
+                }
+                transfer.transfer(file.getChannel(), start, end - start, target);
+                return end - start;
+            } finally {
+                file.close();
+            }
+        }
+        final InputStream in = content.getInputStream();
+        try {
+            for (long skip = offset; skip > 0;) {
+                final long skipped = in.skip(skip);
+                if (skipped > 0) {
+                    skip -= skipped;
+                } else if (in.read() == -1) {
+                    return 0;
+                } else {
+                    skip--;
+                }
+            }
+            final ByteBuffer chunk = buffer.hasArray() ? buffer : ByteBuffer.allocate(buffer.capacity());
+            final byte[] array = chunk.array();
+            final int arrayOffset = chunk.arrayOffset();
+            long written = 0;
+            while (written < length) {
+                final int len = in.read(array, arrayOffset, (int) Math.min(chunk.capacity(), length - written));
+                if (len == -1) {
+                    break;
+                }
+                chunk.clear();
+                chunk.limit(len);
+                transfer.write(target, chunk);
+                written += len;
+            }
+            return written;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -23,6 +23,7 @@
 package org.apache.james.imap.processor.fetch;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import javax.mail.internet.MimeUtility;
@@ -42,6 +43,25 @@ import org.apache.james.mime4j.field.address.LenientAddressBuilder;
 import org.slf4j.Logger;
 
 public final class EnvelopeBuilder {
+
+    /**
+     * Names of the headers which are used in the ENVELOPE. The index of a
+     * name is the position of its header in the array returned by
+     * {@link #indexHeaders(Headers)}
+     */
+    private static final String[] ENVELOPE_HEADERS = { ImapConstants.RFC822_DATE, ImapConstants.RFC822_SUBJECT, ImapConstants.RFC822_FROM, ImapConstants.RFC822_SENDER, ImapConstants.RFC822_REPLY_TO, ImapConstants.RFC822_TO, ImapConstants.RFC822_CC, ImapConstants.RFC822_BCC,
+            ImapConstants.RFC822_IN_REPLY_TO, ImapConstants.RFC822_MESSAGE_ID };
+    private static final int DATE = 0;
+    private static final int SUBJECT = 1;
+    private static final int FROM = 2;
+    private static final int SENDER = 3;
+    private static final int REPLY_TO = 4;
+    private static final int TO = 5;
+    private static final int CC = 6;
+    private static final int BCC = 7;
+    private static final int IN_REPLY_TO = 8;
+    private static final int MESSAGE_ID = 9;
+
     private final Logger logger;
 
     public EnvelopeBuilder(final Logger logger) {
@@ -50,22 +70,53 @@ public final class EnvelopeBuilder {
     }
 
     public FetchResponse.Envelope buildEnvelope(final Headers headers) throws MailboxException {
-        final String date = headerValue(headers, ImapConstants.RFC822_DATE);
-        final String subject = headerValue(headers, ImapConstants.RFC822_SUBJECT);
-        final FetchResponse.Envelope.Address[] fromAddresses = buildAddresses(headers, ImapConstants.RFC822_FROM);
-        final FetchResponse.Envelope.Address[] senderAddresses = buildAddresses(headers, ImapConstants.RFC822_SENDER, fromAddresses);
-        final FetchResponse.Envelope.Address[] replyToAddresses = buildAddresses(headers, ImapConstants.RFC822_REPLY_TO, fromAddresses);
-        final FetchResponse.Envelope.Address[] toAddresses = buildAddresses(headers, ImapConstants.RFC822_TO);
-        final FetchResponse.Envelope.Address[] ccAddresses = buildAddresses(headers, ImapConstants.RFC822_CC);
-        final FetchResponse.Envelope.Address[] bccAddresses = buildAddresses(headers, ImapConstants.RFC822_BCC);
-        final String inReplyTo = headerValue(headers, ImapConstants.RFC822_IN_REPLY_TO);
-        final String messageId = headerValue(headers, ImapConstants.RFC822_MESSAGE_ID);
+        final MessageResult.Header[] envelopeHeaders = indexHeaders(headers);
+        final String date = headerValue(envelopeHeaders[DATE]);
+        final String subject = headerValue(envelopeHeaders[SUBJECT]);
+        final FetchResponse.Envelope.Address[] fromAddresses = buildAddresses(envelopeHeaders[FROM]);
+        final FetchResponse.Envelope.Address[] senderAddresses = buildAddresses(envelopeHeaders[SENDER], fromAddresses);
+        final FetchResponse.Envelope.Address[] replyToAddresses = buildAddresses(envelopeHeaders[REPLY_TO], fromAddresses);
+        final FetchResponse.Envelope.Address[] toAddresses = buildAddresses(envelopeHeaders[TO]);
+        final FetchResponse.Envelope.Address[] ccAddresses = buildAddresses(envelopeHeaders[CC]);
+        final FetchResponse.Envelope.Address[] bccAddresses = buildAddresses(envelopeHeaders[BCC]);
+        final String inReplyTo = headerValue(envelopeHeaders[IN_REPLY_TO]);
+        final String messageId = headerValue(envelopeHeaders[MESSAGE_ID]);
         final FetchResponse.Envelope envelope = new EnvelopeImpl(date, subject, fromAddresses, senderAddresses, replyToAddresses, toAddresses, ccAddresses, bccAddresses, inReplyTo, messageId);
         return envelope;
     }
 
-    private String headerValue(final Headers message, final String headerName) throws MailboxException {
-        final MessageResult.Header header = MessageResultUtils.getMatching(headerName, message.headers());
+    /**
+     * Collect the first header of each name in {@link #ENVELOPE_HEADERS} with
+     * one pass over the headers, so messages with many headers are not
+     * scanned once per ENVELOPE field
+     * 
+     * @param headers
+     * @return envelopeHeaders
+     * @throws MailboxException
+     */
+    private static MessageResult.Header[] indexHeaders(final Headers headers) throws MailboxException {
+        final MessageResult.Header[] results = new MessageResult.Header[ENVELOPE_HEADERS.length];
+        int missing = results.length;
+        final Iterator<MessageResult.Header> it = headers.headers();
+        if (it != null) {
+            while (missing > 0 && it.hasNext()) {
+                final MessageResult.Header header = it.next();
+                final String headerName = header.getName();
+                if (headerName != null) {
+                    for (int i = 0; i < ENVELOPE_HEADERS.length; i++) {
+                        if (results[i] == null && headerName.equalsIgnoreCase(ENVELOPE_HEADERS[i])) {
+                            results[i] = header;
+                            missing--;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    private String headerValue(final MessageResult.Header header) throws MailboxException {
         final String result;
         if (header == null) {
             result = null;
@@ -90,9 +141,9 @@ public final class EnvelopeBuilder {
         return result;
     }
 
-    private FetchResponse.Envelope.Address[] buildAddresses(final Headers message, final String headerName, final FetchResponse.Envelope.Address[] defaults) throws MailboxException {
+    private FetchResponse.Envelope.Address[] buildAddresses(final MessageResult.Header header, final FetchResponse.Envelope.Address[] defaults) throws MailboxException {
         final FetchResponse.Envelope.Address[] results;
-        final FetchResponse.Envelope.Address[] addresses = buildAddresses(message, headerName);
+        final FetchResponse.Envelope.Address[] addresses = buildAddresses(header);
         if (addresses == null) {
             results = defaults;
         } else {
@@ -105,13 +156,11 @@ public final class EnvelopeBuilder {
      * Try to parse the addresses out of the header. If its not possible because
      * of a {@link ParseException} a null value is returned
      * 
-     * @param message
-     * @param headerName
+     * @param header
      * @return addresses
      * @throws MailboxException
      */
-    private FetchResponse.Envelope.Address[] buildAddresses(final Headers message, final String headerName) throws MailboxException {
-        final MessageResult.Header header = MessageResultUtils.getMatching(headerName, message.headers());
+    private FetchResponse.Envelope.Address[] buildAddresses(final MessageResult.Header header) throws MailboxException {
         FetchResponse.Envelope.Address[] results;
         if (header == null) {
             results = null;
@@ -0,0 +1,200 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.fetch;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageManager;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.model.MessageResult;
+import org.apache.james.mailbox.model.MessageResult.FetchGroup;
+import org.apache.james.mailbox.model.MessageResultIterator;
+
+/**
+ * Reads the {@link MessageResult}'s of a FETCH ahead on an
+ * {@link ExecutorService}, while the caller builds and writes the responses.
+ * The results are handed out in the order of the ranges.
+ * 
+ * This only reads the message metadata ahead, as far as the mailbox store
+ * loads it with the results. No content is opened or buffered here, the
+ * content streams are only read by the caller when it builds a response.
+ * The read ahead is bounded by the sum of {@link MessageResult#getSize()} of
+ * the queued results, which is a bound on the count of queued messages
+ * weighted by their size, not on the bytes held in memory.
+ * 
+ * This class is thread-safe
+ */
+final class FetchPipeline implements Runnable {
+
+    private final MessageManager mailbox;
+    private final List<MessageRange> ranges;
+    private final FetchGroup group;
+    private final MailboxSession session;
+    private final long maxSizeReadAhead;
+
+    private final LinkedList<MessageResult> queue = new LinkedList<MessageResult>();
+    private long sizeReadAhead;
+    private boolean done;
+    private boolean closed;
+    private MailboxException exception;
+
+    /**
+     * The mailbox is read on the thread of the executor given to
+     * {@link #start(ExecutorService)}, while the results are used on the
+     * thread which calls {@link #next()}. So the mailbox store must allow
+     * its {@link MessageManager}, {@link MailboxSession} and
+     * {@link MessageResult}'s to be used from more than one thread.
+     * 
+     * @param mailbox
+     * @param ranges
+     * @param group
+     * @param session
+     * @param maxSizeReadAhead
+     *            max sum of the sizes of the messages whose results were
+     *            read ahead
+     */
+    public FetchPipeline(final MessageManager mailbox, final List<MessageRange> ranges, final FetchGroup group, final MailboxSession session, final long maxSizeReadAhead) {
+        this.mailbox = mailbox;
+        this.ranges = ranges;
+        this.group = group;
+        this.session = session;
+        this.maxSizeReadAhead = maxSizeReadAhead;
+    }
+
+    /**
+     * Start to read the messages on the given {@link ExecutorService}
+     * 
+     * @param executor
+     */
+    public void start(ExecutorService executor) {
+        executor.execute(this);
+    }
+
+    /**
+     * Read all messages of the ranges and queue them for {@link #next()}
+     */
+    public void run() {
+        try {
+            for (int i = 0; i < ranges.size(); i++) {
+                final MessageResultIterator messages = mailbox.getMessages(ranges.get(i), group, session);
+                while (messages.hasNext()) {
+                    if (!put(messages.next())) {
+                        return;
+                    }
+                }
+                if (messages.getException() != null) {
+                    fail(messages.getException());
+                    return;
+                }
+            }
+        } catch (MailboxException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(new MailboxException("Unable to read messages", e));
+        } finally {
+            finish();
+        }
+    }
+
+    /**
+     * Return the next {@link MessageResult} or <code>null</code> if all
+     * messages were read. This blocks until the next message is available
+     * 
+     * @return next
+     * @throws MailboxException
+     *             if the reading of the messages failed. This is only thrown
+     *             after all messages read before the failure were returned
+     */
+    public synchronized MessageResult next() throws MailboxException {
+        while (queue.isEmpty() && !done) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new MailboxException("Interrupted while waiting for messages", e);
+            }
+        }
+        if (queue.isEmpty()) {
+            if (exception != null) {
+                throw exception;
+            }
+            return null;
+        }
+        final MessageResult result = queue.removeFirst();
+        sizeReadAhead -= result.getSize();
+        notifyAll();
+        return result;
+    }
+
+    /**
+     * Stop reading ahead and drop all queued messages
+     */
+    public synchronized void close() {
+        closed = true;
+        queue.clear();
+        sizeReadAhead = 0;
+        notifyAll();
+    }
+
+    /**
+     * Return the sum of the sizes of the messages whose results were read but
+     * not returned yet
+     * 
+     * @return sizeReadAhead
+     */
+    public synchronized long sizeReadAhead() {
+        return sizeReadAhead;
+    }
+
+    private synchronized boolean put(MessageResult result) {
+        final long size = result.getSize();
+        // Always allow one message, even if it is bigger then the limit
+        while (!closed && !queue.isEmpty() && sizeReadAhead + size > maxSizeReadAhead) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                exception = new MailboxException("Interrupted while reading messages", e);
+                return false;
+            }
+        }
+        if (closed) {
+            return false;
+        }
+        queue.addLast(result);
+        sizeReadAhead += size;
+        notifyAll();
+        return true;
+    }
+
+    private synchronized void fail(MailboxException e) {
+        exception = e;
+    }
+
+    private synchronized void finish() {
+        done = true;
+        notifyAll();
+    }
+}
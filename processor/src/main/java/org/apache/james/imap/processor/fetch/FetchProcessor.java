@@ -23,6 +23,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.mail.Flags;
 
 import org.apache.james.imap.api.ImapCommand;
 import org.apache.james.imap.api.ImapConstants;
@@ -31,9 +35,11 @@ import org.apache.james.imap.api.display.HumanReadableText;
 import org.apache.james.imap.api.message.BodyFetchElement;
 import org.apache.james.imap.api.message.FetchData;
 import org.apache.james.imap.api.message.IdRange;
+import org.apache.james.imap.api.message.UidSet;
 import org.apache.james.imap.api.message.response.StatusResponseFactory;
 import org.apache.james.imap.api.process.ImapProcessor;
 import org.apache.james.imap.api.process.ImapSession;
+import org.apache.james.imap.api.process.SelectedMailbox;
 import org.apache.james.imap.message.request.FetchRequest;
 import org.apache.james.imap.message.response.FetchResponse;
 import org.apache.james.imap.processor.AbstractMailboxProcessor;
@@ -53,8 +59,78 @@ import org.apache.james.mailbox.model.MessageResult.MimePath;
 
 public class FetchProcessor extends AbstractMailboxProcessor<FetchRequest> {
 
+    // 4 MB
+    public final static long DEFAULT_MAX_BYTES_IN_FLIGHT = 4 * 1024 * 1024;
+
+    public final static int DEFAULT_MAX_RESPONSES_IN_FLIGHT = 128;
+
+    private final ExecutorService pipelineExecutor;
+    private final long maxSizeReadAhead;
+    private final ExecutorService buildExecutor;
+    private final int maxResponsesInFlight;
+    private final FetchResponseCache responseCache;
+
     public FetchProcessor(final ImapProcessor next, final MailboxManager mailboxManager, final StatusResponseFactory factory) {
+        this(next, mailboxManager, factory, null, DEFAULT_MAX_BYTES_IN_FLIGHT);
+    }
+
+    /**
+     * Create a {@link FetchProcessor} which reads the message results ahead
+     * on the given {@link ExecutorService} while the responses are written.
+     * Only the metadata is read ahead, the content is read when the response
+     * is built. See {@link FetchPipeline}
+     * 
+     * The messages are read on another thread than the one which handles
+     * the request, so this must only be used with a mailbox store whose
+     * {@link MessageManager} and {@link MailboxSession} may be used from more
+     * than one thread.
+     * 
+     * @param pipelineExecutor
+     *            executor to read the messages on or <code>null</code> to read
+     *            them in the thread which writes the responses
+     * @param maxSizeReadAhead
+     *            max sum of the sizes of the messages whose results were
+     *            read ahead
+     */
+    public FetchProcessor(final ImapProcessor next, final MailboxManager mailboxManager, final StatusResponseFactory factory, final ExecutorService pipelineExecutor, long maxSizeReadAhead) {
+        this(next, mailboxManager, factory, pipelineExecutor, maxSizeReadAhead, null, DEFAULT_MAX_RESPONSES_IN_FLIGHT);
+    }
+
+    /**
+     * Create a {@link FetchProcessor} which builds the responses of FETCH
+     * requests for ENVELOPE, BODY or BODYSTRUCTURE on the given
+     * {@link ExecutorService}. See {@link ParallelFetchResponses}
+     * 
+     * The headers and MIME structure of the messages are read on the threads
+     * of the executor, so this must only be used with a mailbox store whose
+     * {@link MessageResult}'s may be used from more than one thread. Requests
+     * which also fetch body sections are always built in the thread which
+     * writes them, so the responses in flight stay small.
+     * 
+     * @param buildExecutor
+     *            executor to build the responses on or <code>null</code> to
+     *            build them in the thread which writes them
+     * @param maxResponsesInFlight
+     *            max number of responses which are build ahead of the one
+     *            which is written next
+     */
+    public FetchProcessor(final ImapProcessor next, final MailboxManager mailboxManager, final StatusResponseFactory factory, final ExecutorService pipelineExecutor, long maxSizeReadAhead, final ExecutorService buildExecutor, int maxResponsesInFlight) {
+        this(next, mailboxManager, factory, pipelineExecutor, maxSizeReadAhead, buildExecutor, maxResponsesInFlight, null);
+    }
+
+    /**
+     * @param responseCache
+     *            cache for the ENVELOPE, BODY and BODYSTRUCTURE of the
+     *            messages or <code>null</code> to disable caching. The cache
+     *            may be shared by all processors
+     */
+    public FetchProcessor(final ImapProcessor next, final MailboxManager mailboxManager, final StatusResponseFactory factory, final ExecutorService pipelineExecutor, long maxSizeReadAhead, final ExecutorService buildExecutor, int maxResponsesInFlight, final FetchResponseCache responseCache) {
         super(FetchRequest.class, next, mailboxManager, factory);
+        this.responseCache = responseCache;
+        this.pipelineExecutor = pipelineExecutor;
+        this.maxSizeReadAhead = maxSizeReadAhead;
+        this.buildExecutor = buildExecutor;
+        this.maxResponsesInFlight = maxResponsesInFlight;
     }
 
     /**
@@ -116,7 +192,7 @@ public class FetchProcessor extends AbstractMailboxProcessor<FetchRequest> {
             if (EnableProcessor.getEnabledCapabilities(session).contains(ImapConstants.SUPPORTS_QRESYNC)) {
                 fetch.setUid(true);
             }
-            processMessageRanges(session, mailbox, ranges, fetch, useUids, mailboxSession, responder);
+            processMessageRanges(session, mailbox, metaData, ranges, fetch, useUids, mailboxSession, responder);
 
             
             // Don't send expunge responses if FETCH is used to trigger this
@@ -145,6 +221,8 @@ public class FetchProcessor extends AbstractMailboxProcessor<FetchRequest> {
      * 
      * @param session
      * @param mailbox
+     * @param metaData
+     *            meta data of the mailbox, read for this request
      * @param ranges
      * @param fetch
      * @param useUids
@@ -152,40 +230,184 @@ public class FetchProcessor extends AbstractMailboxProcessor<FetchRequest> {
      * @param responder
      * @throws MailboxException
      */
-    protected void processMessageRanges(final ImapSession session, final MessageManager mailbox, final List<MessageRange> ranges, final FetchData fetch, final boolean useUids, final MailboxSession mailboxSession, final Responder responder) throws MailboxException {
-        final FetchResponseBuilder builder = new FetchResponseBuilder(new EnvelopeBuilder(session.getLog()));
+    protected void processMessageRanges(final ImapSession session, final MessageManager mailbox, final MetaData metaData, final List<MessageRange> ranges, final FetchData fetch, final boolean useUids, final MailboxSession mailboxSession, final Responder responder) throws MailboxException {
+        final FetchResponseBuilder builder;
+        if (responseCache != null && (fetch.isEnvelope() || fetch.isBody() || fetch.isBodyStructure())) {
+            // the cached responses are only valid for the current UIDVALIDITY
+            builder = new FetchResponseBuilder(new EnvelopeBuilder(session.getLog()), responseCache, metaData.getUidValidity());
+        } else {
+            builder = new FetchResponseBuilder(new EnvelopeBuilder(session.getLog()));
+        }
         FetchGroup resultToFetch = getFetchGroup(fetch);
 
-        for (int i = 0; i < ranges.size(); i++) {
-            MessageResultIterator messages = mailbox.getMessages(ranges.get(i), resultToFetch, mailboxSession);
-            while (messages.hasNext()) {
-                final MessageResult result = messages.next();
+        // Set the \Seen flag for a window of written responses at once,
+        // instead of one write per message
+        SeenMarker seen = null;
+        if (fetch.isSetSeen()) {
+            seen = new SeenMarker(session.getSelected(), mailbox, mailboxSession);
+        }
+
+        // Only the building of ENVELOPE and the MIME structure is worth to
+        // be spread over more threads. Body sections are kept out, as their
+        // responses may be large and only the count of responses in flight
+        // is bounded
+        ParallelFetchResponses parallel = null;
+        if (buildExecutor != null && (fetch.isEnvelope() || fetch.isBody() || fetch.isBodyStructure()) && fetch.getBodyElements().isEmpty()) {
+            parallel = new ParallelFetchResponses(buildExecutor, maxResponsesInFlight, builder, fetch, mailbox, session, seen, useUids, responder);
+        }
+        try {
+            if (pipelineExecutor != null) {
+                final FetchPipeline pipeline = new FetchPipeline(mailbox, ranges, resultToFetch, mailboxSession, maxSizeReadAhead);
+                boolean started = false;
                 try {
-                    final FetchResponse response = builder.build(fetch, result, mailbox, session, useUids);
-                    responder.respond(response);
-                } catch (MessageRangeException e) {
-                    // we can't for whatever reason find the message so
-                    // just skip it and log it to debug
+                    pipeline.start(pipelineExecutor);
+                    started = true;
+                } catch (RejectedExecutionException e) {
+                    // the executor is saturated or shutdown, so read the messages
+                    // without the pipeline
                     if (session.getLog().isDebugEnabled()) {
-                        session.getLog().debug("Unable to find message with uid " + result.getUid(), e);
+                        session.getLog().debug("Unable to start fetch pipeline, fallback to sequential reading", e);
+                    }
+                }
+                if (started) {
+                    try {
+                        while (true) {
+                            final MessageResult result;
+                            try {
+                                result = pipeline.next();
+                            } catch (MailboxException e) {
+                                // Write the responses of the messages read so
+                                // far, like the sequential reading does
+                                if (parallel != null) {
+                                    parallel.flush();
+                                }
+                                throw e;
+                            }
+                            if (result == null) {
+                                break;
+                            }
+                            respond(builder, parallel, fetch, result, mailbox, session, seen, useUids, responder);
+                        }
+                    } finally {
+                        pipeline.close();
+                    }
+                    if (parallel != null) {
+                        parallel.flush();
                     }
+                    if (seen != null) {
+                        seen.flush();
+                    }
+                    return;
+                }
+            }
+
+            for (int i = 0; i < ranges.size(); i++) {
+                MessageResultIterator messages = mailbox.getMessages(ranges.get(i), resultToFetch, mailboxSession);
+                while (messages.hasNext()) {
+                    respond(builder, parallel, fetch, messages.next(), mailbox, session, seen, useUids, responder);
+                }
+                
+                // Throw the exception if we received one
+                if (messages.getException() != null) {
+                    if (parallel != null) {
+                        parallel.flush();
+                    }
+                	throw messages.getException();
+                }
+            }
+            if (parallel != null) {
+                parallel.flush();
+            }
+            if (seen != null) {
+                seen.flush();
+            }
+        } finally {
+            if (parallel != null) {
+                parallel.close();
+            }
+            if (seen != null) {
+                // mark the messages whose response was written before the
+                // fetch failed
+                try {
+                    seen.flush();
                 } catch (MailboxException e) {
-                    // we can't for whatever reason find parse all requested parts of the message. This may because it was deleted while try to access the parts.
-                    // So we just skip it 
-                    //
-                    // See IMAP-347
-                    if (session.getLog().isDebugEnabled()) {
-                        session.getLog().debug("Unable to fetch message with uid " + result.getUid() + ", so skip it", e);
+                    if (session.getLog().isInfoEnabled()) {
+                        session.getLog().info("Unable to set \\Seen flag on fetched messages", e);
                     }
                 }
             }
-            
-            // Throw the exception if we received one
-            if (messages.getException() != null) {
-            	throw messages.getException();
+        }
+
+    }
+
+    private void respond(final FetchResponseBuilder builder, final ParallelFetchResponses parallel, final FetchData fetch, final MessageResult result, final MessageManager mailbox, final ImapSession session, final SeenMarker seen, final boolean useUids, final Responder responder) throws MailboxException {
+        if (parallel != null) {
+            parallel.add(result);
+            return;
+        }
+        try {
+            // read before the flags get changed by the builder
+            final boolean unseen = seen != null && !result.getFlags().contains(Flags.Flag.SEEN);
+            final FetchResponse response = builder.build(fetch, result, mailbox, session, seen != null, useUids);
+            responder.respond(response);
+            if (unseen) {
+                seen.written(result.getUid());
             }
+        } catch (MessageRangeException e) {
+            // we can't for whatever reason find the message so
+            // just skip it and log it to debug
+            if (session.getLog().isDebugEnabled()) {
+                session.getLog().debug("Unable to find message with uid " + result.getUid(), e);
+            }
+        } catch (MailboxException e) {
+            // we can't for whatever reason find parse all requested parts of the message. This may because it was deleted while try to access the parts.
+            // So we just skip it 
+            //
+            // See IMAP-347
+            if (session.getLog().isDebugEnabled()) {
+                session.getLog().debug("Unable to fetch message with uid " + result.getUid() + ", so skip it", e);
+            }
+        }
+    }
+
+    /**
+     * Merge the given uids to as few {@link MessageRange}'s as possible. Uids
+     * which are next to each other in the selected mailbox end up in the same
+     * range, even if there are gaps between them.
+     * 
+     * @param selected
+     * @param uids
+     * @return ranges
+     */
+    static List<MessageRange> seenRanges(final SelectedMailbox selected, final UidSet uids) {
+        final List<MessageRange> ranges = new ArrayList<MessageRange>();
+        long from = -1;
+        long to = -1;
+        int msn = SelectedMailbox.NO_SUCH_MESSAGE;
+        for (final Iterator<Long> it = uids.iterator(); it.hasNext();) {
+            final long uid = it.next().longValue();
+            final int next = selected.msn(uid);
+            final boolean adjacent = uid == to + 1 || (msn != SelectedMailbox.NO_SUCH_MESSAGE && next == msn + 1);
+            if (from != -1 && !adjacent) {
+                ranges.add(range(from, to));
+                from = uid;
+            } else if (from == -1) {
+                from = uid;
+            }
+            to = uid;
+            msn = next;
+        }
+        if (from != -1) {
+            ranges.add(range(from, to));
         }
+        return ranges;
+    }
 
+    private static MessageRange range(long from, long to) {
+        if (from == to) {
+            return MessageRange.one(from);
+        }
+        return MessageRange.range(from, to);
     }
 
     protected FetchGroup getFetchGroup(FetchData fetch) {
@@ -49,6 +49,10 @@ public final class FetchResponseBuilder {
 
     private final EnvelopeBuilder envelopeBuilder;
 
+    private final FetchResponseCache cache;
+
+    private final long uidValidity;
+
     private int msn;
 
     private Long uid;
@@ -70,8 +74,30 @@ public final class FetchResponseBuilder {
     private FetchResponse.Structure bodystructure;
 
     public FetchResponseBuilder(final EnvelopeBuilder envelopeBuilder) {
+        this(envelopeBuilder, null, -1);
+    }
+
+    /**
+     * @param cache
+     *            cache for the ENVELOPE, BODY and BODYSTRUCTURE of the
+     *            messages, or <code>null</code> to always build them
+     * @param uidValidity
+     *            UIDVALIDITY of the selected mailbox
+     */
+    public FetchResponseBuilder(final EnvelopeBuilder envelopeBuilder, final FetchResponseCache cache, long uidValidity) {
         super();
         this.envelopeBuilder = envelopeBuilder;
+        this.cache = cache;
+        this.uidValidity = uidValidity;
+    }
+
+    /**
+     * Return a new {@link FetchResponseBuilder} with the same configuration
+     * 
+     * @return builder
+     */
+    public FetchResponseBuilder newBuilder() {
+        return new FetchResponseBuilder(envelopeBuilder, cache, uidValidity);
     }
 
     public void reset(int msn) {
@@ -105,6 +131,18 @@ public final class FetchResponseBuilder {
     }
 
     public FetchResponse build(FetchData fetch, MessageResult result, MessageManager mailbox, ImapSession session, boolean useUids) throws MessageRangeException, MailboxException {
+        return build(fetch, result, mailbox, session, false, useUids);
+    }
+
+    /**
+     * Build the {@link FetchResponse} for the given {@link MessageResult}
+     * 
+     * @param seenDeferred
+     *            true if the caller sets the \Seen flag once the response is
+     *            written, see {@link SeenMarker}. Otherwise it is set while
+     *            the response is built
+     */
+    public FetchResponse build(FetchData fetch, MessageResult result, MessageManager mailbox, ImapSession session, boolean seenDeferred, boolean useUids) throws MessageRangeException, MailboxException {
         final SelectedMailbox selected = session.getSelected();
         final long resultUid = result.getUid();
         final int resultMsn = selected.msn(resultUid);
@@ -122,7 +160,9 @@ public final class FetchResponseBuilder {
         boolean ensureFlagsResponse = false;
         final Flags resultFlags = result.getFlags();
         if (fetch.isSetSeen() && !resultFlags.contains(Flags.Flag.SEEN)) {
-            mailbox.setFlags(new Flags(Flags.Flag.SEEN), true, false, MessageRange.one(resultUid), mailboxSession);
+            if (!seenDeferred) {
+                mailbox.setFlags(new Flags(Flags.Flag.SEEN), true, false, MessageRange.one(resultUid), mailboxSession);
+            }
             resultFlags.add(Flags.Flag.SEEN);
             ensureFlagsResponse = true;
         }
@@ -146,7 +186,7 @@ public final class FetchResponseBuilder {
         }
 
         if (fetch.isEnvelope()) {
-            this.envelope = buildEnvelope(result);
+            this.envelope = buildEnvelope(selected, result);
         }
 
 
@@ -170,12 +210,12 @@ public final class FetchResponseBuilder {
             //
             // See IMAP-333
             if (fetch.isBody() && this.elements.isEmpty()) {
-                body = new MimeDescriptorStructure(false, result.getMimeDescriptor(), envelopeBuilder);
+                body = buildStructure(selected, result, false);
             }
 
             // BODYSTRUCTURE response
             if (fetch.isBodyStructure()) {
-                bodystructure = new MimeDescriptorStructure(true, result.getMimeDescriptor(), envelopeBuilder);
+                bodystructure = buildStructure(selected, result, true);
             }
         }
         // UID response
@@ -198,8 +238,28 @@ public final class FetchResponseBuilder {
         return build();
     }
 
-    private FetchResponse.Envelope buildEnvelope(final MessageResult result) throws MailboxException {
-        return envelopeBuilder.buildEnvelope(result.getHeaders());
+    private FetchResponse.Envelope buildEnvelope(final SelectedMailbox selected, final MessageResult result) throws MailboxException {
+        if (cache == null) {
+            return envelopeBuilder.buildEnvelope(result.getHeaders());
+        }
+        FetchResponse.Envelope envelope = cache.getEnvelope(selected.getPath(), uidValidity, result.getUid());
+        if (envelope == null) {
+            envelope = envelopeBuilder.buildEnvelope(result.getHeaders());
+            cache.putEnvelope(selected.getPath(), uidValidity, result.getUid(), envelope);
+        }
+        return envelope;
+    }
+
+    private FetchResponse.Structure buildStructure(final SelectedMailbox selected, final MessageResult result, boolean allowExtensions) throws MailboxException {
+        if (cache == null) {
+            return new MimeDescriptorStructure(allowExtensions, result.getMimeDescriptor(), envelopeBuilder);
+        }
+        FetchResponse.Structure structure = cache.getStructure(selected.getPath(), uidValidity, result.getUid(), allowExtensions);
+        if (structure == null) {
+            structure = new MimeDescriptorStructure(allowExtensions, result.getMimeDescriptor(), envelopeBuilder);
+            cache.putStructure(selected.getPath(), uidValidity, result.getUid(), allowExtensions, structure);
+        }
+        return structure;
     }
 
     private void setSize(long size) {
@@ -0,0 +1,356 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.fetch;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.james.imap.message.response.FetchResponse;
+import org.apache.james.mailbox.model.MailboxPath;
+
+/**
+ * Bounded LRU cache of the ENVELOPE, BODY and BODYSTRUCTURE of messages. These
+ * never change for a given mailbox, UIDVALIDITY and uid, so clients which
+ * fetch the same messages again do not need to parse them again.
+ * 
+ * The size of the cache is bounded by a weight, which is the count of
+ * envelopes and MIME parts of all entries.
+ * 
+ * All entries of a mailbox are dropped once it is accessed with another
+ * UIDVALIDITY.
+ */
+public class FetchResponseCache {
+
+    public static final int DEFAULT_MAX_WEIGHT = 100000;
+
+    private final int maxWeight;
+
+    private int weight = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long evictions = 0;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    /**
+     * UIDVALIDITY and count of entries of every mailbox which has entries
+     */
+    private final Map<MailboxPath, Mailbox> mailboxes = new HashMap<MailboxPath, Mailbox>();
+
+    public FetchResponseCache() {
+        this(DEFAULT_MAX_WEIGHT);
+    }
+
+    /**
+     * @param maxWeight
+     *            count of envelopes and MIME parts all entries together may
+     *            hold. The least recently used entries are evicted once it is
+     *            exceeded
+     */
+    public FetchResponseCache(int maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Return the cached ENVELOPE of the message
+     * 
+     * @param path
+     * @param uidValidity
+     * @param uid
+     * @return envelope, or null if none is cached
+     */
+    public synchronized FetchResponse.Envelope getEnvelope(MailboxPath path, long uidValidity, long uid) {
+        final Entry entry = get(path, uidValidity, uid);
+        return count(entry == null ? null : entry.envelope);
+    }
+
+    /**
+     * Return the cached BODY or BODYSTRUCTURE of the message
+     * 
+     * @param path
+     * @param uidValidity
+     * @param uid
+     * @param allowExtensions
+     *            true for the BODYSTRUCTURE, false for the BODY
+     * @return structure, or null if none is cached
+     */
+    public synchronized FetchResponse.Structure getStructure(MailboxPath path, long uidValidity, long uid, boolean allowExtensions) {
+        final Entry entry = get(path, uidValidity, uid);
+        if (entry == null) {
+            return count(null);
+        }
+        return count(allowExtensions ? entry.bodystructure : entry.body);
+    }
+
+    /**
+     * Store the ENVELOPE of the message
+     * 
+     * @param path
+     * @param uidValidity
+     * @param uid
+     * @param envelope
+     */
+    public synchronized void putEnvelope(MailboxPath path, long uidValidity, long uid, FetchResponse.Envelope envelope) {
+        final Entry entry = entry(path, uidValidity, uid);
+        if (entry.envelope == null) {
+            entry.envelope = envelope;
+            add(entry, 1);
+        }
+    }
+
+    /**
+     * Store the BODY or BODYSTRUCTURE of the message
+     * 
+     * @param path
+     * @param uidValidity
+     * @param uid
+     * @param allowExtensions
+     *            true for the BODYSTRUCTURE, false for the BODY
+     * @param structure
+     */
+    public synchronized void putStructure(MailboxPath path, long uidValidity, long uid, boolean allowExtensions, FetchResponse.Structure structure) {
+        final Entry entry = entry(path, uidValidity, uid);
+        if (allowExtensions && entry.bodystructure == null) {
+            entry.bodystructure = structure;
+        } else if (!allowExtensions && entry.body == null) {
+            entry.body = structure;
+        } else {
+            return;
+        }
+        add(entry, weight(structure));
+    }
+
+    /**
+     * Remove all cached entries of the mailbox
+     * 
+     * @param path
+     */
+    public synchronized void invalidate(MailboxPath path) {
+        if (mailboxes.remove(path) == null) {
+            return;
+        }
+        final Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Key, Entry> next = it.next();
+            if (next.getKey().path.equals(path)) {
+                weight -= next.getValue().weight;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Return the weight of all entries
+     * 
+     * @return weight
+     */
+    public synchronized int weight() {
+        return weight;
+    }
+
+    /**
+     * Return the count of cached messages
+     * 
+     * @return size
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Return the count of mailboxes which have cached messages
+     * 
+     * @return mailboxes
+     */
+    public synchronized int mailboxes() {
+        return mailboxes.size();
+    }
+
+    /**
+     * Return the count of lookups which were answered from the cache
+     * 
+     * @return hits
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * Return the count of lookups which were not answered from the cache
+     * 
+     * @return misses
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * Return the count of messages which were evicted to stay below the max
+     * weight
+     * 
+     * @return evictions
+     */
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    private <T> T count(T value) {
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    private Entry get(MailboxPath path, long uidValidity, long uid) {
+        checkUidValidity(path, uidValidity);
+        return entries.get(new Key(path, uidValidity, uid));
+    }
+
+    private Entry entry(MailboxPath path, long uidValidity, long uid) {
+        checkUidValidity(path, uidValidity);
+        final Key key = new Key(path, uidValidity, uid);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(key, entry);
+            Mailbox mailbox = mailboxes.get(path);
+            if (mailbox == null) {
+                mailbox = new Mailbox(uidValidity);
+                mailboxes.put(path, mailbox);
+            }
+            mailbox.entries++;
+        }
+        return entry;
+    }
+
+    private void checkUidValidity(MailboxPath path, long uidValidity) {
+        final Mailbox mailbox = mailboxes.get(path);
+        if (mailbox != null && mailbox.uidValidity != uidValidity) {
+            // the mailbox was recreated so all its entries are stale
+            invalidate(path);
+        }
+    }
+
+    private void add(Entry entry, int entryWeight) {
+        entry.weight += entryWeight;
+        weight += entryWeight;
+        final Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (weight > maxWeight && it.hasNext()) {
+            final Map.Entry<Key, Entry> next = it.next();
+            weight -= next.getValue().weight;
+            evictions++;
+            it.remove();
+            removed(next.getKey().path);
+        }
+    }
+
+    /**
+     * Forget the mailbox once its last entry was evicted
+     */
+    private void removed(MailboxPath path) {
+        final Mailbox mailbox = mailboxes.get(path);
+        if (mailbox != null && --mailbox.entries == 0) {
+            mailboxes.remove(path);
+        }
+    }
+
+    private static int weight(FetchResponse.Structure structure) {
+        int result = 1;
+        if (structure.getEnvelope() != null) {
+            result++;
+        }
+        if (structure.getBody() != null) {
+            result += weight(structure.getBody());
+        }
+        for (final Iterator<FetchResponse.Structure> it = structure.parts(); it != null && it.hasNext();) {
+            result += weight(it.next());
+        }
+        return result;
+    }
+
+    private static final class Key {
+
+        private final MailboxPath path;
+
+        private final long uidValidity;
+
+        private final long uid;
+
+        public Key(MailboxPath path, long uidValidity, long uid) {
+            this.path = path;
+            this.uidValidity = uidValidity;
+            this.uid = uid;
+        }
+
+        @Override
+        public int hashCode() {
+            return (path.hashCode() * 31 + (int) (uidValidity ^ (uidValidity >>> 32))) * 31 + (int) (uid ^ (uid >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj instanceof Key) {
+                final Key that = (Key) obj;
+                return uid == that.uid && uidValidity == that.uidValidity && path.equals(that.path);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Cached responses of one message. Only accessed while holding the lock
+     * of the cache
+     */
+    private static final class Entry {
+
+        private FetchResponse.Envelope envelope;
+
+        private FetchResponse.Structure body;
+
+        private FetchResponse.Structure bodystructure;
+
+        private int weight;
+    }
+
+    /**
+     * UIDVALIDITY and count of entries of a mailbox. Only accessed while
+     * holding the lock of the cache
+     */
+    private static final class Mailbox {
+
+        private final long uidValidity;
+
+        private int entries;
+
+        public Mailbox(long uidValidity) {
+            this.uidValidity = uidValidity;
+        }
+    }
+}
@@ -24,6 +24,7 @@ package org.apache.james.imap.processor.fetch;
 
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -33,9 +34,26 @@ import org.apache.james.imap.message.response.FetchResponse.Structure;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.model.MimeDescriptor;
 
+/**
+ * Structure of a MIME part. All fields are copied from the
+ * {@link MimeDescriptor}, so a cached structure does not keep the descriptor
+ * and the headers behind it alive.
+ */
 final class MimeDescriptorStructure implements FetchResponse.Structure {
 
-    private final MimeDescriptor descriptor;
+    private final String description;
+
+    private final String encoding;
+
+    private final String id;
+
+    private final long lines;
+
+    private final String mediaType;
+
+    private final long octets;
+
+    private final String subType;
 
     private final List<String> parameters;
 
@@ -57,12 +75,20 @@ final class MimeDescriptorStructure implements FetchResponse.Structure {
 
     public MimeDescriptorStructure(final boolean allowExtensions, MimeDescriptor descriptor, EnvelopeBuilder builder) throws MailboxException {
         super();
-        this.descriptor = descriptor;
+        this.description = descriptor.getContentDescription();
+        this.encoding = descriptor.getTransferContentEncoding();
+        this.id = descriptor.getContentID();
+        this.lines = descriptor.getLines();
+        this.mediaType = descriptor.getMimeType();
+        this.octets = descriptor.getBodyOctets();
+        this.subType = descriptor.getMimeSubType();
         parameters = createParameters(descriptor);
         parts = createParts(allowExtensions, descriptor, builder);
 
-        languages = descriptor.getLanguages();
-        this.dispositionParams = descriptor.getDispositionParams();
+        final List<String> languages = descriptor.getLanguages();
+        this.languages = languages == null ? null : new ArrayList<String>(languages);
+        final Map<String, String> dispositionParams = descriptor.getDispositionParams();
+        this.dispositionParams = dispositionParams == null ? null : new LinkedHashMap<String, String>(dispositionParams);
         this.disposition = descriptor.getDisposition();
 
         this.md5 = descriptor.getContentMD5();
@@ -101,42 +127,42 @@ final class MimeDescriptorStructure implements FetchResponse.Structure {
      * @see org.apache.james.imap.message.response.FetchResponse.Structure#getDescription()
      */
     public String getDescription() {
-        return descriptor.getContentDescription();
+        return description;
     }
 
     /**
      * @see org.apache.james.imap.message.response.FetchResponse.Structure#getEncoding()
      */
     public String getEncoding() {
-        return descriptor.getTransferContentEncoding();
+        return encoding;
     }
 
     /**
      * @see org.apache.james.imap.message.response.FetchResponse.Structure#getId()
      */
     public String getId() {
-        return descriptor.getContentID();
+        return id;
     }
 
     /**
      * @see org.apache.james.imap.message.response.FetchResponse.Structure#getLines()
      */
     public long getLines() {
-        return descriptor.getLines();
+        return lines;
     }
 
     /**
      * @see org.apache.james.imap.message.response.FetchResponse.Structure#getMediaType()
      */
     public String getMediaType() {
-        return descriptor.getMimeType();
+        return mediaType;
     }
 
     /**
      * @see org.apache.james.imap.message.response.FetchResponse.Structure#getOctets()
      */
     public long getOctets() {
-        return descriptor.getBodyOctets();
+        return octets;
     }
 
     /**
@@ -150,7 +176,7 @@ final class MimeDescriptorStructure implements FetchResponse.Structure {
      * @see org.apache.james.imap.message.response.FetchResponse.Structure#getSubType()
      */
     public String getSubType() {
-        return descriptor.getMimeSubType();
+        return subType;
     }
 
     /**
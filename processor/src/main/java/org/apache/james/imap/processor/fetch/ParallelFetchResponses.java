@@ -0,0 +1,181 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.fetch;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.mail.Flags;
+
+import org.apache.james.imap.api.message.FetchData;
+import org.apache.james.imap.api.process.ImapProcessor.Responder;
+import org.apache.james.imap.api.process.ImapSession;
+import org.apache.james.imap.message.response.FetchResponse;
+import org.apache.james.mailbox.MessageManager;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.exception.MessageRangeException;
+import org.apache.james.mailbox.model.MessageResult;
+
+/**
+ * Builds the {@link FetchResponse}'s of a FETCH on an {@link ExecutorService},
+ * so the parsing of the ENVELOPE and BODYSTRUCTURE of many messages can use
+ * more then one core. The responses are written in the order the messages
+ * were added, which is the MSN order. No more then the configured number of
+ * responses are build ahead of the one which is written next.
+ * 
+ * The responses in flight are only bounded by their count, so this must not
+ * be used for FETCH requests which include body sections. The workers read
+ * the headers and MIME descriptors of the {@link MessageResult}'s, which the
+ * mailbox store must allow from more than one thread.
+ * 
+ * This class is not thread-safe, it must only be used by the thread which
+ * processes the FETCH
+ */
+final class ParallelFetchResponses {
+
+    private final ExecutorService executor;
+    private final int maxResponses;
+    private final FetchResponseBuilder builder;
+    private final FetchData fetch;
+    private final MessageManager mailbox;
+    private final ImapSession session;
+    private final SeenMarker seen;
+    private final boolean useUids;
+    private final Responder responder;
+
+    private final LinkedList<Pending> pending = new LinkedList<Pending>();
+
+    public ParallelFetchResponses(final ExecutorService executor, int maxResponses, final FetchResponseBuilder builder, final FetchData fetch, final MessageManager mailbox, final ImapSession session, final SeenMarker seen, final boolean useUids, final Responder responder) {
+        this.executor = executor;
+        this.maxResponses = Math.max(1, maxResponses);
+        this.builder = builder;
+        this.fetch = fetch;
+        this.mailbox = mailbox;
+        this.session = session;
+        this.seen = seen;
+        this.useUids = useUids;
+        this.responder = responder;
+    }
+
+    /**
+     * Start to build the response for the given {@link MessageResult}. If
+     * the max number of responses is in flight, the oldest one is written
+     * first
+     * 
+     * @param result
+     * @throws MailboxException
+     *             if the thread was interrupted while waiting for a response
+     */
+    public void add(final MessageResult result) throws MailboxException {
+        while (pending.size() >= maxResponses) {
+            writeNext();
+        }
+        // read before the flags get changed by the builder
+        final boolean unseen = seen != null && !result.getFlags().contains(Flags.Flag.SEEN);
+        final FutureTask<FetchResponse> response = new FutureTask<FetchResponse>(new Callable<FetchResponse>() {
+
+            public FetchResponse call() throws Exception {
+                // the builder keeps state so every message needs its own
+                return builder.newBuilder().build(fetch, result, mailbox, session, seen != null, useUids);
+            }
+        });
+        try {
+            executor.execute(response);
+        } catch (RejectedExecutionException e) {
+            // the executor is saturated or shutdown, so just build it in
+            // this thread
+            response.run();
+        }
+        pending.addLast(new Pending(result.getUid(), unseen, response));
+    }
+
+    /**
+     * Write all responses which are still in flight
+     * 
+     * @throws MailboxException
+     *             if the thread was interrupted while waiting for a response
+     */
+    public void flush() throws MailboxException {
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+    }
+
+    /**
+     * Cancel all responses which were not written yet
+     */
+    public void close() {
+        for (Iterator<Pending> it = pending.iterator(); it.hasNext();) {
+            it.next().response.cancel(true);
+        }
+        pending.clear();
+    }
+
+    private void writeNext() throws MailboxException {
+        final Pending next = pending.removeFirst();
+        try {
+            responder.respond(next.response.get());
+            if (next.unseen) {
+                seen.written(next.uid);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MailboxException("Interrupted while building fetch response for message with uid " + next.uid, e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof MessageRangeException) {
+                // we can't for whatever reason find the message so
+                // just skip it and log it to debug
+                if (session.getLog().isDebugEnabled()) {
+                    session.getLog().debug("Unable to find message with uid " + next.uid, cause);
+                }
+            } else if (cause instanceof MailboxException) {
+                // See IMAP-347
+                if (session.getLog().isDebugEnabled()) {
+                    session.getLog().debug("Unable to fetch message with uid " + next.uid + ", so skip it", cause);
+                }
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new MailboxException("Unable to build fetch response for message with uid " + next.uid, (Exception) cause);
+            }
+        }
+    }
+
+    private static final class Pending {
+        private final long uid;
+        private final boolean unseen;
+        private final Future<FetchResponse> response;
+
+        public Pending(long uid, boolean unseen, Future<FetchResponse> response) {
+            this.uid = uid;
+            this.unseen = unseen;
+            this.response = response;
+        }
+    }
+}
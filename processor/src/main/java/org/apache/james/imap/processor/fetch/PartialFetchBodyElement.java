@@ -22,13 +22,16 @@ package org.apache.james.imap.processor.fetch;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
+import org.apache.james.imap.message.response.ChannelLiteral;
 import org.apache.james.imap.message.response.FetchResponse.BodyElement;
 
 /**
  * Wraps full content to implement a partial fetch.
  */
-final class PartialFetchBodyElement implements BodyElement {
+final class PartialFetchBodyElement implements BodyElement, ChannelLiteral {
 
     private final BodyElement delegate;
 
@@ -77,6 +80,29 @@ final class PartialFetchBodyElement implements BodyElement {
         return new LimitingInputStream(delegate.getInputStream(), firstOctet, size());
     }
 
+    /**
+     * @see org.apache.james.imap.message.response.ChannelLiteral#transferTo(java.nio.channels.WritableByteChannel, java.nio.ByteBuffer)
+     */
+    public long transferTo(WritableByteChannel target, ByteBuffer buffer) throws IOException {
+        if (delegate instanceof ContentBodyElement) {
+            return ((ContentBodyElement) delegate).transferTo(target, buffer, firstOctet, size());
+        }
+        final ByteBuffer chunk = buffer.hasArray() ? buffer : ByteBuffer.allocate(buffer.capacity());
+        final InputStream in = getInputStream();
+        try {
+            long written = 0;
+            for (int len; (len = in.read(chunk.array(), chunk.arrayOffset(), chunk.capacity())) != -1;) {
+                chunk.clear();
+                chunk.limit(len);
+                ChannelTransfer.DEFAULT.write(target, chunk);
+                written += len;
+            }
+            return written;
+        } finally {
+            in.close();
+        }
+    }
+
     private final class LimitingInputStream extends FilterInputStream {
         private long pos = 0;
         private long length;
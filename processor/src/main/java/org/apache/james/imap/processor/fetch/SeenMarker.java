@@ -0,0 +1,101 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.fetch;
+
+import java.util.List;
+
+import javax.mail.Flags;
+
+import org.apache.james.imap.api.message.UidSet;
+import org.apache.james.imap.api.process.SelectedMailbox;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageManager;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MessageRange;
+
+/**
+ * Sets the \Seen flag on the messages of a non-PEEK FETCH. A message is only
+ * collected once its response was handed to the responder, and the flag is
+ * set for a window of collected messages at once, with as few range based
+ * {@link MessageManager#setFlags(Flags, boolean, boolean, MessageRange, MailboxSession)}
+ * calls as possible. So messages whose response is never written, because
+ * they are skipped or the FETCH fails, stay unseen.
+ * 
+ * This class is not thread-safe, it must only be used by the thread which
+ * writes the responses
+ */
+final class SeenMarker {
+
+    /** Default count of messages which are marked at once */
+    public static final int DEFAULT_WINDOW = 256;
+
+    private final SelectedMailbox selected;
+    private final MessageManager mailbox;
+    private final MailboxSession mailboxSession;
+    private final int window;
+
+    private final UidSet written = new UidSet();
+    private int count = 0;
+
+    public SeenMarker(final SelectedMailbox selected, final MessageManager mailbox, final MailboxSession mailboxSession) {
+        this(selected, mailbox, mailboxSession, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window
+     *            count of messages which are marked at once
+     */
+    public SeenMarker(final SelectedMailbox selected, final MessageManager mailbox, final MailboxSession mailboxSession, final int window) {
+        this.selected = selected;
+        this.mailbox = mailbox;
+        this.mailboxSession = mailboxSession;
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * Collect the message whose response was written. The collected messages
+     * are marked once the window is full
+     * 
+     * @param uid
+     * @throws MailboxException
+     */
+    public void written(long uid) throws MailboxException {
+        if (written.add(uid) && ++count >= window) {
+            flush();
+        }
+    }
+
+    /**
+     * Mark all collected messages
+     * 
+     * @throws MailboxException
+     */
+    public void flush() throws MailboxException {
+        if (count == 0) {
+            return;
+        }
+        final List<MessageRange> ranges = FetchProcessor.seenRanges(selected, written);
+        written.clear();
+        count = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            mailbox.setFlags(new Flags(Flags.Flag.SEEN), true, false, ranges.get(i), mailboxSession);
+        }
+    }
+}
@@ -29,7 +29,9 @@ import org.apache.james.imap.api.process.MailboxTyper;
 import org.apache.james.imap.message.response.UnpooledStatusResponseFactory;
 import org.apache.james.imap.processor.DefaultProcessorChain;
 import org.apache.james.imap.processor.IdleProcessor;
+import org.apache.james.imap.processor.base.DispatchingImapProcessor;
 import org.apache.james.imap.processor.base.ImapResponseMessageProcessor;
+import org.apache.james.imap.processor.base.UidIndexCache;
 import org.apache.james.imap.processor.base.UnknownRequestProcessor;
 import org.apache.james.mailbox.MailboxManager;
 import org.apache.james.mailbox.SubscriptionManager;
@@ -52,10 +54,19 @@ public class DefaultImapProcessorFactory {
     }
 
     public static final ImapProcessor createXListSupportingProcessor(final MailboxManager mailboxManager, final SubscriptionManager subscriptionManager, MailboxTyper mailboxTyper, long idleKeepAlive, Set<String> disabledCaps) {
+        return createXListSupportingProcessor(mailboxManager, subscriptionManager, mailboxTyper, idleKeepAlive, disabledCaps, null);
+    }
+
+    /**
+     * @param uidCache
+     *            used to select a mailbox again without listing all of its
+     *            messages, or <code>null</code> to disable caching
+     */
+    public static final ImapProcessor createXListSupportingProcessor(final MailboxManager mailboxManager, final SubscriptionManager subscriptionManager, MailboxTyper mailboxTyper, long idleKeepAlive, Set<String> disabledCaps, UidIndexCache uidCache) {
         final StatusResponseFactory statusResponseFactory = new UnpooledStatusResponseFactory();
         final UnknownRequestProcessor unknownRequestImapProcessor = new UnknownRequestProcessor(statusResponseFactory);
-        final ImapProcessor imap4rev1Chain = DefaultProcessorChain.createDefaultChain(unknownRequestImapProcessor, mailboxManager, subscriptionManager, statusResponseFactory, mailboxTyper, idleKeepAlive, TimeUnit.SECONDS, disabledCaps);
-        final ImapProcessor result = new ImapResponseMessageProcessor(imap4rev1Chain);
+        final ImapProcessor imap4rev1Chain = DefaultProcessorChain.createDefaultChain(unknownRequestImapProcessor, mailboxManager, subscriptionManager, statusResponseFactory, mailboxTyper, idleKeepAlive, TimeUnit.SECONDS, disabledCaps, uidCache);
+        final ImapProcessor result = new DispatchingImapProcessor(new ImapResponseMessageProcessor(imap4rev1Chain));
         return result;
     }
 
@@ -83,7 +94,24 @@ public class DefaultImapProcessorFactory {
      * Create the {@link ImapProcessor}
      */
     public ImapProcessor buildImapProcessor() {
-        return createDefaultProcessor(mailboxManager, subscriptionManager);
+        final UidIndexCache uidCache = uidCacheSize > 0 ? new UidIndexCache(uidCacheSize) : null;
+        return createXListSupportingProcessor(mailboxManager, subscriptionManager, null, IdleProcessor.DEFAULT_HEARTBEAT_INTERVAL_IN_SECONDS, new HashSet<String>(), uidCache);
+    }
+
+    private int uidCacheSize;
+
+    public int getUidCacheSize() {
+        return uidCacheSize;
+    }
+
+    /**
+     * Set the count of bytes the cached uids of recently selected mailboxes
+     * may take, or 0 to disable the cache. Disabled by default
+     * 
+     * @see UidIndexCache#DEFAULT_MAX_BYTES
+     */
+    public void setUidCacheSize(int uidCacheSize) {
+        this.uidCacheSize = uidCacheSize;
     }
 
     private MailboxTyper mailboxTyper;
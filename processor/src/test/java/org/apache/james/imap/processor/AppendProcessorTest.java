@@ -0,0 +1,86 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.mail.Flags;
+
+import org.apache.james.imap.api.ImapCommand;
+import org.apache.james.imap.api.ImapConstants;
+import org.apache.james.imap.api.ImapMessage;
+import org.apache.james.imap.api.ImapSessionState;
+import org.apache.james.imap.api.message.response.ImapResponseMessage;
+import org.apache.james.imap.api.process.ImapProcessor;
+import org.apache.james.imap.api.process.ImapSession;
+import org.apache.james.imap.message.request.AppendRequest;
+import org.apache.james.imap.message.response.UnpooledStatusResponseFactory;
+import org.apache.james.mailbox.MailboxManager;
+import org.junit.Test;
+
+public class AppendProcessorTest {
+
+    @Test
+    public void testMessageIsClosedWhenAppendIsRefused() throws Exception {
+        final boolean[] closed = new boolean[1];
+        final ImapMessage request = new AppendRequest(ImapCommand.authenticatedStateCommand(ImapConstants.APPEND_COMMAND_NAME), "INBOX", new Flags(), new Date(), new ByteArrayInputStream(new byte[10]) {
+
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+            }
+        }, "A1");
+        final List<ImapResponseMessage> responses = new ArrayList<ImapResponseMessage>();
+        final AppendProcessor processor = new AppendProcessor(null, (MailboxManager) stub(MailboxManager.class), new UnpooledStatusResponseFactory());
+
+        processor.process(request, new ImapProcessor.Responder() {
+
+            public void respond(ImapResponseMessage message) {
+                responses.add(message);
+            }
+        }, (ImapSession) stub(ImapSession.class));
+
+        // the session is not authenticated, so the mailbox is never used
+        assertEquals(1, responses.size());
+        assertTrue(closed[0]);
+    }
+
+    private Object stub(Class<?> type) {
+        return Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { type }, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("getState")) {
+                    return ImapSessionState.NON_AUTHENTICATED;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
@@ -0,0 +1,219 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Flags;
+
+import org.apache.james.imap.api.ImapCommand;
+import org.apache.james.imap.api.ImapSessionState;
+import org.apache.james.imap.api.ImapSessionUtils;
+import org.apache.james.imap.api.message.response.ImapResponseMessage;
+import org.apache.james.imap.api.process.ImapLineHandler;
+import org.apache.james.imap.api.process.ImapProcessor;
+import org.apache.james.imap.api.process.ImapSession;
+import org.apache.james.imap.message.request.IdleRequest;
+import org.apache.james.imap.message.response.UnpooledStatusResponseFactory;
+import org.apache.james.imap.processor.base.SelectedMailboxImpl;
+import org.apache.james.imap.processor.base.UidIndexCache;
+import org.apache.james.imap.processor.base.UidSnapshotRegistry;
+import org.apache.james.mailbox.MailboxListener;
+import org.apache.james.mailbox.MailboxManager;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageManager;
+import org.apache.james.mailbox.MessageManager.MetaData;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.model.SearchQuery;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.LoggerFactory;
+
+@RunWith(JMock.class)
+public class IdleProcessorTest {
+
+    private static final String TAG = "A1";
+
+    private static final ImapCommand COMMAND = ImapCommand.selectedStateCommand("IDLE");
+
+    private static final MailboxPath PATH = new MailboxPath("#private", "user", "INBOX");
+
+    private Mockery mockery = new JUnit4Mockery();
+
+    private MailboxManager mailboxManager;
+
+    private MailboxSession mailboxSession;
+
+    private ImapSession session;
+
+    private SelectedMailboxImpl selected;
+
+    /** line handler pushed by IDLE, which waits for DONE */
+    private ImapLineHandler lineHandler;
+
+    /** tasks scheduled on the executor, run by the tests */
+    private final List<Runnable> scheduled = new ArrayList<Runnable>();
+
+    private final List<Long> delays = new ArrayList<Long>();
+
+    private final List<ImapResponseMessage> responses = new ArrayList<ImapResponseMessage>();
+
+    @Before
+    public void setUp() throws Exception {
+        mailboxManager = mockery.mock(MailboxManager.class);
+        mailboxSession = mockery.mock(MailboxSession.class);
+        final MessageManager mailbox = mockery.mock(MessageManager.class);
+        final MetaData metaData = mockery.mock(MetaData.class);
+        mockery.checking(new Expectations() {
+            {
+                allowing(mailboxSession).getSessionId();
+                will(returnValue(1L));
+                allowing(mailboxManager).addListener(with(equal(PATH)), with(any(MailboxListener.class)), with(same(mailboxSession)));
+                allowing(mailboxManager).removeListener(with(equal(PATH)), with(any(MailboxListener.class)), with(same(mailboxSession)));
+                allowing(mailboxManager).getMailbox(PATH, mailboxSession);
+                will(returnValue(mailbox));
+                allowing(mailbox).search(with(any(SearchQuery.class)), with(same(mailboxSession)));
+                will(returnValue(Arrays.asList(1L, 2L, 3L).iterator()));
+                allowing(metaData).getUidValidity();
+                will(returnValue(7L));
+                allowing(metaData).isModSeqPermanent();
+                will(returnValue(false));
+                allowing(metaData).getHighestModSeq();
+                will(returnValue(0L));
+                allowing(metaData).getMessageCount();
+                will(returnValue(3L));
+                allowing(metaData).getPermanentFlags();
+                will(returnValue(new Flags(Flags.Flag.SEEN)));
+            }
+        });
+        session = session();
+        selected = new SelectedMailboxImpl(mailboxManager, session, PATH, metaData, new UidSnapshotRegistry(), new UidIndexCache());
+    }
+
+    @Test
+    public void testIdlingSessionIsHibernated() throws Exception {
+        idle(1);
+        assertEquals(Arrays.asList(1L), delays);
+        assertFalse(selected.hibernateIfIdle(Long.MAX_VALUE));
+
+        Thread.sleep(10);
+        scheduled.get(0).run();
+        assertTrue(selected.hibernateIfIdle(Long.MAX_VALUE));
+        // the check is scheduled again
+        assertEquals(2, scheduled.size());
+
+        // the uids are restored on access
+        assertEquals(3, selected.existsCount());
+        assertEquals(3, selected.uid(3));
+    }
+
+    @Test
+    public void testHibernationStopsAfterDone() throws Exception {
+        idle(1);
+        lineHandler.onLine(session, "DONE\r\n".getBytes());
+
+        Thread.sleep(10);
+        scheduled.get(0).run();
+        assertFalse(selected.hibernateIfIdle(Long.MAX_VALUE));
+        assertEquals(1, scheduled.size());
+    }
+
+    @Test
+    public void testNoHibernationIfDisabled() throws Exception {
+        idle(0);
+        assertTrue(scheduled.isEmpty());
+    }
+
+    /**
+     * Start to IDLE, without heartbeats, hibernating after the given count
+     * of milliseconds
+     */
+    private void idle(long hibernateDelay) {
+        final IdleProcessor processor = new IdleProcessor(null, mailboxManager, new UnpooledStatusResponseFactory(), 0, TimeUnit.SECONDS, executor(), hibernateDelay, TimeUnit.MILLISECONDS);
+        processor.doProcess(new IdleRequest(COMMAND, TAG), session, TAG, COMMAND, new ImapProcessor.Responder() {
+
+            public void respond(ImapResponseMessage message) {
+                responses.add(message);
+            }
+        });
+    }
+
+    /**
+     * Return a {@link ScheduledExecutorService} which only collects the
+     * scheduled tasks
+     */
+    private ScheduledExecutorService executor() {
+        return (ScheduledExecutorService) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { ScheduledExecutorService.class }, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("schedule") && args[0] instanceof Runnable) {
+                    scheduled.add((Runnable) args[0]);
+                    delays.add(((TimeUnit) args[2]).toMillis((Long) args[1]));
+                    return null;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * Return an {@link ImapSession} which has the mailbox selected
+     */
+    private ImapSession session() {
+        return (ImapSession) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { ImapSession.class }, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("getAttribute")) {
+                    return ImapSessionUtils.MAILBOX_SESSION_ATTRIBUTE_SESSION_KEY.equals(args[0]) ? mailboxSession : null;
+                } else if (name.equals("getState")) {
+                    return ImapSessionState.SELECTED;
+                } else if (name.equals("getSelected")) {
+                    return selected;
+                } else if (name.equals("pushLineHandler")) {
+                    lineHandler = (ImapLineHandler) args[0];
+                    return null;
+                } else if (name.equals("popLineHandler")) {
+                    lineHandler = null;
+                    return null;
+                } else if (name.equals("getLog")) {
+                    return LoggerFactory.getLogger(IdleProcessorTest.class);
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+}
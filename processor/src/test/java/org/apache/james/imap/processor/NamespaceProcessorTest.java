@@ -94,6 +94,7 @@ public class NamespaceProcessorTest {
             allowing(mailboxSessionStub).getSharedSpaces();will(returnValue(new ArrayList<String>()));
             allowing(mailboxSessionStub).getPathDelimiter();will(returnValue(MailboxConstants.DEFAULT_DELIMITER));
             allowing(imapSessionStub).getState();will(returnValue(ImapSessionState.AUTHENTICATED));
+            allowing(imapSessionStub).getSelected();will(returnValue(null));
             allowing(statusResponseStub).taggedOk(
                     with(any(String.class)), with(any(ImapCommand.class)), 
                     with(any(HumanReadableText.class)), with(any(ResponseCode.class))); will(returnValue(mockery.mock(StatusResponse.class)));
@@ -122,6 +123,7 @@ public class NamespaceProcessorTest {
             allowing(mailboxSessionStub).getSharedSpaces();will(returnValue(Arrays.asList(SHARED_PREFIX)));
             allowing(mailboxSessionStub).getPathDelimiter();will(returnValue(MailboxConstants.DEFAULT_DELIMITER));
             allowing(imapSessionStub).getState();will(returnValue(ImapSessionState.AUTHENTICATED));
+            allowing(imapSessionStub).getSelected();will(returnValue(null));
             allowing(statusResponseStub).taggedOk(
                     with(any(String.class)), with(any(ImapCommand.class)), 
                     with(any(HumanReadableText.class)), with(any(ResponseCode.class))); will(returnValue(mockery.mock(StatusResponse.class)));
@@ -21,7 +21,6 @@ package org.apache.james.imap.processor;
 
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
@@ -35,6 +34,7 @@ import org.apache.james.imap.api.ImapConstants;
 import org.apache.james.imap.api.ImapSessionUtils;
 import org.apache.james.imap.api.display.HumanReadableText;
 import org.apache.james.imap.api.message.IdRange;
+import org.apache.james.imap.api.message.UidSet;
 import org.apache.james.imap.api.message.request.DayMonthYear;
 import org.apache.james.imap.api.message.request.SearchKey;
 import org.apache.james.imap.api.message.request.SearchOperation;
@@ -212,10 +212,10 @@ public class SearchProcessorTest {
             atMost(1).of(selectedMailbox).isRecentUidRemoved();will(returnValue(false));
             atLeast(1).of(selectedMailbox).isSizeChanged();will(returnValue(false));
             atLeast(1).of(selectedMailbox).getPath();will(returnValue(mailboxPath));
-            atMost(1).of(selectedMailbox).flagUpdateUids();will(returnValue(Collections.EMPTY_LIST));
+            atMost(1).of(selectedMailbox).flagUpdateUids();will(returnValue(new UidSet()));
             atMost(1).of(selectedMailbox).resetEvents();
             
-            oneOf(selectedMailbox).getRecent();will(returnValue(new ArrayList<Long>()));
+            oneOf(selectedMailbox).getRecent();will(returnValue(new UidSet()));
         }});
     }
 
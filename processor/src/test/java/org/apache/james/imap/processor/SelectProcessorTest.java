@@ -0,0 +1,250 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.Flags;
+
+import org.apache.james.imap.api.ImapCommand;
+import org.apache.james.imap.api.ImapSessionState;
+import org.apache.james.imap.api.ImapSessionUtils;
+import org.apache.james.imap.api.message.response.ImapResponseMessage;
+import org.apache.james.imap.api.message.response.StatusResponse;
+import org.apache.james.imap.api.process.ImapProcessor;
+import org.apache.james.imap.api.process.ImapSession;
+import org.apache.james.imap.api.process.SelectedMailbox;
+import org.apache.james.imap.message.request.SelectRequest;
+import org.apache.james.imap.message.response.ExistsResponse;
+import org.apache.james.imap.message.response.UnpooledStatusResponseFactory;
+import org.apache.james.mailbox.MailboxListener;
+import org.apache.james.mailbox.MailboxManager;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageManager;
+import org.apache.james.mailbox.MessageManager.MetaData;
+import org.apache.james.mailbox.MessageManager.MetaData.FetchGroup;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.model.SearchQuery;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.LoggerFactory;
+
+@RunWith(JMock.class)
+public class SelectProcessorTest {
+
+    private static final String TAG = "A1";
+
+    private static final ImapCommand COMMAND = ImapCommand.authenticatedStateCommand("SELECT");
+
+    private Mockery mockery = new JUnit4Mockery();
+
+    private MailboxManager mailboxManager;
+
+    private MessageManager mailbox;
+
+    private MailboxSession mailboxSession;
+
+    private MetaData metaData;
+
+    private ImapSession session;
+
+    private List<ImapResponseMessage> responses;
+
+    private ImapProcessor.Responder responder;
+
+    private SelectProcessor processor;
+
+    @Before
+    public void setUp() throws Exception {
+        mailboxManager = mockery.mock(MailboxManager.class);
+        mailbox = mockery.mock(MessageManager.class);
+        mailboxSession = mockery.mock(MailboxSession.class);
+        metaData = mockery.mock(MetaData.class);
+        final MailboxSession.User user = mockery.mock(MailboxSession.User.class);
+        session = session(mailboxSession);
+        responses = new ArrayList<ImapResponseMessage>();
+        responder = new ImapProcessor.Responder() {
+
+            public void respond(ImapResponseMessage message) {
+                responses.add(message);
+            }
+        };
+        processor = new SelectProcessor(null, mailboxManager, new UnpooledStatusResponseFactory());
+
+        mockery.checking(new Expectations() {
+            {
+                allowing(mailboxSession).getSessionId();
+                will(returnValue(1L));
+                allowing(mailboxSession).getUser();
+                will(returnValue(user));
+                allowing(user).getUserName();
+                will(returnValue("user"));
+                allowing(mailboxSession).getPathDelimiter();
+                will(returnValue('.'));
+                allowing(mailboxSession).getLog();
+                will(returnValue(LoggerFactory.getLogger(SelectProcessorTest.class)));
+                allowing(mailboxSession).getPersonalSpace();
+                will(returnValue(""));
+                allowing(mailboxManager).startProcessingRequest(mailboxSession);
+                allowing(mailboxManager).endProcessingRequest(mailboxSession);
+                allowing(mailboxManager).addListener(with(any(MailboxPath.class)), with(any(MailboxListener.class)), with(same(mailboxSession)));
+                allowing(mailboxManager).getMailbox(with(any(MailboxPath.class)), with(same(mailboxSession)));
+                will(returnValue(mailbox));
+                allowing(mailbox).getMetaData(true, mailboxSession, FetchGroup.FIRST_UNSEEN);
+                will(returnValue(metaData));
+
+                allowing(metaData).getUidValidity();
+                will(returnValue(7L));
+                allowing(metaData).getUidNext();
+                will(returnValue(4L));
+                allowing(metaData).getMessageCount();
+                will(returnValue(3L));
+                allowing(metaData).getFirstUnseen();
+                will(returnValue(2L));
+                allowing(metaData).getRecent();
+                will(returnValue(new ArrayList<Long>()));
+                allowing(metaData).getPermanentFlags();
+                will(returnValue(new Flags(Flags.Flag.SEEN)));
+                allowing(metaData).isModSeqPermanent();
+                will(returnValue(false));
+                allowing(metaData).getHighestModSeq();
+                will(returnValue(0L));
+                allowing(metaData).isWriteable();
+                will(returnValue(true));
+            }
+        });
+    }
+
+    @Test
+    public void testResponsesOfSelect() throws Exception {
+        uids(1L, 2L, 3L);
+        select();
+
+        assertEquals(3, exists());
+        assertEquals(Long.valueOf(2), code("UNSEEN"));
+        assertEquals(Long.valueOf(7), code("UIDVALIDITY"));
+        assertEquals(Long.valueOf(4), code("UIDNEXT"));
+        assertEquals(StatusResponse.Type.OK, ((StatusResponse) responses.get(responses.size() - 1)).getServerResponseType());
+    }
+
+    @Test
+    public void testFirstUnseenExpungedBeforeListing() throws Exception {
+        // See IMAP-345
+        uids(1L, 3L);
+        select();
+
+        assertEquals(2, exists());
+        assertNull(code("UNSEEN"));
+        assertEquals(StatusResponse.Type.OK, ((StatusResponse) responses.get(responses.size() - 1)).getServerResponseType());
+    }
+
+    @Test
+    public void testMessageAddedAfterMetaData() throws Exception {
+        uids(1L, 2L, 3L, 4L);
+        select();
+
+        assertEquals(4, exists());
+        assertEquals(Long.valueOf(2), code("UNSEEN"));
+        assertEquals(Long.valueOf(5), code("UIDNEXT"));
+    }
+
+    private void select() {
+        processor.process(new SelectRequest(COMMAND, "INBOX", false, null, null, null, null, null, TAG), responder, session);
+        session.getSelected().deselect();
+    }
+
+    private void uids(final Long... uids) throws Exception {
+        mockery.checking(new Expectations() {
+            {
+                one(mailbox).search(with(any(SearchQuery.class)), with(same(mailboxSession)));
+                will(returnValue(Arrays.asList(uids).iterator()));
+                allowing(mailboxManager).removeListener(with(any(MailboxPath.class)), with(any(MailboxListener.class)), with(same(mailboxSession)));
+            }
+        });
+    }
+
+    private long exists() {
+        for (ImapResponseMessage response : responses) {
+            if (response instanceof ExistsResponse) {
+                return ((ExistsResponse) response).getNumberOfMessages();
+            }
+        }
+        return -1;
+    }
+
+    private Long code(String name) {
+        for (ImapResponseMessage response : responses) {
+            if (response instanceof StatusResponse) {
+                StatusResponse.ResponseCode code = ((StatusResponse) response).getResponseCode();
+                if (code != null && name.equals(code.getCode())) {
+                    return code.getNumber();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return an authenticated {@link ImapSession} which keeps its attributes
+     * and selected mailbox
+     */
+    private ImapSession session(final MailboxSession mailboxSession) {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put(ImapSessionUtils.MAILBOX_SESSION_ATTRIBUTE_SESSION_KEY, mailboxSession);
+        final SelectedMailbox[] selected = new SelectedMailbox[1];
+        return (ImapSession) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { ImapSession.class }, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("getAttribute")) {
+                    return attributes.get(args[0]);
+                } else if (name.equals("setAttribute")) {
+                    attributes.put((String) args[0], args[1]);
+                    return null;
+                } else if (name.equals("getState")) {
+                    return selected[0] == null ? ImapSessionState.AUTHENTICATED : ImapSessionState.SELECTED;
+                } else if (name.equals("getSelected")) {
+                    return selected[0];
+                } else if (name.equals("selected")) {
+                    selected[0] = (SelectedMailbox) args[0];
+                    return null;
+                } else if (name.equals("getLog")) {
+                    return LoggerFactory.getLogger(SelectProcessorTest.class);
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+}
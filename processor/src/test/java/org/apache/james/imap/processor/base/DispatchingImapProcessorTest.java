@@ -0,0 +1,114 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.base;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.james.imap.api.ImapMessage;
+import org.apache.james.imap.api.process.ImapProcessor;
+import org.apache.james.imap.api.process.ImapSession;
+import org.junit.Test;
+
+public class DispatchingImapProcessorTest {
+
+    private final List<String> processed = new ArrayList<String>();
+
+    @Test
+    public void testShouldRouteToAcceptingProcessor() throws Exception {
+        ImapProcessor chain = new RecordingProcessor<First>(First.class, "first", new RecordingProcessor<Second>(Second.class, "second", new End("end")));
+        DispatchingImapProcessor processor = new DispatchingImapProcessor(chain);
+
+        processor.process(new Second(), null, null);
+        processor.process(new First(), null, null);
+        processor.process(new Second(), null, null);
+        processor.process(new Third(), null, null);
+
+        assertEquals("[second, first, second, end]", processed.toString());
+    }
+
+    @Test
+    public void testShouldHandOverToCustomProcessorInChain() throws Exception {
+        ImapProcessor tail = new RecordingProcessor<Third>(Third.class, "third", new End("end"));
+        ImapProcessor custom = new Custom(tail);
+        ImapProcessor chain = new RecordingProcessor<First>(First.class, "first", custom);
+        DispatchingImapProcessor processor = new DispatchingImapProcessor(chain);
+
+        processor.process(new First(), null, null);
+        processor.process(new Second(), null, null);
+        processor.process(new Third(), null, null);
+
+        assertEquals("[first, custom, custom, third]", processed.toString());
+    }
+
+    private static class First implements ImapMessage {
+    }
+
+    private static class Second implements ImapMessage {
+    }
+
+    private static class Third implements ImapMessage {
+    }
+
+    private class RecordingProcessor<M extends ImapMessage> extends AbstractChainedProcessor<M> {
+        private final String name;
+
+        public RecordingProcessor(Class<M> acceptableClass, String name, ImapProcessor next) {
+            super(acceptableClass, next);
+            this.name = name;
+        }
+
+        protected void doProcess(M acceptableMessage, Responder responder, ImapSession session) {
+            processed.add(name);
+        }
+    }
+
+    private class End implements ImapProcessor {
+        private final String name;
+
+        public End(String name) {
+            this.name = name;
+        }
+
+        public void process(ImapMessage message, Responder responder, ImapSession session) {
+            processed.add(name);
+        }
+    }
+
+    /**
+     * Handles {@link Second} itself and passes everything else on
+     */
+    private class Custom implements ImapProcessor {
+        private final ImapProcessor next;
+
+        public Custom(ImapProcessor next) {
+            this.next = next;
+        }
+
+        public void process(ImapMessage message, Responder responder, ImapSession session) {
+            processed.add("custom");
+            if (!(message instanceof Second)) {
+                next.process(message, responder, session);
+            }
+        }
+    }
+}
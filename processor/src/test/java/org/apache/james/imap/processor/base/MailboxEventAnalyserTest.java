@@ -49,6 +49,7 @@ import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.exception.UnsupportedRightException;
 import org.apache.james.mailbox.model.Content;
 import org.apache.james.mailbox.model.Headers;
+import org.apache.james.mailbox.model.MailboxACL;
 import org.apache.james.mailbox.model.MailboxACL.EditMode;
 import org.apache.james.mailbox.model.MailboxACL.MailboxACLEntryKey;
 import org.apache.james.mailbox.model.MailboxACL.MailboxACLRights;
@@ -158,8 +159,7 @@ public class MailboxEventAnalyserTest {
 
                 @Override
                 public Iterator<Long> search(SearchQuery searchQuery, MailboxSession mailboxSession) throws MailboxException {
-                    throw new UnsupportedOperationException("Not implemented");
-
+                    return Arrays.asList(1L).iterator();
                 }
 
                 @Override
@@ -294,8 +294,70 @@ public class MailboxEventAnalyserTest {
 
                 @Override
                 public MetaData getMetaData(boolean resetRecent, MailboxSession mailboxSession, org.apache.james.mailbox.MessageManager.MetaData.FetchGroup fetchGroup) throws MailboxException {
-                    throw new UnsupportedOperationException("Not implemented");
+                    return new MetaData() {
+
+                        @Override
+                        public Flags getPermanentFlags() {
+                            Flags flags = new Flags(Flags.Flag.SEEN);
+                            flags.add(Flags.Flag.USER);
+                            return flags;
+                        }
+
+                        @Override
+                        public List<Long> getRecent() {
+                            throw new UnsupportedOperationException("Not implemented");
+                        }
+
+                        @Override
+                        public long countRecent() {
+                            throw new UnsupportedOperationException("Not implemented");
+                        }
+
+                        @Override
+                        public long getUidValidity() {
+                            return 1;
+                        }
 
+                        @Override
+                        public long getUidNext() {
+                            throw new UnsupportedOperationException("Not implemented");
+                        }
+
+                        @Override
+                        public long getHighestModSeq() {
+                            return 0;
+                        }
+
+                        @Override
+                        public long getMessageCount() {
+                            throw new UnsupportedOperationException("Not implemented");
+                        }
+
+                        @Override
+                        public long getUnseenCount() {
+                            throw new UnsupportedOperationException("Not implemented");
+                        }
+
+                        @Override
+                        public Long getFirstUnseen() {
+                            throw new UnsupportedOperationException("Not implemented");
+                        }
+
+                        @Override
+                        public boolean isWriteable() {
+                            throw new UnsupportedOperationException("Not implemented");
+                        }
+
+                        @Override
+                        public boolean isModSeqPermanent() {
+                            return false;
+                        }
+
+                        @Override
+                        public MailboxACL getACL() {
+                            throw new UnsupportedOperationException("Not implemented");
+                        }
+                    };
                 }
                 
                 @Override
@@ -531,6 +593,141 @@ public class MailboxEventAnalyserTest {
         assertFalse(analyser.isSizeChanged());
     }
 
+    @Test
+    public void testEventShouldNotWaitForRunningCommand() throws Exception {
+        MyMailboxSession mSession = new MyMailboxSession(99);
+        
+        MyImapSession imapsession = new MyImapSession(mSession);
+        
+        final SelectedMailboxImpl analyser = new SelectedMailboxImpl(mockManager, imapsession, mailboxPath);
+        final MyMailboxSession otherSession = new MyMailboxSession(11);
+        Thread eventThread = new Thread() {
+            public void run() {
+                analyser.event(new FakeMailboxListenerAdded(otherSession, Arrays.asList(11L), mailboxPath));
+            }
+        };
+        synchronized (analyser) {
+            eventThread.start();
+            eventThread.join(5000);
+            assertFalse(eventThread.isAlive());
+            // events are applied at the next command boundary
+            assertEquals(SelectedMailbox.NO_SUCH_MESSAGE, analyser.msn(11));
+        }
+        assertTrue(analyser.isSizeChanged());
+        assertTrue(analyser.msn(11) != SelectedMailbox.NO_SUCH_MESSAGE);
+    }
+
+    @Test
+    public void testShouldLoadUidsOnInit() throws Exception {
+        MyMailboxSession mSession = new MyMailboxSession(11);
+        MyImapSession imapsession = new MyImapSession(mSession);
+        SelectedMailboxImpl analyser = new SelectedMailboxImpl(mockManager, imapsession, mailboxPath);
+
+        assertEquals(1, analyser.existsCount());
+        assertEquals(1, analyser.msn(1));
+    }
+
+    @Test
+    public void testShouldAddNewUserFlagToApplicableFlags() throws Exception {
+        MyMailboxSession mSession = new MyMailboxSession(11);
+        MyImapSession imapsession = new MyImapSession(mSession);
+        SelectedMailboxImpl analyser = new SelectedMailboxImpl(mockManager, imapsession, mailboxPath);
+
+        assertTrue(analyser.getApplicableFlags().contains(Flags.Flag.SEEN));
+        assertFalse(analyser.getApplicableFlags().contains(Flags.Flag.RECENT));
+        assertFalse(analyser.hasNewApplicableFlags());
+
+        final FakeMailboxListenerFlagsUpdate update = new FakeMailboxListenerFlagsUpdate(
+                new MyMailboxSession(41), Arrays.asList(1L), Arrays.asList(new UpdatedFlags(1, -1, new Flags(), new Flags("keyword"))), mailboxPath);
+        analyser.event(update);
+        assertTrue(analyser.hasNewApplicableFlags());
+        assertTrue(analyser.getApplicableFlags().contains("keyword"));
+    }
+
+    @Test
+    public void testRepeatedFlagUpdatesAreCoalesced() throws Exception {
+        MyMailboxSession mSession = new MyMailboxSession(11);
+        MyImapSession imapsession = new MyImapSession(mSession);
+        SelectedMailboxImpl analyser = new SelectedMailboxImpl(mockManager, imapsession, mailboxPath);
+        assertFalse(analyser.getApplicableFlags().contains("keyword2"));
+
+        final MyMailboxSession otherSession = new MyMailboxSession(41);
+        for (int i = 0; i < 100; i++) {
+            final Flags flags = new Flags(i % 2 == 0 ? Flags.Flag.SEEN : Flags.Flag.FLAGGED);
+            flags.add(Flags.Flag.RECENT);
+            analyser.event(new FakeMailboxListenerFlagsUpdate(otherSession, Arrays.asList(1L, 2L),
+                    Arrays.asList(new UpdatedFlags(1, -1, new Flags(), flags), new UpdatedFlags(2, -1, new Flags(), new Flags("keyword" + (i % 3)))), mailboxPath));
+        }
+        assertEquals("1:2", analyser.flagUpdateUids().toString());
+        assertTrue(analyser.hasNewApplicableFlags());
+        assertTrue(analyser.getApplicableFlags().contains("keyword2"));
+    }
+
+    @Test
+    public void testHibernatedSessionIsRestoredOnAccess() throws Exception {
+        MyMailboxSession mSession = new MyMailboxSession(11);
+        MyImapSession imapsession = new MyImapSession(mSession);
+        SelectedMailboxImpl analyser = new SelectedMailboxImpl(mockManager, imapsession, mailboxPath);
+
+        assertFalse(analyser.hibernateIfIdle(60000));
+        assertTrue(analyser.hibernateIfIdle(0));
+        analyser.event(new FakeMailboxListenerAdded(new MyMailboxSession(41), Arrays.asList(11L), mailboxPath));
+        assertTrue(analyser.hibernateIfIdle(0));
+
+        assertTrue(analyser.isSizeChanged());
+        assertEquals(2, analyser.existsCount());
+        assertEquals(1, analyser.msn(1));
+        assertEquals(11, analyser.uid(2));
+        assertFalse(analyser.hibernateIfIdle(60000));
+    }
+
+    @Test
+    public void testHibernatedSessionKeepsSharedSnapshot() throws Exception {
+        final UidSnapshotRegistry snapshots = new UidSnapshotRegistry();
+        SelectedMailboxImpl idling = new SelectedMailboxImpl(mockManager, new MyImapSession(new MyMailboxSession(11)), mailboxPath, null, snapshots, new UidIndexCache());
+        SelectedMailboxImpl other = new SelectedMailboxImpl(mockManager, new MyImapSession(new MyMailboxSession(12)), mailboxPath, null, snapshots, new UidIndexCache());
+        assertEquals(1, snapshots.size());
+
+        assertTrue(idling.hibernateIfIdle(0));
+        other.deselect();
+        // the hibernated session still uses the snapshot
+        assertEquals(1, snapshots.size());
+
+        assertEquals(1, idling.existsCount());
+        assertEquals(1, idling.uid(1));
+        assertFalse(idling.hibernateIfIdle(60000));
+    }
+
+    @Test
+    public void testQueuedEventsAreFoldedPastLimit() throws Exception {
+        MyMailboxSession mSession = new MyMailboxSession(99);
+        
+        MyImapSession imapsession = new MyImapSession(mSession);
+        
+        SelectedMailboxImpl analyser = new SelectedMailboxImpl(mockManager, imapsession, mailboxPath, null, new UidSnapshotRegistry(), new UidIndexCache(), 2);
+        // the FLAGS response of the SELECT
+        assertFalse(analyser.getApplicableFlags().contains("mine"));
+        MyMailboxSession otherSession = new MyMailboxSession(11);
+        Flags userFlag = new Flags("mine");
+        
+        analyser.event(new FakeMailboxListenerAdded(otherSession, Arrays.asList(11L), mailboxPath));
+        analyser.event(new FakeMailboxListenerAdded(otherSession, Arrays.asList(12L), mailboxPath));
+        analyser.event(new FakeMailboxListenerFlagsUpdate(otherSession, Arrays.asList(11L), 
+                Arrays.asList(new UpdatedFlags(11L, -1, new Flags(), new Flags(Flags.Flag.ANSWERED))), mailboxPath));
+        analyser.event(new FakeMailboxListenerFlagsUpdate(otherSession, Arrays.asList(12L), 
+                Arrays.asList(new UpdatedFlags(12L, -1, new Flags(), userFlag)), mailboxPath));
+        analyser.event(new FakeMailboxListenerFlagsUpdate(otherSession, Arrays.asList(12L), 
+                Arrays.asList(new UpdatedFlags(12L, -1, userFlag, new Flags())), mailboxPath));
+        analyser.event(new FakeMailboxListenerAdded(otherSession, Arrays.asList(13L), mailboxPath));
+        
+        assertTrue(analyser.isSizeChanged());
+        assertTrue(analyser.msn(11) != SelectedMailbox.NO_SUCH_MESSAGE);
+        assertTrue(analyser.msn(13) != SelectedMailbox.NO_SUCH_MESSAGE);
+        assertEquals(Arrays.asList(11L, 12L), Arrays.asList(analyser.flagUpdateUids().toArray()));
+        assertTrue(analyser.hasNewApplicableFlags());
+        assertTrue(analyser.getApplicableFlags().contains("mine"));
+    }
+
     @Test
     public void testShouldNotSetUidWhenNoSystemFlagChange() throws Exception {
         MyMailboxSession mSession = new MyMailboxSession(11);
@@ -0,0 +1,360 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.base;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.mail.Flags;
+
+import org.apache.james.imap.api.ImapSessionUtils;
+import org.apache.james.imap.api.process.ImapSession;
+import org.apache.james.mailbox.MailboxListener;
+import org.apache.james.mailbox.MailboxManager;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageManager;
+import org.apache.james.mailbox.MessageManager.MetaData;
+import org.apache.james.mailbox.MessageManager.MetaData.FetchGroup;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.model.MessageResult;
+import org.apache.james.mailbox.model.MessageResultIterator;
+import org.apache.james.mailbox.model.SearchQuery;
+import org.hamcrest.BaseMatcher;
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.Sequence;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.LoggerFactory;
+
+@RunWith(JMock.class)
+public class SelectedMailboxImplTest {
+
+    private static final MailboxPath PATH = new MailboxPath("#private", "user", "INBOX");
+
+    private static final long UID_VALIDITY = 7;
+
+    private Mockery mockery = new JUnit4Mockery();
+
+    private MailboxManager mailboxManager;
+
+    private MessageManager mailbox;
+
+    private MailboxSession mailboxSession;
+
+    private ImapSession session;
+
+    private UidIndexCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        mailboxManager = mockery.mock(MailboxManager.class);
+        mailbox = mockery.mock(MessageManager.class);
+        mailboxSession = mockery.mock(MailboxSession.class);
+        session = mockery.mock(ImapSession.class);
+        cache = new UidIndexCache();
+        mockery.checking(new Expectations() {
+            {
+                allowing(session).getAttribute(ImapSessionUtils.MAILBOX_SESSION_ATTRIBUTE_SESSION_KEY);
+                will(returnValue(mailboxSession));
+                allowing(mailboxSession).getSessionId();
+                will(returnValue(1L));
+                allowing(mailboxManager).getMailbox(PATH, mailboxSession);
+                will(returnValue(mailbox));
+            }
+        });
+    }
+
+    @Test
+    public void testMessageAddedBeforeListenerIsNotLost() throws Exception {
+        // uids 1 and 2 were cached at HIGHESTMODSEQ 5
+        cache.put(new UidSnapshotRegistry.Key(PATH, UID_VALIDITY), 5, new long[] { 1, 2 }, 2);
+
+        // the meta data of the SELECT was read at HIGHESTMODSEQ 5, then
+        // message 3 was added before the listener was registered
+        final MetaData stale = metaData("stale", 5, 2);
+        final MetaData current = metaData("current", 6, 3);
+        final Sequence select = mockery.sequence("select");
+        mockery.checking(new Expectations() {
+            {
+                one(mailboxManager).addListener(with(equal(PATH)), with(any(MailboxListener.class)), with(same(mailboxSession)));
+                inSequence(select);
+                one(mailbox).getMetaData(false, mailboxSession, FetchGroup.NO_COUNT);
+                inSequence(select);
+                will(returnValue(current));
+                one(mailbox).getMessageCount(mailboxSession);
+                inSequence(select);
+                will(returnValue(3L));
+                one(mailbox).search(with(any(SearchQuery.class)), with(same(mailboxSession)));
+                inSequence(select);
+                will(returnValue(Arrays.asList(3L).iterator()));
+            }
+        });
+
+        SelectedMailboxImpl selected = new SelectedMailboxImpl(mailboxManager, session, PATH, stale, new UidSnapshotRegistry(), cache);
+        assertEquals(3, selected.existsCount());
+        assertEquals(3, selected.uid(3));
+        assertEquals(6, cache.get(new UidSnapshotRegistry.Key(PATH, UID_VALIDITY)).getHighestModSeq());
+    }
+
+    @Test
+    public void testMessageExpungedBeforeListenerIsNotKept() throws Exception {
+        cache.put(new UidSnapshotRegistry.Key(PATH, UID_VALIDITY), 5, new long[] { 1, 2 }, 2);
+
+        // message 2 was expunged after the meta data was read, which the
+        // cached uids do not show
+        final MetaData stale = metaData("stale", 5, 2);
+        final MetaData current = metaData("current", 5, 1);
+        mockery.checking(new Expectations() {
+            {
+                one(mailboxManager).addListener(with(equal(PATH)), with(any(MailboxListener.class)), with(same(mailboxSession)));
+                allowing(mailbox).getMetaData(false, mailboxSession, FetchGroup.NO_COUNT);
+                will(returnValue(current));
+                allowing(mailbox).getMessageCount(mailboxSession);
+                will(returnValue(1L));
+                one(mailbox).search(with(any(SearchQuery.class)), with(same(mailboxSession)));
+                will(returnValue(Arrays.asList(1L).iterator()));
+            }
+        });
+
+        SelectedMailboxImpl selected = new SelectedMailboxImpl(mailboxManager, session, PATH, stale, new UidSnapshotRegistry(), cache);
+        assertEquals(1, selected.existsCount());
+        assertEquals(1, selected.uid(1));
+    }
+
+    @Test
+    public void testUserFlagsAreOnlyReadWhenAskedFor() throws Exception {
+        final MetaData metaData = metaData("metaData", 5, 2, userFlags());
+        final Sequence select = mockery.sequence("select");
+        mockery.checking(new Expectations() {
+            {
+                one(mailboxManager).addListener(with(equal(PATH)), with(any(MailboxListener.class)), with(same(mailboxSession)));
+                allowing(mailbox).getMetaData(false, mailboxSession, FetchGroup.NO_COUNT);
+                will(returnValue(metaData));
+                allowing(mailbox).getMessageCount(mailboxSession);
+                will(returnValue(2L));
+                one(mailbox).search(with(any(SearchQuery.class)), with(same(mailboxSession)));
+                inSequence(select);
+                will(returnValue(Arrays.asList(1L, 2L).iterator()));
+                // the flags are read once, when first asked for
+                one(mailbox).getMessages(with(sameRange(MessageRange.all())), with(any(MessageResult.FetchGroup.class)), with(same(mailboxSession)));
+                inSequence(select);
+                will(returnValue(results(message(1, new Flags("keyword")), message(2, new Flags(Flags.Flag.RECENT)))));
+            }
+        });
+
+        SelectedMailboxImpl selected = new SelectedMailboxImpl(mailboxManager, session, PATH, metaData, new UidSnapshotRegistry(), cache);
+        assertEquals(2, selected.existsCount());
+        assertEquals(2, selected.uid(2));
+        assertTrue(selected.getApplicableFlags().contains("keyword"));
+        assertTrue(selected.getApplicableFlags().contains(Flags.Flag.SEEN));
+        assertFalse(selected.getApplicableFlags().contains(Flags.Flag.RECENT));
+        assertTrue(cache.get(new UidSnapshotRegistry.Key(PATH, UID_VALIDITY)).getFlags().contains("keyword"));
+    }
+
+    @Test
+    public void testCachedFlagsAreCaughtUpWithChangedMessages() throws Exception {
+        cache.put(new UidSnapshotRegistry.Key(PATH, UID_VALIDITY), 5, new long[] { 1, 2 }, 2, new Flags("old"));
+
+        final MetaData metaData = metaData("metaData", 6, 3, userFlags());
+        mockery.checking(new Expectations() {
+            {
+                one(mailboxManager).addListener(with(equal(PATH)), with(any(MailboxListener.class)), with(same(mailboxSession)));
+                allowing(mailbox).getMetaData(false, mailboxSession, FetchGroup.NO_COUNT);
+                will(returnValue(metaData));
+                allowing(mailbox).getMessageCount(mailboxSession);
+                will(returnValue(3L));
+                one(mailbox).search(with(any(SearchQuery.class)), with(same(mailboxSession)));
+                will(returnValue(Arrays.asList(3L).iterator()));
+                // only the changed message is read
+                one(mailbox).getMessages(with(sameRange(MessageRange.one(3))), with(any(MessageResult.FetchGroup.class)), with(same(mailboxSession)));
+                will(returnValue(results(message(3, new Flags("new")))));
+            }
+        });
+
+        SelectedMailboxImpl selected = new SelectedMailboxImpl(mailboxManager, session, PATH, metaData, new UidSnapshotRegistry(), cache);
+        assertEquals(3, selected.existsCount());
+        assertTrue(selected.getApplicableFlags().contains("old"));
+        assertTrue(selected.getApplicableFlags().contains("new"));
+    }
+
+    @Test
+    public void testUidsAreListedWithoutCache() throws Exception {
+        final MetaData metaData = metaData("metaData", 5, 2);
+        mockery.checking(new Expectations() {
+            {
+                exactly(2).of(mailboxManager).addListener(with(equal(PATH)), with(any(MailboxListener.class)), with(same(mailboxSession)));
+                allowing(mailbox).getMessageCount(mailboxSession);
+                will(returnValue(2L));
+                // listed again by the second SELECT
+                exactly(2).of(mailbox).search(with(any(SearchQuery.class)), with(same(mailboxSession)));
+                will(onConsecutiveCalls(returnValue(Arrays.asList(1L, 2L).iterator()), returnValue(Arrays.asList(1L, 2L).iterator())));
+            }
+        });
+
+        new SelectedMailboxImpl(mailboxManager, session, PATH, metaData, new UidSnapshotRegistry(), null);
+        SelectedMailboxImpl selected = new SelectedMailboxImpl(mailboxManager, session, PATH, metaData, new UidSnapshotRegistry(), null);
+        assertEquals(2, selected.existsCount());
+    }
+
+    @Test
+    public void testCachedUidsWithoutFlagsAreUsed() throws Exception {
+        cache.put(new UidSnapshotRegistry.Key(PATH, UID_VALIDITY), 5, new long[] { 1, 2 }, 2);
+
+        final MetaData metaData = metaData("metaData", 5, 2, userFlags());
+        mockery.checking(new Expectations() {
+            {
+                one(mailboxManager).addListener(with(equal(PATH)), with(any(MailboxListener.class)), with(same(mailboxSession)));
+                allowing(mailbox).getMetaData(false, mailboxSession, FetchGroup.NO_COUNT);
+                will(returnValue(metaData));
+                allowing(mailbox).getMessageCount(mailboxSession);
+                will(returnValue(2L));
+                never(mailbox).search(with(any(SearchQuery.class)), with(any(MailboxSession.class)));
+                never(mailbox).getMessages(with(any(MessageRange.class)), with(any(MessageResult.FetchGroup.class)), with(any(MailboxSession.class)));
+            }
+        });
+
+        SelectedMailboxImpl selected = new SelectedMailboxImpl(mailboxManager, session, PATH, metaData, new UidSnapshotRegistry(), cache);
+        assertEquals(2, selected.existsCount());
+        assertEquals(2, selected.uid(2));
+    }
+
+    @Test
+    public void testSystemFlagsAreApplicableIfFlagsCanNotBeRead() throws Exception {
+        final MetaData metaData = metaData("metaData", 5, 2, userFlags());
+        mockery.checking(new Expectations() {
+            {
+                allowing(mailboxManager).addListener(with(equal(PATH)), with(any(MailboxListener.class)), with(same(mailboxSession)));
+                allowing(mailbox).getMetaData(false, mailboxSession, FetchGroup.NO_COUNT);
+                will(returnValue(metaData));
+                allowing(mailbox).getMessageCount(mailboxSession);
+                will(returnValue(2L));
+                allowing(session).getLog();
+                will(returnValue(LoggerFactory.getLogger(SelectedMailboxImplTest.class)));
+                one(mailbox).search(with(any(SearchQuery.class)), with(same(mailboxSession)));
+                will(returnValue(Arrays.asList(1L, 2L).iterator()));
+                // reading is tried again each time
+                allowing(mailbox).getMessages(with(any(MessageRange.class)), with(any(MessageResult.FetchGroup.class)), with(same(mailboxSession)));
+                will(throwException(new MailboxException("broken")));
+            }
+        });
+
+        SelectedMailboxImpl selected = new SelectedMailboxImpl(mailboxManager, session, PATH, metaData, new UidSnapshotRegistry(), cache);
+        assertEquals(2, selected.existsCount());
+        assertTrue(selected.getApplicableFlags().contains(Flags.Flag.SEEN));
+        assertFalse(selected.getApplicableFlags().contains("keyword"));
+    }
+
+    /**
+     * Matches ranges of the same type and uids, as {@link MessageRange} does
+     * not implement equals
+     */
+    private static Matcher<MessageRange> sameRange(final MessageRange expected) {
+        return new BaseMatcher<MessageRange>() {
+
+            public boolean matches(Object o) {
+                if (o instanceof MessageRange) {
+                    final MessageRange range = (MessageRange) o;
+                    return range.getType() == expected.getType() && range.getUidFrom() == expected.getUidFrom() && range.getUidTo() == expected.getUidTo();
+                }
+                return false;
+            }
+
+            public void describeTo(Description description) {
+                description.appendText(expected.toString());
+            }
+        };
+    }
+
+    private static Flags userFlags() {
+        final Flags flags = new Flags(Flags.Flag.SEEN);
+        flags.add(Flags.Flag.USER);
+        return flags;
+    }
+
+    private MessageResult message(final long uid, final Flags flags) {
+        final MessageResult message = mockery.mock(MessageResult.class, "message" + uid);
+        mockery.checking(new Expectations() {
+            {
+                allowing(message).getUid();
+                will(returnValue(uid));
+                allowing(message).getFlags();
+                will(returnValue(flags));
+            }
+        });
+        return message;
+    }
+
+    private static MessageResultIterator results(MessageResult... messages) {
+        final Iterator<MessageResult> it = Arrays.asList(messages).iterator();
+        return new MessageResultIterator() {
+
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public MessageResult next() {
+                return it.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            public MailboxException getException() {
+                return null;
+            }
+        };
+    }
+
+    private MetaData metaData(String name, final long highestModSeq, final long count) {
+        return metaData(name, highestModSeq, count, new Flags(Flags.Flag.SEEN));
+    }
+
+    private MetaData metaData(String name, final long highestModSeq, final long count, final Flags permanentFlags) {
+        final MetaData metaData = mockery.mock(MetaData.class, name);
+        mockery.checking(new Expectations() {
+            {
+                allowing(metaData).getUidValidity();
+                will(returnValue(UID_VALIDITY));
+                allowing(metaData).isModSeqPermanent();
+                will(returnValue(true));
+                allowing(metaData).getHighestModSeq();
+                will(returnValue(highestModSeq));
+                allowing(metaData).getMessageCount();
+                will(returnValue(count));
+                allowing(metaData).getPermanentFlags();
+                will(returnValue(permanentFlags));
+            }
+        });
+        return metaData;
+    }
+}
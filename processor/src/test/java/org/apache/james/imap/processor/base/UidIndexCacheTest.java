@@ -0,0 +1,79 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.base;
+
+import static org.junit.Assert.*;
+
+import org.apache.james.mailbox.model.MailboxPath;
+import org.junit.Test;
+
+public class UidIndexCacheTest {
+
+    private static final UidSnapshotRegistry.Key INBOX = new UidSnapshotRegistry.Key(new MailboxPath("#private", "user", "INBOX"), 1);
+
+    private static final UidSnapshotRegistry.Key TRASH = new UidSnapshotRegistry.Key(new MailboxPath("#private", "user", "Trash"), 1);
+
+    @Test
+    public void testUidsAreStoredCompact() throws Exception {
+        final UidIndexCache cache = new UidIndexCache();
+        final long[] uids = new long[10000];
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = i + 1;
+        }
+        uids[uids.length - 1] = 4294967295L;
+        cache.put(INBOX, 42, uids, uids.length);
+
+        final UidIndexCache.Entry entry = cache.get(INBOX);
+        assertEquals(42, entry.getHighestModSeq());
+        assertEquals(10000, entry.size());
+        assertArrayEquals(uids, entry.getUids());
+        // one run of 9999 uids and a single uid far away
+        assertEquals(3 + 6, cache.bytes());
+        assertNull(cache.get(new UidSnapshotRegistry.Key(new MailboxPath("#private", "user", "INBOX"), 2)));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() throws Exception {
+        final UidIndexCache cache = new UidIndexCache(30);
+        cache.put(INBOX, 1, sparse(10), 10);
+        assertNotNull(cache.get(INBOX));
+        cache.put(TRASH, 1, sparse(10), 10);
+        assertNull(cache.get(INBOX));
+        assertNotNull(cache.get(TRASH));
+        assertEquals(20, cache.bytes());
+
+        // too big to be cached at all
+        cache.put(INBOX, 1, sparse(20), 20);
+        assertNull(cache.get(INBOX));
+        assertEquals(1, cache.size());
+
+        cache.remove(TRASH);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.bytes());
+    }
+
+    private static long[] sparse(int count) {
+        final long[] uids = new long[count];
+        for (int i = 0; i < count; i++) {
+            uids[i] = 2 * (i + 1);
+        }
+        return uids;
+    }
+}
@@ -0,0 +1,122 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.base;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Compares the {@link UidMsnIndex} with the pair of {@link TreeMap}'s which was
+ * used by {@link SelectedMailboxImpl} before, for a mailbox with 500k
+ * messages. Not run as part of the tests, start it with the main method.
+ */
+public class UidMsnIndexBenchmark {
+
+    private static final int MESSAGES = 500000;
+
+    private static final int LOOKUPS = 2000000;
+
+    private static final int EXPUNGES = 200;
+
+    public static void main(String[] args) throws Exception {
+        for (int round = 0; round < 3; round++) {
+            System.out.println("Round " + round);
+            runIndex();
+            runTreeMaps();
+        }
+    }
+
+    private static void runIndex() {
+        final long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        final UidMsnIndex index = new UidMsnIndex();
+        for (int i = 1; i <= MESSAGES; i++) {
+            index.add(i * 2L);
+        }
+        final long build = System.nanoTime() - start;
+        final long heap = usedHeap() - heapBefore;
+
+        start = System.nanoTime();
+        long sum = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            final int msn = 1 + (int) ((i * 7919L) % index.size());
+            sum += index.msn(index.uid(msn));
+        }
+        final long lookup = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < EXPUNGES; i++) {
+            index.remove(index.uid(1 + (int) ((i * 104729L) % index.size())));
+        }
+        final long expunge = System.nanoTime() - start;
+        report("UidMsnIndex", heap, build, lookup, expunge, sum);
+    }
+
+    private static void runTreeMaps() {
+        final long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        final SortedMap<Integer, Long> msnToUid = new TreeMap<Integer, Long>();
+        final SortedMap<Long, Integer> uidToMsn = new TreeMap<Long, Integer>();
+        for (int i = 1; i <= MESSAGES; i++) {
+            msnToUid.put(i, i * 2L);
+            uidToMsn.put(i * 2L, i);
+        }
+        final long build = System.nanoTime() - start;
+        final long heap = usedHeap() - heapBefore;
+
+        start = System.nanoTime();
+        long sum = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            final int msn = 1 + (int) ((i * 7919L) % msnToUid.size());
+            sum += uidToMsn.get(msnToUid.get(msn));
+        }
+        final long lookup = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < EXPUNGES; i++) {
+            final int msn = 1 + (int) ((i * 104729L) % msnToUid.size());
+            final long uid = msnToUid.get(msn);
+            uidToMsn.remove(uid);
+            msnToUid.remove(msn);
+            final List<Integer> renumber = new ArrayList<Integer>(msnToUid.tailMap(msn + 1).keySet());
+            for (final Integer later : renumber) {
+                final Long laterUid = msnToUid.remove(later);
+                uidToMsn.put(laterUid, later - 1);
+                msnToUid.put(later - 1, laterUid);
+            }
+        }
+        final long expunge = System.nanoTime() - start;
+        report("TreeMaps", heap, build, lookup, expunge, sum);
+    }
+
+    private static void report(String name, long heap, long build, long lookup, long expunge, long sum) {
+        System.out.println(name + ": heap ~" + heap / 1024 + "kb, build " + build / 1000000 + "ms, " + (lookup / LOOKUPS) + "ns/lookup pair, " + (expunge / EXPUNGES / 1000) + "us/expunge (" + sum + ")");
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
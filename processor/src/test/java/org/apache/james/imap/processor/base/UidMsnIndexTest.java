@@ -0,0 +1,222 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.base;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.apache.james.imap.api.process.SelectedMailbox;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UidMsnIndexTest {
+
+    private UidMsnIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        index = new UidMsnIndex(2);
+    }
+
+    @Test
+    public void testEmptyIndex() throws Exception {
+        assertTrue(index.isEmpty());
+        assertEquals(SelectedMailbox.NO_SUCH_MESSAGE, index.first());
+        assertEquals(SelectedMailbox.NO_SUCH_MESSAGE, index.last());
+        assertEquals(SelectedMailbox.NO_SUCH_MESSAGE, index.msn(1));
+        assertEquals(SelectedMailbox.NO_SUCH_MESSAGE, index.uid(1));
+    }
+
+    @Test
+    public void testAddAndLookup() throws Exception {
+        for (long uid = 10; uid <= 100; uid += 10) {
+            assertTrue(index.add(uid));
+        }
+        assertFalse(index.add(50));
+        assertEquals(10, index.size());
+        assertEquals(10, index.first());
+        assertEquals(100, index.last());
+        assertEquals(5, index.msn(50));
+        assertEquals(50, index.uid(5));
+        assertEquals(SelectedMailbox.NO_SUCH_MESSAGE, index.msn(55));
+        assertEquals(SelectedMailbox.NO_SUCH_MESSAGE, index.uid(0));
+        assertEquals(SelectedMailbox.NO_SUCH_MESSAGE, index.uid(-1));
+        assertEquals(SelectedMailbox.NO_SUCH_MESSAGE, index.uid(11));
+    }
+
+    @Test
+    public void testAddOutOfOrderKeepsMsnsSortedByUid() throws Exception {
+        index.add(5);
+        index.add(1);
+        index.add(3);
+        assertEquals(1, index.uid(1));
+        assertEquals(3, index.uid(2));
+        assertEquals(5, index.uid(3));
+    }
+
+    @Test
+    public void testRemoveRenumbersFollowingMessages() throws Exception {
+        for (long uid = 1; uid <= 5; uid++) {
+            index.add(uid);
+        }
+        assertEquals(2, index.remove(2));
+        assertEquals(SelectedMailbox.NO_SUCH_MESSAGE, index.remove(2));
+        assertEquals(4, index.size());
+        assertEquals(2, index.msn(3));
+        assertEquals(5, index.uid(4));
+        assertEquals(SelectedMailbox.NO_SUCH_MESSAGE, index.uid(5));
+    }
+
+    @Test
+    public void testTrimmedIndexKeepsWorking() throws Exception {
+        final UidSnapshotRegistry registry = new UidSnapshotRegistry();
+        final UidSnapshotRegistry.Key key = new UidSnapshotRegistry.Key(new MailboxPath("#private", "user", "INBOX"), 1);
+        index = new UidMsnIndex(registry, key, new long[] { 1, 2, 3 }, 3);
+        index.remove(2);
+        index.trim();
+        assertArrayEquals(new long[] { 1, 3 }, index.toArray());
+        index.add(4);
+        index.add(2);
+        index.trim();
+        index.remove(3);
+        assertArrayEquals(new long[] { 1, 2, 4 }, index.toArray());
+        assertEquals(3, index.msn(4));
+    }
+
+    @Test
+    public void testRemoveAllInOnePass() throws Exception {
+        for (long uid = 1; uid <= 10; uid++) {
+            index.add(uid * 10);
+        }
+        final int[] msns = index.removeAll(new long[] { 20, 30, 35, 70, 70, 100 }, 6);
+        assertArrayEquals(new int[] { 2, 3, 7, 10 }, msns);
+        assertEquals(6, index.size());
+        final long[] expected = { 10, 40, 50, 60, 80, 90 };
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], index.uid(i + 1));
+            assertEquals(i + 1, index.msn(expected[i]));
+        }
+    }
+
+    @Test
+    public void testRemoveAllUnknown() throws Exception {
+        index.add(1);
+        assertEquals(0, index.removeAll(new long[] { 2, 3 }, 2).length);
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void testSessionsShareSnapshot() throws Exception {
+        final UidSnapshotRegistry registry = new UidSnapshotRegistry();
+        final UidSnapshotRegistry.Key key = new UidSnapshotRegistry.Key(new MailboxPath("#private", "user", "INBOX"), 1);
+        final UidMsnIndex first = new UidMsnIndex(registry, key, uids(1000), 1000);
+        final UidMsnIndex second = new UidMsnIndex(registry, key, uids(1000), 1000);
+        assertEquals(1, registry.size());
+        assertTrue(first.isShared());
+        assertTrue(second.isShared());
+
+        // changes only affect the delta of the session which made them
+        assertEquals(10, first.remove(10));
+        assertTrue(first.add(5000));
+        assertEquals(1000, first.size());
+        assertEquals(5000, first.last());
+        assertEquals(11, first.uid(10));
+        assertEquals(1000, second.size());
+        assertEquals(10, second.uid(10));
+        assertTrue(second.isShared());
+
+        first.clear();
+        assertFalse(second.isShared());
+        assertEquals(1, registry.size());
+        second.clear();
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void testSessionWithOtherUidsSharesSnapshot() throws Exception {
+        final UidSnapshotRegistry registry = new UidSnapshotRegistry();
+        final UidSnapshotRegistry.Key key = new UidSnapshotRegistry.Key(new MailboxPath("#private", "user", "INBOX"), 1);
+        final UidMsnIndex first = new UidMsnIndex(registry, key, uids(1000), 1000);
+        final long[] uids = uids(1001);
+        uids[0] = 0;
+        final UidMsnIndex second = new UidMsnIndex(registry, key, uids, 1001);
+        assertTrue(second.isShared());
+        assertEquals(1001, second.size());
+        assertEquals(0, second.first());
+        assertEquals(1001, second.last());
+        assertEquals(2, second.msn(2));
+        assertEquals(1000, first.size());
+        assertEquals(1, first.first());
+
+        // a different uidvalidity is never shared
+        final UidMsnIndex third = new UidMsnIndex(registry, new UidSnapshotRegistry.Key(new MailboxPath("#private", "user", "INBOX"), 2), uids(1000), 1000);
+        assertFalse(third.isShared());
+        assertEquals(2, registry.size());
+    }
+
+    @Test
+    public void testRandomChangesAcrossRebases() throws Exception {
+        final Random random = new Random(4711);
+        final TreeSet<Long> expected = new TreeSet<Long>();
+        for (int round = 0; round < 20000; round++) {
+            final long uid = random.nextInt(2000);
+            switch (random.nextInt(3)) {
+            case 0:
+                assertEquals(expected.add(uid), index.add(uid));
+                break;
+            case 1:
+                final int msn = expected.contains(uid) ? expected.headSet(uid).size() + 1 : SelectedMailbox.NO_SUCH_MESSAGE;
+                expected.remove(uid);
+                assertEquals(msn, index.remove(uid));
+                break;
+            default:
+                final List<Long> removed = new ArrayList<Long>(expected.subSet(uid, uid + 20));
+                final long[] sorted = new long[removed.size()];
+                final int[] msns = new int[removed.size()];
+                for (int i = 0; i < sorted.length; i++) {
+                    sorted[i] = removed.get(i);
+                    msns[i] = expected.headSet(sorted[i]).size() + 1;
+                }
+                expected.removeAll(removed);
+                assertArrayEquals(msns, index.removeAll(sorted, sorted.length));
+            }
+        }
+        assertEquals(expected.size(), index.size());
+        int msn = 1;
+        for (final Long uid : expected) {
+            assertEquals(msn, index.msn(uid));
+            assertEquals(uid.longValue(), index.uid(msn));
+            msn++;
+        }
+    }
+
+    private static long[] uids(int count) {
+        final long[] uids = new long[count];
+        for (int i = 0; i < count; i++) {
+            uids[i] = i + 1;
+        }
+        return uids;
+    }
+}
@@ -0,0 +1,257 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.fetch;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+
+import org.apache.james.imap.message.response.FileBackedContent;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.Content;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ContentBodyElementTest {
+
+    private static final String CONTENT = "Subject: test\r\n\r\nThis is the body\r\n";
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("imap", ".eml");
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(CONTENT.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void testTransferFileContent() throws Exception {
+        assertEquals(CONTENT, transfer(new ContentBodyElement("BODY[]", new FileContent(0))));
+    }
+
+    @Test
+    public void testTransferFileContentFromPosition() throws Exception {
+        assertEquals(CONTENT.substring(17), transfer(new ContentBodyElement("BODY[TEXT]", new FileContent(17))));
+    }
+
+    @Test
+    public void testTransferStreamContent() throws Exception {
+        assertEquals(CONTENT, transfer(new ContentBodyElement("BODY[]", new StreamContent())));
+    }
+
+    @Test
+    public void testTransferPartialFileContent() throws Exception {
+        final ContentBodyElement element = new ContentBodyElement("BODY[]", new FileContent(0));
+        assertEquals(CONTENT.substring(9, 13), transfer(new PartialFetchBodyElement(element, 9, 4)));
+    }
+
+    @Test
+    public void testTransferPartialStreamContent() throws Exception {
+        final ContentBodyElement element = new ContentBodyElement("BODY[]", new StreamContent());
+        assertEquals(CONTENT.substring(17), transfer(new PartialFetchBodyElement(element, 17, 1000)));
+    }
+
+    @Test
+    public void testTransferFileContentToNonBlockingChannel() throws Exception {
+        final String content = largeContent();
+        final FileContent fileContent = new FileContent(0);
+        assertEquals(content, transferToPipe(new ContentBodyElement("BODY[]", fileContent, new ChannelTransfer(10000))));
+    }
+
+    @Test
+    public void testTransferStreamContentToNonBlockingChannel() throws Exception {
+        final String content = largeContent();
+        final FileContent fileContent = new FileContent(0);
+        assertEquals(content, transferToPipe(new ContentBodyElement("BODY[]", new StreamContent(fileContent), new ChannelTransfer(10000))));
+    }
+
+    @Test
+    public void testTransferGivesUpOnBlockedChannel() throws Exception {
+        largeContent();
+        final Pipe pipe = Pipe.open();
+        try {
+            pipe.sink().configureBlocking(false);
+            new ContentBodyElement("BODY[]", new FileContent(0), new ChannelTransfer(20)).transferTo(pipe.sink(), ByteBuffer.allocate(8));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            pipe.sink().close();
+            pipe.source().close();
+        }
+    }
+
+    @Test
+    public void testTransferFailsOnTruncatedFile() throws Exception {
+        final FileContent truncated = new FileContent(0) {
+
+            public long size() throws MailboxException {
+                return super.size() + 10;
+            }
+        };
+        try {
+            new ContentBodyElement("BODY[]", truncated).transferTo(Channels.newChannel(new ByteArrayOutputStream()), ByteBuffer.allocate(8));
+            fail("Expected EOFException");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Replace the content of the file with one which does not fit into the
+     * buffer of a pipe
+     */
+    private String largeContent() throws IOException {
+        final StringBuilder content = new StringBuilder();
+        while (content.length() < 1024 * 1024) {
+            content.append(CONTENT);
+        }
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.toString().getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        return content.toString();
+    }
+
+    /**
+     * Transfer the element to the non-blocking sink of a pipe, whose source is
+     * read by another thread
+     */
+    private String transferToPipe(ContentBodyElement element) throws Exception {
+        final Pipe pipe = Pipe.open();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Thread reader = new Thread() {
+            public void run() {
+                final ByteBuffer buffer = ByteBuffer.allocate(4096);
+                try {
+                    Thread.sleep(50);
+                    while (pipe.source().read(buffer) != -1) {
+                        out.write(buffer.array(), 0, buffer.position());
+                        buffer.clear();
+                    }
+                } catch (Exception e) {
+                    // the result is incomplete then
+                }
+            }
+        };
+        reader.start();
+        try {
+            pipe.sink().configureBlocking(false);
+            assertEquals(element.size(), element.transferTo(pipe.sink(), ByteBuffer.allocate(8192)));
+        } finally {
+            pipe.sink().close();
+        }
+        reader.join(10000);
+        pipe.source().close();
+        return out.toString("US-ASCII");
+    }
+
+    private String transfer(ContentBodyElement element) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(element.size(), element.transferTo(Channels.newChannel(out), ByteBuffer.allocate(8)));
+        return out.toString("US-ASCII");
+    }
+
+    private String transfer(PartialFetchBodyElement element) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(element.size(), element.transferTo(Channels.newChannel(out), ByteBuffer.allocate(8)));
+        return out.toString("US-ASCII");
+    }
+
+    private class FileContent implements FileBackedContent {
+
+        private final long position;
+
+        public FileContent(long position) {
+            this.position = position;
+        }
+
+        public InputStream getInputStream() throws IOException {
+            final FileInputStream in = new FileInputStream(file);
+            in.getChannel().position(position);
+            return in;
+        }
+
+        public long size() throws MailboxException {
+            return file.length() - position;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+    }
+
+    /**
+     * Content which is no {@link FileBackedContent}, by default {@link #CONTENT}
+     */
+    private static final class StreamContent implements Content {
+
+        private final Content content;
+
+        public StreamContent() {
+            this(null);
+        }
+
+        public StreamContent(Content content) {
+            this.content = content;
+        }
+
+        public InputStream getInputStream() throws IOException {
+            if (content != null) {
+                return content.getInputStream();
+            }
+            return new ByteArrayInputStream(CONTENT.getBytes("US-ASCII"));
+        }
+
+        public long size() throws MailboxException {
+            if (content != null) {
+                return content.size();
+            }
+            return CONTENT.length();
+        }
+    }
+}
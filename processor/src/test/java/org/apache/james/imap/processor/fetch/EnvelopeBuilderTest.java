@@ -0,0 +1,147 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.fetch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.james.imap.message.response.FetchResponse;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.Headers;
+import org.apache.james.mailbox.model.MessageResult;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class EnvelopeBuilderTest {
+
+    private EnvelopeBuilder builder;
+
+    private List<MessageResult.Header> headers;
+
+    private static class Header implements MessageResult.Header {
+
+        public String name;
+
+        public String value;
+
+        public Header(String name, String value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        public long size() {
+            return 0;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return null;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        builder = new EnvelopeBuilder(LoggerFactory.getLogger(EnvelopeBuilderTest.class));
+        headers = new ArrayList<MessageResult.Header>();
+    }
+
+    @Test
+    public void testEnvelopeHeadersAreMatchedIgnoringCase() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            headers.add(new Header("Received", "from host" + i));
+        }
+        headers.add(new Header("SUBJECT", "Test"));
+        headers.add(new Header("date", "Mon, 7 Feb 1994 21:52:25 -0800"));
+        headers.add(new Header("message-id", "<1@example.org>"));
+        headers.add(new Header("In-Reply-To", "<0@example.org>"));
+        headers.add(new Header("from", "Fred <fred@example.org>"));
+        headers.add(new Header("TO", "joe@example.org, jane@example.org"));
+
+        FetchResponse.Envelope envelope = builder.buildEnvelope(headers());
+        assertEquals("Test", envelope.getSubject());
+        assertEquals("Mon, 7 Feb 1994 21:52:25 -0800", envelope.getDate());
+        assertEquals("<1@example.org>", envelope.getMessageId());
+        assertEquals("<0@example.org>", envelope.getInReplyTo());
+        assertEquals("fred", envelope.getFrom()[0].getMailboxName());
+        assertEquals(2, envelope.getTo().length);
+        assertNull(envelope.getCc());
+        assertNull(envelope.getBcc());
+    }
+
+    @Test
+    public void testFirstHeaderIsUsed() throws Exception {
+        headers.add(new Header("Subject", "First"));
+        headers.add(new Header("Subject", "Second"));
+
+        assertEquals("First", builder.buildEnvelope(headers()).getSubject());
+    }
+
+    @Test
+    public void testSenderAndReplyToDefaultToFrom() throws Exception {
+        headers.add(new Header("From", "fred@example.org"));
+        headers.add(new Header("Reply-To", "joe@example.org"));
+
+        FetchResponse.Envelope envelope = builder.buildEnvelope(headers());
+        assertSame(envelope.getFrom(), envelope.getSender());
+        assertEquals("joe", envelope.getReplyTo()[0].getMailboxName());
+    }
+
+    @Test
+    public void testEmptyValuesAreIgnored() throws Exception {
+        headers.add(new Header("Subject", ""));
+        headers.add(new Header("Cc", " "));
+
+        FetchResponse.Envelope envelope = builder.buildEnvelope(headers());
+        assertNull(envelope.getSubject());
+        assertNull(envelope.getCc());
+    }
+
+    private Headers headers() {
+        return new Headers() {
+
+            public Iterator<MessageResult.Header> headers() throws MailboxException {
+                return headers.iterator();
+            }
+
+            public long size() {
+                return 0;
+            }
+
+            public InputStream getInputStream() throws IOException {
+                return null;
+            }
+        };
+    }
+}
@@ -0,0 +1,175 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.fetch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.james.mailbox.MessageManager;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.model.MessageResult;
+import org.apache.james.mailbox.model.MessageResultIterator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FetchPipelineTest {
+
+    private static final long SIZE = 100;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testMessagesAreReturnedInOrder() throws Exception {
+        List<MessageRange> ranges = Arrays.asList(MessageRange.range(1, 50), MessageRange.range(100, 120));
+        FetchPipeline pipeline = new FetchPipeline(mailbox(null), ranges, null, null, 10 * SIZE);
+        pipeline.start(executor);
+
+        List<Long> uids = new ArrayList<Long>();
+        MessageResult result;
+        while ((result = pipeline.next()) != null) {
+            assertTrue(pipeline.sizeReadAhead() <= 10 * SIZE);
+            uids.add(result.getUid());
+        }
+        assertEquals(71, uids.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i + 1, uids.get(i).longValue());
+        }
+        for (int i = 0; i < 21; i++) {
+            assertEquals(100 + i, uids.get(50 + i).longValue());
+        }
+    }
+
+    @Test
+    public void testReadAheadIsBounded() throws Exception {
+        FetchPipeline pipeline = new FetchPipeline(mailbox(null), Arrays.asList(MessageRange.range(1, 100)), null, null, 3 * SIZE);
+        pipeline.start(executor);
+
+        assertEquals(1, pipeline.next().getUid());
+        // give the producer time to read ahead as far as it may
+        Thread.sleep(100);
+        assertEquals(3 * SIZE, pipeline.sizeReadAhead());
+        pipeline.close();
+        assertEquals(0, pipeline.sizeReadAhead());
+    }
+
+    @Test
+    public void testExceptionIsThrownAfterReadMessages() throws Exception {
+        MailboxException failure = new MailboxException("failed");
+        FetchPipeline pipeline = new FetchPipeline(mailbox(failure), Arrays.asList(MessageRange.range(1, 5)), null, null, SIZE);
+        pipeline.start(executor);
+
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(i, pipeline.next().getUid());
+        }
+        try {
+            pipeline.next();
+            fail();
+        } catch (MailboxException e) {
+            assertEquals(failure, e);
+        }
+    }
+
+    @Test
+    public void testEmptyRanges() throws Exception {
+        FetchPipeline pipeline = new FetchPipeline(mailbox(null), new ArrayList<MessageRange>(), null, null, SIZE);
+        pipeline.start(executor);
+        assertNull(pipeline.next());
+    }
+
+    /**
+     * Return a {@link MessageManager} which only supports getMessages and
+     * returns a message for each uid of the range
+     */
+    private MessageManager mailbox(final MailboxException exception) {
+        return (MessageManager) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { MessageManager.class }, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (!method.getName().equals("getMessages")) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                MessageRange range = (MessageRange) args[0];
+                List<MessageResult> results = new ArrayList<MessageResult>();
+                for (long uid = range.getUidFrom(); uid <= range.getUidTo(); uid++) {
+                    results.add(message(uid));
+                }
+                return iterator(results.iterator(), exception);
+            }
+        });
+    }
+
+    private MessageResult message(final long uid) {
+        return (MessageResult) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { MessageResult.class }, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("getUid")) {
+                    return uid;
+                } else if (method.getName().equals("getSize")) {
+                    return SIZE;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private MessageResultIterator iterator(final Iterator<MessageResult> results, final MailboxException exception) {
+        return new MessageResultIterator() {
+
+            public boolean hasNext() {
+                return results.hasNext();
+            }
+
+            public MessageResult next() {
+                return results.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            public MailboxException getException() {
+                return exception;
+            }
+        };
+    }
+}
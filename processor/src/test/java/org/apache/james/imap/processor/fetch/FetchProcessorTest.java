@@ -0,0 +1,329 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.fetch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.mail.Flags;
+
+import org.apache.james.imap.api.message.BodyFetchElement;
+import org.apache.james.imap.api.message.FetchData;
+import org.apache.james.imap.api.message.UidSet;
+import org.apache.james.imap.api.message.response.ImapResponseMessage;
+import org.apache.james.imap.api.process.ImapProcessor.Responder;
+import org.apache.james.imap.api.process.ImapSession;
+import org.apache.james.imap.api.process.SelectedMailbox;
+import org.apache.james.imap.message.response.UnpooledStatusResponseFactory;
+import org.apache.james.mailbox.MessageManager;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.Headers;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.model.MessageResult;
+import org.apache.james.mailbox.model.MessageResultIterator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class FetchProcessorTest {
+
+    private static final int MESSAGES = 5;
+
+    private ExecutorService pipelineExecutor;
+
+    private ExecutorService buildExecutor;
+
+    private MailboxException failure;
+
+    private List<ImapResponseMessage> responses;
+
+    /** uids which are not in the selected mailbox anymore */
+    private UidSet expunged;
+
+    /** uids for which the \Seen flag was set */
+    private UidSet seen;
+
+    @Before
+    public void setUp() throws Exception {
+        pipelineExecutor = Executors.newSingleThreadExecutor();
+        buildExecutor = Executors.newFixedThreadPool(2);
+        failure = new MailboxException("failed");
+        responses = new ArrayList<ImapResponseMessage>();
+        expunged = new UidSet();
+        seen = new UidSet();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pipelineExecutor.shutdownNow();
+        buildExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testReadMessagesAreWrittenBeforeFailureWithPipeline() throws Exception {
+        fetchFailing(new FetchProcessor(null, null, new UnpooledStatusResponseFactory(), pipelineExecutor, 1024 * 1024, buildExecutor, 2), fetchEnvelope());
+    }
+
+    @Test
+    public void testReadMessagesAreWrittenBeforeFailureWithoutPipeline() throws Exception {
+        fetchFailing(new FetchProcessor(null, null, new UnpooledStatusResponseFactory(), null, 0, buildExecutor, 2), fetchEnvelope());
+    }
+
+    @Test
+    public void testBodySectionsAreNotBuiltInParallel() throws Exception {
+        final boolean[] used = new boolean[1];
+        final ExecutorService executor = (ExecutorService) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { ExecutorService.class }, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                used[0] = true;
+                throw new RejectedExecutionException();
+            }
+        });
+        final FetchData fetch = fetchEnvelope();
+        fetch.add(BodyFetchElement.createRFC822Header(), true);
+        fetchFailing(new FetchProcessor(null, null, new UnpooledStatusResponseFactory(), null, 0, executor, 2), fetch);
+        assertFalse(used[0]);
+    }
+
+    @Test
+    public void testSeenIsOnlySetForWrittenMessages() throws Exception {
+        expunged.add(3);
+        final FetchData fetch = fetchEnvelope();
+        fetch.add(BodyFetchElement.createRFC822Header(), false);
+        fetchFailing(new FetchProcessor(null, null, new UnpooledStatusResponseFactory()), fetch);
+        assertEquals("1:2,4:5", seen.toString());
+    }
+
+    @Test
+    public void testSeenIsOnlySetForWrittenMessagesWithPipeline() throws Exception {
+        expunged.add(3);
+        final FetchData fetch = fetchEnvelope();
+        fetch.add(BodyFetchElement.createRFC822Header(), false);
+        fetchFailing(new FetchProcessor(null, null, new UnpooledStatusResponseFactory(), pipelineExecutor, 1024 * 1024), fetch);
+        assertEquals("1:2,4:5", seen.toString());
+    }
+
+    @Test
+    public void testSeenRangesSpanExpungedUids() throws Exception {
+        UidSet uids = new UidSet();
+        uids.add(1);
+        uids.add(2);
+        uids.add(3);
+        uids.add(7);
+        uids.add(10);
+
+        List<MessageRange> ranges = FetchProcessor.seenRanges(selected(1, 2, 3, 7, 8, 10), uids);
+        assertEquals(2, ranges.size());
+        assertRange(1, 7, ranges.get(0));
+        assertRange(10, 10, ranges.get(1));
+    }
+
+    @Test
+    public void testSeenRangesOfSingleUids() throws Exception {
+        UidSet uids = new UidSet();
+        uids.add(2);
+        uids.add(8);
+
+        List<MessageRange> ranges = FetchProcessor.seenRanges(selected(1, 2, 3, 7, 8, 10), uids);
+        assertEquals(2, ranges.size());
+        assertRange(2, 2, ranges.get(0));
+        assertRange(8, 8, ranges.get(1));
+    }
+
+    @Test
+    public void testSeenRangesOfEmptySet() throws Exception {
+        assertEquals(0, FetchProcessor.seenRanges(selected(1, 2, 3, 7, 8, 10), new UidSet()).size());
+    }
+
+    private void assertRange(long from, long to, MessageRange range) {
+        assertEquals(from, range.getUidFrom());
+        assertEquals(to, range.getUidTo());
+    }
+
+    private static FetchData fetchEnvelope() {
+        final FetchData fetch = new FetchData();
+        fetch.setUid(true);
+        fetch.setEnvelope(true);
+        return fetch;
+    }
+
+    /**
+     * Fetch messages from a mailbox which fails after the last one. The
+     * responses of all messages must be written before the failure is
+     * thrown
+     */
+    private void fetchFailing(FetchProcessor processor, FetchData fetch) throws Exception {
+        try {
+            processor.processMessageRanges(session(), mailbox(), null, Arrays.asList(MessageRange.range(1, MESSAGES)), fetch, true, null, new Responder() {
+
+                public void respond(ImapResponseMessage message) {
+                    responses.add(message);
+                }
+            });
+            fail();
+        } catch (MailboxException e) {
+            assertSame(failure, e);
+        }
+        assertEquals(MESSAGES - expunged.size(), responses.size());
+    }
+
+    /**
+     * Return a {@link MessageManager} which returns a message for each uid of
+     * the range, and then fails. The uids \Seen is set for are recorded
+     */
+    private MessageManager mailbox() {
+        return (MessageManager) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { MessageManager.class }, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("setFlags")) {
+                    final MessageRange range = (MessageRange) args[3];
+                    seen.addRange(range.getUidFrom(), range.getUidTo());
+                    return null;
+                } else if (!method.getName().equals("getMessages")) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                final MessageRange range = (MessageRange) args[0];
+                final List<MessageResult> results = new ArrayList<MessageResult>();
+                for (long uid = range.getUidFrom(); uid <= range.getUidTo(); uid++) {
+                    results.add(message(uid));
+                }
+                final Iterator<MessageResult> it = results.iterator();
+                return new MessageResultIterator() {
+
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    public MessageResult next() {
+                        return it.next();
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+
+                    public MailboxException getException() {
+                        return failure;
+                    }
+                };
+            }
+        });
+    }
+
+    /**
+     * Return a {@link MessageResult} without any headers
+     */
+    private MessageResult message(final long uid) {
+        final Headers headers = (Headers) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Headers.class }, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("headers")) {
+                    return Collections.<MessageResult.Header> emptyList().iterator();
+                } else if (method.getName().equals("size")) {
+                    return 0L;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        return (MessageResult) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { MessageResult.class }, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("getUid")) {
+                    return uid;
+                } else if (method.getName().equals("getSize")) {
+                    return 100L;
+                } else if (method.getName().equals("getFlags")) {
+                    return new Flags();
+                } else if (method.getName().equals("getHeaders")) {
+                    return headers;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * Return a {@link SelectedMailbox} which contains the given uids
+     */
+    private SelectedMailbox selected(final long... uids) {
+        return (SelectedMailbox) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { SelectedMailbox.class }, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("msn")) {
+                    final long uid = ((Long) args[0]).longValue();
+                    for (int i = 0; i < uids.length; i++) {
+                        if (uids[i] == uid) {
+                            return i + 1;
+                        }
+                    }
+                    return SelectedMailbox.NO_SUCH_MESSAGE;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * Return a {@link ImapSession} whose selected mailbox contains all uids
+     * as msn, except the expunged ones
+     */
+    private ImapSession session() {
+        final SelectedMailbox selected = (SelectedMailbox) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { SelectedMailbox.class }, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("msn")) {
+                    final long uid = ((Long) args[0]).longValue();
+                    return expunged.contains(uid) ? SelectedMailbox.NO_SUCH_MESSAGE : (int) uid;
+                } else if (method.getName().equals("isRecent")) {
+                    return false;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        return (ImapSession) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { ImapSession.class }, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("getSelected")) {
+                    return selected;
+                } else if (method.getName().equals("getAttribute")) {
+                    return null;
+                } else if (method.getName().equals("getLog")) {
+                    return LoggerFactory.getLogger(FetchProcessorTest.class);
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
@@ -0,0 +1,159 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.fetch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+
+import org.apache.james.imap.message.response.FetchResponse;
+import org.apache.james.imap.message.response.FetchResponse.Structure;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FetchResponseCacheTest {
+
+    private static final MailboxPath INBOX = new MailboxPath("#private", "user", "INBOX");
+
+    private static final MailboxPath SENT = new MailboxPath("#private", "user", "Sent");
+
+    private FetchResponseCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new FetchResponseCache(10);
+    }
+
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        FetchResponse.Envelope envelope = envelope();
+        assertNull(cache.getEnvelope(INBOX, 1, 1));
+        cache.putEnvelope(INBOX, 1, 1, envelope);
+        assertSame(envelope, cache.getEnvelope(INBOX, 1, 1));
+        assertNull(cache.getEnvelope(INBOX, 1, 2));
+        assertNull(cache.getEnvelope(SENT, 1, 1));
+
+        assertEquals(1, cache.hits());
+        assertEquals(3, cache.misses());
+    }
+
+    @Test
+    public void testBodyAndBodyStructureAreSeparated() throws Exception {
+        Structure body = structure();
+        cache.putStructure(INBOX, 1, 1, false, body);
+        assertSame(body, cache.getStructure(INBOX, 1, 1, false));
+        assertNull(cache.getStructure(INBOX, 1, 1, true));
+        assertNull(cache.getEnvelope(INBOX, 1, 1));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testUidValidityChangeInvalidatesMailbox() throws Exception {
+        cache.putEnvelope(INBOX, 1, 1, envelope());
+        cache.putEnvelope(INBOX, 1, 2, envelope());
+        cache.putEnvelope(SENT, 1, 1, envelope());
+
+        assertNull(cache.getEnvelope(INBOX, 2, 1));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.weight());
+        // the old UIDVALIDITY is not valid anymore
+        assertNull(cache.getEnvelope(INBOX, 1, 2));
+    }
+
+    @Test
+    public void testWeightIncludesAllParts() throws Exception {
+        cache.putStructure(INBOX, 1, 1, true, structure(structure(), structure(structure())));
+        assertEquals(4, cache.weight());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        FetchResponse.Envelope first = envelope();
+        cache.putEnvelope(INBOX, 1, 1, first);
+        for (long uid = 2; uid <= 10; uid++) {
+            cache.putEnvelope(INBOX, 1, uid, envelope());
+        }
+        // uid 1 is now the most recently used
+        cache.getEnvelope(INBOX, 1, 1);
+        cache.putStructure(INBOX, 1, 11, true, structure(structure()));
+
+        assertEquals(10, cache.weight());
+        assertEquals(2, cache.evictions());
+        assertNull(cache.getEnvelope(INBOX, 1, 2));
+        assertNull(cache.getEnvelope(INBOX, 1, 3));
+        assertSame(first, cache.getEnvelope(INBOX, 1, 1));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        cache.putEnvelope(INBOX, 1, 1, envelope());
+        cache.putEnvelope(SENT, 1, 1, envelope());
+        cache.invalidate(INBOX);
+        assertNull(cache.getEnvelope(INBOX, 1, 1));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testMailboxWithoutEntriesIsForgotten() throws Exception {
+        cache.putEnvelope(INBOX, 1, 1, envelope());
+        assertNull(cache.getEnvelope(SENT, 1, 1));
+        assertEquals(1, cache.mailboxes());
+
+        // evicts the only entry of the INBOX
+        for (long uid = 1; uid <= 10; uid++) {
+            cache.putEnvelope(SENT, 1, uid, envelope());
+        }
+        assertEquals(1, cache.mailboxes());
+        cache.invalidate(SENT);
+        assertEquals(0, cache.mailboxes());
+    }
+
+    private FetchResponse.Envelope envelope() {
+        return (FetchResponse.Envelope) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { FetchResponse.Envelope.class }, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * Return a {@link Structure} with the given parts
+     */
+    private Structure structure(final Structure... parts) {
+        return (Structure) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Structure.class }, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("parts")) {
+                    return Arrays.asList(parts).iterator();
+                } else if (method.getName().equals("getEnvelope") || method.getName().equals("getBody")) {
+                    return null;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
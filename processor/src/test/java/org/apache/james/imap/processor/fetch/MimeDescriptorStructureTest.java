@@ -0,0 +1,94 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.fetch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.james.mailbox.model.MimeDescriptor;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class MimeDescriptorStructureTest {
+
+    /** set once the structure was built, the descriptor must not be used after */
+    private boolean built;
+
+    @Test
+    public void testStructureDoesNotUseDescriptorOnceBuilt() throws Exception {
+        final MimeDescriptorStructure structure = new MimeDescriptorStructure(true, descriptor(), new EnvelopeBuilder(LoggerFactory.getLogger(MimeDescriptorStructureTest.class)));
+        built = true;
+
+        assertEquals("text", structure.getMediaType());
+        assertEquals("plain", structure.getSubType());
+        assertEquals("7bit", structure.getEncoding());
+        assertEquals("id", structure.getId());
+        assertEquals("description", structure.getDescription());
+        assertEquals(3, structure.getLines());
+        assertEquals(42, structure.getOctets());
+        assertEquals(Arrays.asList("charset", "us-ascii"), structure.getParameters());
+        assertEquals(Arrays.asList("en"), structure.getLanguages());
+        assertNull(structure.getBody());
+        assertFalse(structure.parts().hasNext());
+    }
+
+    private MimeDescriptor descriptor() {
+        return (MimeDescriptor) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { MimeDescriptor.class }, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (built) {
+                    throw new IllegalStateException(method.getName() + " called after the structure was built");
+                }
+                final String name = method.getName();
+                if (name.equals("getMimeType")) {
+                    return "text";
+                } else if (name.equals("getMimeSubType")) {
+                    return "plain";
+                } else if (name.equals("getTransferContentEncoding")) {
+                    return "7bit";
+                } else if (name.equals("getContentID")) {
+                    return "id";
+                } else if (name.equals("getContentDescription")) {
+                    return "description";
+                } else if (name.equals("getLines")) {
+                    return 3L;
+                } else if (name.equals("getBodyOctets")) {
+                    return 42L;
+                } else if (name.equals("getLanguages")) {
+                    return Arrays.asList("en");
+                } else if (name.equals("contentTypeParameters")) {
+                    return Collections.singletonMap("charset", "us-ascii");
+                } else if (name.equals("parts")) {
+                    return Collections.<MimeDescriptor> emptyList().iterator();
+                } else if (name.equals("getDispositionParams")) {
+                    return Collections.emptyMap();
+                }
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,170 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.imap.processor.fetch;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.mail.Flags;
+
+import org.apache.james.imap.api.message.FetchData;
+import org.apache.james.imap.api.message.response.ImapResponseMessage;
+import org.apache.james.imap.api.process.ImapProcessor.Responder;
+import org.apache.james.imap.api.process.ImapSession;
+import org.apache.james.imap.api.process.SelectedMailbox;
+import org.apache.james.imap.message.response.FetchResponse;
+import org.apache.james.mailbox.model.MessageResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class ParallelFetchResponsesTest {
+
+    private ExecutorService executor;
+
+    private List<FetchResponse> responses;
+
+    private Responder responder;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+        responses = new ArrayList<FetchResponse>();
+        responder = new Responder() {
+
+            public void respond(ImapResponseMessage message) {
+                responses.add((FetchResponse) message);
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testResponsesAreWrittenInOrder() throws Exception {
+        ParallelFetchResponses parallel = new ParallelFetchResponses(executor, 8, new FetchResponseBuilder(null), fetchUid(), null, session(0), null, true, responder);
+        for (long uid = 1; uid <= 200; uid++) {
+            parallel.add(message(uid));
+            // never more then 8 responses in flight
+            assertEquals(Math.max(0, uid - 8), responses.size());
+        }
+        parallel.flush();
+
+        assertEquals(200, responses.size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i + 1, responses.get(i).getMessageNumber());
+            assertEquals(i + 1, responses.get(i).getUid().longValue());
+        }
+    }
+
+    @Test
+    public void testUnknownMessagesAreSkipped() throws Exception {
+        // uid 5 is not part of the selected mailbox
+        ParallelFetchResponses parallel = new ParallelFetchResponses(executor, 4, new FetchResponseBuilder(null), fetchUid(), null, session(5), null, true, responder);
+        for (long uid = 1; uid <= 10; uid++) {
+            parallel.add(message(uid));
+        }
+        parallel.flush();
+
+        assertEquals(9, responses.size());
+        assertEquals(4, responses.get(3).getUid().longValue());
+        assertEquals(6, responses.get(4).getUid().longValue());
+    }
+
+    @Test
+    public void testShutdownExecutorBuildsInCallingThread() throws Exception {
+        executor.shutdown();
+        ParallelFetchResponses parallel = new ParallelFetchResponses(executor, 4, new FetchResponseBuilder(null), fetchUid(), null, session(0), null, true, responder);
+        for (long uid = 1; uid <= 10; uid++) {
+            parallel.add(message(uid));
+        }
+        parallel.flush();
+        assertEquals(10, responses.size());
+    }
+
+    private FetchData fetchUid() {
+        FetchData fetch = new FetchData();
+        fetch.setUid(true);
+        return fetch;
+    }
+
+    /**
+     * Return a {@link ImapSession} whose selected mailbox contains all uids
+     * as msn, except the given one
+     */
+    private ImapSession session(final long missing) {
+        final SelectedMailbox selected = (SelectedMailbox) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { SelectedMailbox.class }, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("msn")) {
+                    long uid = (Long) args[0];
+                    return uid == missing ? SelectedMailbox.NO_SUCH_MESSAGE : (int) uid;
+                } else if (method.getName().equals("isRecent")) {
+                    return false;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        return (ImapSession) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { ImapSession.class }, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("getSelected")) {
+                    return selected;
+                } else if (method.getName().equals("getAttribute")) {
+                    return null;
+                } else if (method.getName().equals("getLog")) {
+                    return LoggerFactory.getLogger(ParallelFetchResponsesTest.class);
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * Return a {@link MessageResult} which takes a random time to build
+     */
+    private MessageResult message(final long uid) {
+        final Random random = new Random(uid);
+        return (MessageResult) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { MessageResult.class }, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("getUid")) {
+                    return uid;
+                } else if (method.getName().equals("getFlags")) {
+                    Thread.sleep(random.nextInt(3));
+                    return new Flags();
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}